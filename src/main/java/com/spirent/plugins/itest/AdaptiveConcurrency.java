@@ -0,0 +1,327 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Number of iTestRT processes of axes allowed to run at the same time on a
+ * node, adapted to the node by additive increase and multiplicative
+ * decrease. Every few seconds the limit grows by one while axes are
+ * waiting and the node has headroom, and is halved as soon as the node
+ * runs out of CPU or memory, test cases take much longer than in previous
+ * builds or iTestRT reports errors and aborts rather than verdicts, which
+ * is how an overloaded node shows up in the output.
+ * <p>
+ * The limit is shared by every build running axes on the node, and its
+ * changes are logged in each of them. The node is probed on the threads
+ * of {@link ResourceSampler}, never while holding the lock builds wait
+ * on, and a probe that times out is decided on without CPU and memory.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class AdaptiveConcurrency {
+
+	static final long INTERVAL = TimeUnit.SECONDS.toMillis(10);
+	static final int INITIAL_LIMIT = 2;
+	/**
+	 * Test case results looked at for latency and errors.
+	 */
+	static final int WINDOW = 20;
+	/**
+	 * Fewest results in the window to judge latency or errors by.
+	 */
+	static final int MIN_RESULTS = 4;
+	static final double MAX_CPU = 0.90;
+	static final double GROW_CPU = 0.75;
+	static final double MIN_MEMORY = 0.10;
+	static final double GROW_MEMORY = 0.20;
+	/**
+	 * Median ratio of test case duration to its average in previous builds.
+	 */
+	static final double MAX_INFLATION = 1.5;
+	static final double GROW_INFLATION = 1.2;
+	static final double MAX_ERROR_RATE = 0.2;
+	static final long MIN_TICKS = 100;
+
+	private static final Map<String, AdaptiveConcurrency> nodes =
+			new HashMap<String, AdaptiveConcurrency>();
+
+	private final String node;
+	private final VirtualChannel channel;
+	private final List<PrintStream> loggers = new ArrayList<PrintStream>();
+	private final LinkedList<Double> inflation = new LinkedList<Double>();
+	private final LinkedList<Boolean> errors = new LinkedList<Boolean>();
+	private int limit = INITIAL_LIMIT;
+	private int running;
+	private int waiting;
+	private long[] lastCpu;
+	private boolean noProc;
+	private ScheduledFuture<?> task;
+
+	private AdaptiveConcurrency(String node, VirtualChannel channel) {
+		this.node = node;
+		this.channel = channel;
+	}
+
+	/**
+	 * @return controller of the node, or null if it is offline
+	 */
+	static AdaptiveConcurrency forNode(Node node) {
+		VirtualChannel channel = node == null ? null : node.getChannel();
+		if (channel == null) {
+			return null;
+		}
+		synchronized (nodes) {
+			AdaptiveConcurrency controller = nodes.get(node.getNodeName());
+			if (controller == null || controller.channel != channel) {
+				controller = new AdaptiveConcurrency(
+						node.getDisplayName(), channel);
+				nodes.put(node.getNodeName(), controller);
+			}
+			return controller;
+		}
+	}
+
+	/**
+	 * Start logging decisions in a build, and adapting if it is the first.
+	 */
+	synchronized void join(PrintStream logger) {
+		loggers.add(logger);
+		logger.println("Axes on " + node + " adapt to its load, "
+				+ limit + " at a time now");
+		if (task == null) {
+			Runnable tick = new Runnable() {
+				public void run() {
+					adapt();
+				}
+			};
+			task = ResourceSampler.PROBES.scheduleWithFixedDelay(tick,
+					INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized void leave(PrintStream logger) {
+		loggers.remove(logger);
+		if (loggers.isEmpty() && task != null) {
+			task.cancel(false);
+			task = null;
+			lastCpu = null;
+		}
+	}
+
+	/**
+	 * Wait until another iTestRT process may run on the node.
+	 */
+	synchronized void acquire() throws InterruptedException {
+		waiting++;
+		try {
+			while (running >= limit) {
+				wait();
+			}
+		} finally {
+			waiting--;
+		}
+		running++;
+	}
+
+	synchronized void release() {
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Take in a result reported by iTestRT.
+	 * @param result
+	 * @param expected average duration in previous builds, or null
+	 */
+	synchronized void record(TestCaseResult result, Long expected) {
+		TestCaseResult.Verdict verdict = result.getVerdict();
+		add(errors, verdict == TestCaseResult.Verdict.ERROR
+				|| verdict == TestCaseResult.Verdict.ABORT
+				|| verdict == TestCaseResult.Verdict.TIMEOUT);
+		if (expected != null && expected > 0 && result.getDuration() > 0) {
+			add(inflation, (double) result.getDuration() / expected);
+		}
+	}
+
+	private static <T> void add(LinkedList<T> window, T value) {
+		window.add(value);
+		if (window.size() > WINDOW) {
+			window.removeFirst();
+		}
+	}
+
+	private void adapt() {
+		long[] headroom = null;
+		boolean probe;
+		synchronized (this) {
+			probe = !noProc;
+		}
+		if (probe) {
+			try {
+				headroom = ResourceSampler.call(channel, new Headroom());
+			} catch (IOException e) {
+				//decide on latency and errors alone until the next tick
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+		synchronized (this) {
+			if (task == null) {
+				return;
+			}
+			if (headroom != null && headroom.length == 0) {
+				//only latency and errors tell how loaded the node is
+				noProc = true;
+				headroom = null;
+			}
+			double cpu = -1;
+			double memory = -1;
+			if (headroom != null) {
+				//a second of ticks at least, not to judge by noise
+				if (lastCpu == null) {
+					lastCpu = headroom;
+				} else if (headroom[1] - lastCpu[1] >= MIN_TICKS) {
+					cpu = 1 - (double) (headroom[0] - lastCpu[0])
+							/ (headroom[1] - lastCpu[1]);
+					lastCpu = headroom;
+				}
+				if (headroom[3] > 0) {
+					memory = (double) headroom[2] / headroom[3];
+				}
+			}
+			double latency = inflation.size() < MIN_RESULTS ? -1 : median();
+			int failed = Collections.frequency(errors, Boolean.TRUE);
+			int results = errors.size();
+			double errorRate = errors.size() < MIN_RESULTS
+					? -1 : (double) failed / errors.size();
+
+			String reason = null;
+			if (cpu > MAX_CPU) {
+				reason = "CPU busy";
+			} else if (memory >= 0 && memory < MIN_MEMORY) {
+				reason = "memory low";
+			} else if (latency > MAX_INFLATION) {
+				reason = "test cases slower";
+			} else if (errorRate > MAX_ERROR_RATE) {
+				reason = "infrastructure errors";
+			}
+
+			int before = limit;
+			if (reason != null) {
+				limit = Math.max(1, limit / 2);
+				//judge the new limit by results obtained with it
+				inflation.clear();
+				errors.clear();
+			} else if (waiting > 0 && running >= limit
+					&& (cpu < 0 || cpu < GROW_CPU)
+					&& (memory < 0 || memory > GROW_MEMORY)
+					&& latency < GROW_INFLATION) {
+				limit++;
+				reason = "headroom";
+				notifyAll();
+			}
+			if (limit != before) {
+				String message = "Axes on " + node + ": " + before + " -> "
+						+ limit + " at a time (" + reason + "; CPU "
+						+ percent(cpu) + ", memory free " + percent(memory)
+						+ ", latency "
+						+ (latency < 0 ? "n/a" : String.format("x%.2f", latency))
+						+ ", errors "
+						+ (errorRate < 0 ? "n/a" : failed + " of " + results)
+						+ ")";
+				for (PrintStream logger : loggers) {
+					logger.println(message);
+				}
+			}
+		}
+	}
+
+	private double median() {
+		List<Double> sorted = new ArrayList<Double>(inflation);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+
+	private static String percent(double fraction) {
+		return fraction < 0 ? "n/a" : Math.round(fraction * 100) + "%";
+	}
+
+	/**
+	 * Reads idle and total CPU ticks and available and total memory from
+	 * /proc on the node.
+	 */
+	private static final class Headroom
+			extends MasterToSlaveCallable<long[], IOException> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @return idle ticks, total ticks, available kB and total kB, or
+		 * nothing if the node has no /proc
+		 */
+		public long[] call() throws IOException {
+			File stat = new File("/proc/stat");
+			if (!stat.isFile()) {
+				return new long[0];
+			}
+			String line = ResourceSampler.read(stat).split("\n")[0];
+			String[] ticks = line.trim().split("\\s+");
+			long total = 0;
+			for (int i = 1; i < ticks.length; i++) {
+				total += Long.parseLong(ticks[i]);
+			}
+			//idle and iowait
+			long idle = Long.parseLong(ticks[4])
+					+ (ticks.length > 5 ? Long.parseLong(ticks[5]) : 0);
+			String memory = ResourceSampler.read(new File("/proc/meminfo"));
+			long available = ResourceSampler.value(memory, "MemAvailable:");
+			if (available == 0) {
+				//kernels before 3.14
+				available = ResourceSampler.value(memory, "MemFree:")
+						+ ResourceSampler.value(memory, "Cached:");
+			}
+			return new long[] { idle, total, available,
+					ResourceSampler.value(memory, "MemTotal:") };
+		}
+	}
+}
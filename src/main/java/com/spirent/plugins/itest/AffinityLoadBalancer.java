@@ -0,0 +1,490 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Places iTest builds on the free agent most likely to hold what the build
+ * needs: the copy of its iTest workspace at the revision the job last used,
+ * and the iTAR files of its projects. Other builds are placed by the load
+ * balancer this one wraps.
+ * <p>
+ * What each agent holds is learned from the builds that ran on it, not
+ * read from the agent, so that placing a build never waits on an agent.
+ * iTAR files evicted from the cache of an agent are forgotten as the build
+ * that evicted them reports it. What was learned is saved in the Jenkins
+ * home directory, so that placements stay warm across a restart.
+ * Locality counts for less the busier an agent is, so that the warmest
+ * agent is not given every build while others stand idle.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class AffinityLoadBalancer extends LoadBalancer {
+
+	/**
+	 * Weight of the share of busy executors of an agent against locality,
+	 * which is between 0 and 1.
+	 */
+	static final double LOAD_WEIGHT = Double.parseDouble(System.getProperty(
+			AffinityLoadBalancer.class.getName() + ".loadWeight", "0.5"));
+	/**
+	 * Most iTAR keys remembered per agent.
+	 */
+	static final int MAX_KEYS = 4096;
+	static final String FILE_NAME =
+			AffinityLoadBalancer.class.getName() + ".xml";
+
+	private static final Logger LOGGER =
+			Logger.getLogger(AffinityLoadBalancer.class.getName());
+	/**
+	 * Orders saves, which are written without holding the lock on the
+	 * state.
+	 */
+	private static final Object SAVING = new Object();
+
+	/**
+	 * What the last build of each job used, by job name.
+	 */
+	private static final Map<String, Wanted> jobs =
+			new HashMap<String, Wanted>();
+	/**
+	 * What each agent is known to hold, by node name.
+	 */
+	private static final Map<String, Held> nodes =
+			new HashMap<String, Held>();
+
+	private static long placed;
+	private static long placedWarm;
+	private static long itarHits;
+	private static long itarLookups;
+	private static long syncsCurrent;
+	private static long syncs;
+	/**
+	 * Changes recorded, and the number of them already saved.
+	 */
+	private static long changes;
+	private static long saved;
+
+	private final LoadBalancer fallback;
+
+	AffinityLoadBalancer(LoadBalancer fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Wrap the load balancer of the queue once jobs are loaded.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void install() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return;
+		}
+		load();
+		Queue queue = jenkins.getQueue();
+		LoadBalancer current = queue.getLoadBalancer();
+		if (!(current instanceof AffinityLoadBalancer)) {
+			queue.setLoadBalancer(new AffinityLoadBalancer(current));
+		}
+	}
+
+	@Override
+	public Mapping map(Queue.Task task, MappingWorksheet worksheet) {
+		Mapping mapping = fallback.map(task, worksheet);
+		if (!ITest.isUsedBy(task) || worksheet.works.size() != 1) {
+			return mapping;
+		}
+		Wanted wanted;
+		synchronized (AffinityLoadBalancer.class) {
+			wanted = jobs.get(jobName(task));
+		}
+		if (wanted == null) {
+			return mapping;
+		}
+
+		final Map<ExecutorChunk, Double> scores =
+				new HashMap<ExecutorChunk, Double>();
+		List<ExecutorChunk> candidates = new ArrayList<ExecutorChunk>();
+		for (ExecutorChunk chunk
+				: worksheet.works(0).applicableExecutorChunks()) {
+			if (chunk.canAccept(worksheet.works(0))) {
+				candidates.add(chunk);
+				scores.put(chunk, score(wanted, chunk));
+			}
+		}
+		if (candidates.isEmpty()) {
+			return mapping;
+		}
+		Collections.sort(candidates, new Comparator<ExecutorChunk>() {
+			public int compare(ExecutorChunk a, ExecutorChunk b) {
+				return scores.get(b).compareTo(scores.get(a));
+			}
+		});
+
+		ExecutorChunk best = candidates.get(0);
+		ExecutorChunk chosen = mapping == null ? null : mapping.get(0);
+		//ties keep the placement of the wrapped load balancer
+		if (chosen == null || !scores.containsKey(chosen)
+				|| scores.get(best) > scores.get(chosen)) {
+			Mapping preferred = worksheet.new Mapping();
+			preferred.assign(0, best);
+			if (preferred.isCompletelyValid()) {
+				mapping = preferred;
+				chosen = best;
+			}
+		}
+		if (mapping != null && chosen != null) {
+			synchronized (AffinityLoadBalancer.class) {
+				placed++;
+				if (locality(wanted, chosen.node.getNodeName()) > 0) {
+					placedWarm++;
+				}
+			}
+		}
+		return mapping;
+	}
+
+	private static double score(Wanted wanted, ExecutorChunk chunk) {
+		Computer computer = chunk.computer;
+		int executors = computer.countExecutors();
+		double load = executors == 0
+				? 1 : (double) computer.countBusy() / executors;
+		return locality(wanted, chunk.node.getNodeName()) * (1 - load)
+				- LOAD_WEIGHT * load;
+	}
+
+	/**
+	 * @return 0 for an agent holding nothing the job uses, up to 1 for an
+	 * agent holding the workspace at the same revision and every iTAR file
+	 */
+	private static synchronized double locality(Wanted wanted, String node) {
+		Held held = nodes.get(node);
+		if (held == null) {
+			return 0;
+		}
+		double workspace = 0;
+		if (wanted.source != null) {
+			String revision = held.workspaces.get(wanted.source);
+			//a copy of an older revision only needs a delta
+			workspace = revision == null ? 0
+					: revision.equals(wanted.revision) ? 1 : 0.5;
+		}
+		double itars = 0;
+		if (!wanted.itars.isEmpty()) {
+			int cached = 0;
+			for (String key : wanted.itars.values()) {
+				if (held.itars.containsKey(key)) {
+					cached++;
+				}
+			}
+			itars = (double) cached / wanted.itars.size();
+		}
+		if (wanted.source == null) {
+			return itars;
+		}
+		return wanted.itars.isEmpty() ? workspace : (workspace + itars) / 2;
+	}
+
+	private static String jobName(Queue.Task task) {
+		return task instanceof Item
+				? ((Item) task).getFullName() : task.getFullDisplayName();
+	}
+
+	/**
+	 * Record the copy of an iTest workspace a build used.
+	 * @param job full name of the job
+	 * @param node name of the node the build ran on
+	 * @param source iTest workspace on the controller
+	 * @param lease copy of the workspace held by the build
+	 */
+	static void recordWorkspace(String job, String node, String source,
+			WorkspaceSync.Lease lease) {
+		synchronized (AffinityLoadBalancer.class) {
+			Wanted wanted = wanted(job);
+			wanted.source = source;
+			wanted.revision = lease.getRevision();
+			held(node).workspaces.put(source, lease.getRevision());
+			syncs++;
+			if (lease.isCurrent()) {
+				syncsCurrent++;
+			}
+			changes++;
+		}
+		save();
+	}
+
+	/**
+	 * Record the iTAR files a build looked up in the cache of its node.
+	 * @param job full name of the job
+	 * @param node name of the node the build ran on
+	 * @param keys key of each project exported
+	 * @param cached keys now in the cache of the node
+	 * @param hits projects restored from the cache
+	 * @param lookups projects looked up
+	 */
+	static void recordITars(String job, String node,
+			Map<String, String> keys, Collection<String> cached, int hits,
+			int lookups) {
+		synchronized (AffinityLoadBalancer.class) {
+			wanted(job).itars.putAll(keys);
+			Map<String, Boolean> held = held(node).itars;
+			for (String key : cached) {
+				held.put(key, Boolean.TRUE);
+			}
+			itarHits += hits;
+			itarLookups += lookups;
+			changes++;
+		}
+		save();
+	}
+
+	/**
+	 * Record the iTAR files a build evicted from the cache of its node.
+	 * @param node name of the node the build ran on
+	 * @param evicted keys no longer in the cache of the node
+	 */
+	static void forgetITars(String node, Collection<String> evicted) {
+		if (evicted.isEmpty()) {
+			return;
+		}
+		synchronized (AffinityLoadBalancer.class) {
+			Held held = nodes.get(node);
+			if (held == null) {
+				return;
+			}
+			held.itars.keySet().removeAll(evicted);
+			changes++;
+		}
+		save();
+	}
+
+	private static XmlFile file() {
+		Jenkins jenkins = Jenkins.getInstance();
+		return jenkins == null ? null : new XmlFile(Jenkins.XSTREAM2,
+				new File(jenkins.getRootDir(), FILE_NAME));
+	}
+
+	private static void load() {
+		XmlFile file = file();
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try {
+			State state = (State) file.read();
+			synchronized (AffinityLoadBalancer.class) {
+				state.restore();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+		} catch (ClassCastException e) {
+			LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+		}
+	}
+
+	/**
+	 * Write what was learned, unless a later save already did.
+	 */
+	private static void save() {
+		State state;
+		long version;
+		synchronized (AffinityLoadBalancer.class) {
+			state = new State();
+			version = changes;
+		}
+		synchronized (SAVING) {
+			XmlFile file = file();
+			if (version <= saved || file == null) {
+				return;
+			}
+			try {
+				file.write(state);
+				saved = version;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot save " + file, e);
+			}
+		}
+	}
+
+	private static Wanted wanted(String job) {
+		Wanted wanted = jobs.get(job);
+		if (wanted == null) {
+			wanted = new Wanted();
+			jobs.put(job, wanted);
+		}
+		return wanted;
+	}
+
+	private static Held held(String node) {
+		Held held = nodes.get(node);
+		if (held == null) {
+			held = new Held();
+			nodes.put(node, held);
+		}
+		return held;
+	}
+
+	/**
+	 * @return one line summary of affinity metrics
+	 */
+	public static synchronized String getSummary() {
+		return placed + " builds placed by affinity, " + percent(placedWarm,
+				placed) + " on warm agents; iTAR cache hits " + itarHits
+				+ " of " + itarLookups + " (" + percent(itarHits, itarLookups)
+				+ "); workspace up to date " + syncsCurrent + " of " + syncs
+				+ " (" + percent(syncsCurrent, syncs) + ")";
+	}
+
+	private static String percent(long part, long whole) {
+		return whole == 0 ? "n/a" : (100 * part / whole) + "%";
+	}
+
+	/**
+	 * What was learned, as saved in the Jenkins home directory.
+	 */
+	private static final class State {
+		private final Map<String, Wanted> jobs = new HashMap<String, Wanted>();
+		private final Map<String, Map<String, String>> workspaces =
+				new HashMap<String, Map<String, String>>();
+		/**
+		 * iTAR keys of each node, least recently used first.
+		 */
+		private final Map<String, List<String>> itars =
+				new HashMap<String, List<String>>();
+
+		/**
+		 * Copy of the current state; the caller holds the lock on it.
+		 */
+		State() {
+			for (Map.Entry<String, Wanted> e
+					: AffinityLoadBalancer.jobs.entrySet()) {
+				Wanted wanted = new Wanted();
+				wanted.source = e.getValue().source;
+				wanted.revision = e.getValue().revision;
+				wanted.itars.putAll(e.getValue().itars);
+				jobs.put(e.getKey(), wanted);
+			}
+			for (Map.Entry<String, Held> e : nodes.entrySet()) {
+				workspaces.put(e.getKey(), new HashMap<String, String>(
+						e.getValue().workspaces));
+				itars.put(e.getKey(), new ArrayList<String>(
+						e.getValue().itars.keySet()));
+			}
+		}
+
+		/**
+		 * Add what was saved to what builds recorded since the start; the
+		 * caller holds the lock on the state.
+		 */
+		void restore() {
+			for (Map.Entry<String, Wanted> e : jobs.entrySet()) {
+				if (!AffinityLoadBalancer.jobs.containsKey(e.getKey())) {
+					AffinityLoadBalancer.jobs.put(e.getKey(), e.getValue());
+				}
+			}
+			for (Map.Entry<String, Map<String, String>> e
+					: workspaces.entrySet()) {
+				Map<String, String> held = held(e.getKey()).workspaces;
+				for (Map.Entry<String, String> w : e.getValue().entrySet()) {
+					if (!held.containsKey(w.getKey())) {
+						held.put(w.getKey(), w.getValue());
+					}
+				}
+			}
+			for (Map.Entry<String, List<String>> e : itars.entrySet()) {
+				Map<String, Boolean> held = held(e.getKey()).itars;
+				Map<String, Boolean> recorded =
+						new LinkedHashMap<String, Boolean>(held);
+				held.clear();
+				for (String key : e.getValue()) {
+					held.put(key, Boolean.TRUE);
+				}
+				held.putAll(recorded);
+			}
+		}
+	}
+
+	/**
+	 * What the last build of a job used.
+	 */
+	private static final class Wanted {
+		private String source;
+		private String revision;
+		/**
+		 * iTAR key of each project.
+		 */
+		private final Map<String, String> itars =
+				new HashMap<String, String>();
+	}
+
+	/**
+	 * What an agent is known to hold.
+	 */
+	private static final class Held {
+		/**
+		 * Revision of the copy of each iTest workspace.
+		 */
+		private final Map<String, String> workspaces =
+				new HashMap<String, String>();
+		/**
+		 * iTAR keys, least recently used first.
+		 */
+		private final Map<String, Boolean> itars =
+				new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<String, Boolean> eldest) {
+						return size() > MAX_KEYS;
+					}
+				};
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.model.DirectoryBrowserSupport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves files of archived reports with validators, long lived caching for
+ * archives that never change, gzip variants prepared at archive time and
+ * byte ranges. Files are sent with the same Content-Security-Policy as the
+ * directory browser.
+ * <p>
+ * The variants are kept in a directory next to htmlreports rather than in
+ * the archive, so directory listings and zip downloads only show the
+ * reports. A variant is named after the length and modification time of
+ * the file it was made from, so archives of the same build copied from the
+ * same reports share it, and a file replaced later is served uncompressed
+ * until it is archived again.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class ArchivedReportServer {
+
+	/**
+	 * Smaller files are not worth a compressed variant.
+	 */
+	static final long MIN_COMPRESS_SIZE = 1024;
+	static final String GZIP_SUFFIX = ".gz";
+	static final String VARIANTS_DIR = "htmlreports-gzip";
+	private static final String IMMUTABLE =
+			"public, max-age=31536000, immutable";
+	private static final Pattern RANGE =
+			Pattern.compile("bytes=(\\d*)-(\\d*)");
+	private static final String[] COMPRESSIBLE = {
+		".html", ".htm", ".css", ".js", ".txt", ".xml", ".json", ".svg", ".csv"
+	};
+	/**
+	 * Same setting and default as DirectoryBrowserSupport.
+	 */
+	static final String CSP_PROPERTY =
+			DirectoryBrowserSupport.class.getName() + ".CSP";
+	static final String DEFAULT_CSP =
+			"sandbox; default-src 'none'; img-src 'self'; style-src 'self';";
+
+	private ArchivedReportServer() {
+	}
+
+	/**
+	 * @param root archive directory, in the htmlreports directory of a
+	 * build or project
+	 * @return directory holding the compressed variants of its files
+	 */
+	static File variantsOf(File root) {
+		return new File(root.getParentFile().getParentFile(), VARIANTS_DIR);
+	}
+
+	/**
+	 * @param variants directory holding the variants
+	 * @param path path of a file relative to its archive directory
+	 * @param file the file
+	 * @return gzip variant of the file as it is now
+	 */
+	private static File variantOf(File variants, String path, File file) {
+		return new File(variants, path + "." + Long.toHexString(file.length())
+				+ "-" + Long.toHexString(file.lastModified()) + GZIP_SUFFIX);
+	}
+
+	/**
+	 * Write the gzip variant of every file of an archive worth compressing,
+	 * unless another archive already wrote it.
+	 * @param root archive directory
+	 * @param replace true to drop the variants written for earlier
+	 * archives first, when the archive is kept for the project rather
+	 * than for each build
+	 */
+	static void precompress(File root, boolean replace) throws IOException {
+		File variants = variantsOf(root);
+		if (replace) {
+			Util.deleteRecursive(variants);
+		}
+		precompress(root, "", variants);
+	}
+
+	private static void precompress(File dir, String path, File variants)
+			throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String child = path + file.getName();
+			if (file.isDirectory()) {
+				precompress(file, child + File.separator, variants);
+			} else if (isCompressible(file.getName())
+					&& file.length() >= MIN_COMPRESS_SIZE) {
+				File gz = variantOf(variants, child, file);
+				if (!gz.isFile()) {
+					compress(file, gz);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a gzip variant through a temporary file, so that it is never
+	 * served half written.
+	 */
+	private static void compress(File file, File gz) throws IOException {
+		File dir = gz.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				OutputStream out = new GZIPOutputStream(
+						new BufferedOutputStream(new FileOutputStream(temp)));
+				try {
+					copy(in, out, Long.MAX_VALUE);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			if (!temp.renameTo(gz)) {
+				throw new IOException("Cannot rename " + temp + " to " + gz);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static boolean isCompressible(String name) {
+		String lower = name.toLowerCase(Locale.ENGLISH);
+		for (String extension : COMPRESSIBLE) {
+			if (lower.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Serve the file addressed by the rest of the request path.
+	 * @param root archive directory
+	 * @param immutable true if the archive never changes once written
+	 * @return false if the request does not address a file, and should be
+	 * left to the directory browser
+	 */
+	static boolean serve(StaplerRequest req, StaplerResponse rsp, File root,
+			boolean immutable) throws IOException {
+		String rest = req.getRestOfPath();
+		if (rest == null || rest.isEmpty() || rest.equals("/")
+				|| rest.contains("*zip*")) {
+			return false;
+		}
+		File file = new File(root,
+				URLDecoder.decode(rest.replace("+", "%2B"), "UTF-8"));
+		String base = root.getCanonicalPath() + File.separator;
+		String path = file.getCanonicalPath();
+		if (!path.startsWith(base) || !file.isFile()) {
+			return false;
+		}
+
+		long length = file.length();
+		long modified = file.lastModified();
+		String range = req.getHeader("Range");
+		File gz = variantOf(variantsOf(root), path.substring(base.length()),
+				file);
+		boolean gzip = range == null && acceptsGzip(req)
+				&& isCompressible(file.getName())
+				&& length >= MIN_COMPRESS_SIZE && gz.isFile();
+		//strong validator: archived files are only ever replaced whole
+		String etag = "\"" + Long.toHexString(length) + "-"
+				+ Long.toHexString(modified) + (gzip ? "-gz" : "") + "\"";
+
+		rsp.setHeader("ETag", etag);
+		rsp.setDateHeader("Last-Modified", modified);
+		rsp.setHeader("Accept-Ranges", "bytes");
+		rsp.setHeader("Vary", "Accept-Encoding");
+		rsp.setHeader("Cache-Control", immutable ? IMMUTABLE : "no-cache");
+		String csp = System.getProperty(CSP_PROPERTY, DEFAULT_CSP);
+		if (!csp.trim().isEmpty()) {
+			rsp.setHeader("Content-Security-Policy", csp);
+			rsp.setHeader("X-WebKit-CSP", csp);
+			rsp.setHeader("X-Content-Security-Policy", csp);
+		}
+		if (matches(req.getHeader("If-None-Match"), etag)) {
+			rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		rsp.setContentType(contentType(file.getName()));
+
+		long start = 0;
+		long end = length - 1;
+		if (gzip) {
+			rsp.setHeader("Content-Encoding", "gzip");
+			file = gz;
+			end = gz.length() - 1;
+		} else if (range != null && !range.contains(",")
+				&& ifRangeMatches(req.getHeader("If-Range"), etag)) {
+			Matcher m = RANGE.matcher(range.trim());
+			if (m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+				if (m.group(1).isEmpty()) {
+					start = Math.max(0, length - Long.parseLong(m.group(2)));
+				} else {
+					start = Long.parseLong(m.group(1));
+					if (!m.group(2).isEmpty()) {
+						end = Math.min(end, Long.parseLong(m.group(2)));
+					}
+				}
+				if (start >= length || start > end) {
+					rsp.setHeader("Content-Range", "bytes */" + length);
+					rsp.sendError(
+							HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return true;
+				}
+				rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				rsp.setHeader("Content-Range", "bytes " + start + "-" + end
+						+ "/" + length);
+			}
+		}
+
+		long count = end - start + 1;
+		rsp.setHeader("Content-Length", Long.toString(count));
+		if ("HEAD".equals(req.getMethod())) {
+			return true;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(start);
+			OutputStream out = rsp.getOutputStream();
+			byte[] buffer = new byte[65536];
+			while (count > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+				if (n < 0) {
+					break;
+				}
+				out.write(buffer, 0, n);
+				count -= n;
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private static boolean acceptsGzip(StaplerRequest req) {
+		String accept = req.getHeader("Accept-Encoding");
+		return accept != null
+				&& accept.toLowerCase(Locale.ENGLISH).contains("gzip");
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			String tag = candidate.trim();
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A range conditional on a validator only applies if it is current.
+	 */
+	private static boolean ifRangeMatches(String ifRange, String etag) {
+		return ifRange == null || ifRange.trim().equals(etag);
+	}
+
+	private static String contentType(String name) {
+		String lower = name.toLowerCase(Locale.ENGLISH);
+		if (lower.endsWith(".html") || lower.endsWith(".htm")) {
+			return "text/html";
+		} else if (lower.endsWith(".css")) {
+			return "text/css";
+		} else if (lower.endsWith(".js")) {
+			return "application/javascript";
+		} else if (lower.endsWith(".txt") || lower.endsWith(".csv")) {
+			return "text/plain";
+		} else if (lower.endsWith(".xml")) {
+			return "application/xml";
+		} else if (lower.endsWith(".json")) {
+			return "application/json";
+		} else if (lower.endsWith(".svg")) {
+			return "image/svg+xml";
+		} else if (lower.endsWith(".png")) {
+			return "image/png";
+		} else if (lower.endsWith(".gif")) {
+			return "image/gif";
+		} else if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+			return "image/jpeg";
+		} else if (lower.endsWith(".ico")) {
+			return "image/x-icon";
+		} else if (lower.endsWith(".gz")) {
+			return "application/gzip";
+		}
+		return "application/octet-stream";
+	}
+
+	private static void copy(InputStream in, OutputStream out, long max)
+			throws IOException {
+		byte[] buffer = new byte[65536];
+		long copied = 0;
+		int n;
+		while (copied < max && (n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+			copied += n;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.model.RunAction2;
+
+/**
+ * Verdicts of each axis of a build that ran its test cases against several
+ * testbeds, parameter files or parameter values.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class AxisResultsAction implements RunAction2 {
+
+	private final List<AxisResult> axes = new ArrayList<AxisResult>();
+
+	private transient Run<?, ?> run;
+
+	public String getIconFileName() {
+		return "/plugin/itest/images/24x24/Spirent_favicon.ico";
+	}
+
+	public String getDisplayName() {
+		return "iTest Axes";
+	}
+
+	public String getUrlName() {
+		return "itest-axes";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	public List<AxisResult> getAxes() {
+		return axes;
+	}
+
+	/**
+	 * @return names of the swept parameters, in the order given
+	 */
+	public synchronized List<String> getParamNames() {
+		List<String> names = new ArrayList<String>();
+		for (AxisResult axis : axes) {
+			for (String param : axis.params) {
+				String name = param.substring(0, Math.max(0,
+						param.indexOf('=')));
+				if (!names.contains(name)) {
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Record the final verdicts of an axis.
+	 * @param axis
+	 * @param verdicts final result of each test case of the axis
+	 * @param total number of test cases the axis was to run
+	 * @param duration wall time of the axis in milliseconds
+	 * @param error reason the axis did not complete, or null
+	 */
+	public synchronized void add(ExecutionAxis axis,
+			List<TestCaseResult> verdicts, int total, long duration,
+			String error) {
+		AxisResult result = new AxisResult(axis, total, duration, error);
+		for (TestCaseResult verdict : verdicts) {
+			if (verdict.isPassed()) {
+				result.passed++;
+			} else {
+				result.failed.add(verdict.getUri());
+			}
+		}
+		axes.add(result);
+	}
+
+	/**
+	 * @return true if every test case of every axis passed
+	 */
+	public synchronized boolean isPassed() {
+		for (AxisResult axis : axes) {
+			if (!axis.isPassed()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Outcome of one axis.
+	 */
+	public static final class AxisResult {
+		private final String name;
+		private final String testbed;
+		private final String paramFile;
+		private final List<String> params;
+		private final int total;
+		private int passed;
+		private final List<String> failed = new ArrayList<String>();
+		private final long duration;
+		private final String error;
+
+		AxisResult(ExecutionAxis axis, int total, long duration,
+				String error) {
+			this.name = axis.getName();
+			this.testbed = axis.getTestbed();
+			this.paramFile = axis.getParamFile();
+			this.params = new ArrayList<String>(axis.getParams());
+			this.total = total;
+			this.duration = duration;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getTestbed() {
+			return testbed;
+		}
+
+		public String getParamFile() {
+			return paramFile;
+		}
+
+		public List<String> getParams() {
+			return params;
+		}
+
+		/**
+		 * @return value of a swept parameter on this axis, empty if it
+		 * was not swept
+		 */
+		public String getValue(String param) {
+			for (String pair : params) {
+				if (pair.startsWith(param + "=")) {
+					return pair.substring(param.length() + 1);
+				}
+			}
+			return "";
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getPassed() {
+			return passed;
+		}
+
+		/**
+		 * @return test cases whose final verdict is not a pass
+		 */
+		public List<String> getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return test cases that reported no verdict
+		 */
+		public int getMissing() {
+			return Math.max(0, total - passed - failed.size());
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getDurationString() {
+			return Util.getTimeSpanString(duration);
+		}
+
+		/**
+		 * @return reason the axis did not complete, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public boolean isPassed() {
+			return error == null && failed.isEmpty() && getMissing() == 0;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small bounded pool of JDBC connections shared by all builds.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ConnectionPool {
+
+	/**
+	 * Opens new physical connections. Tests can supply an embedded
+	 * database instead of MySQL or PostgreSQL.
+	 */
+	public interface ConnectionFactory {
+		Connection open() throws SQLException;
+	}
+
+	/**
+	 * Longest wait for a database to accept a connection.
+	 */
+	static final int CONNECT_TIMEOUT = Integer.getInteger(
+			ConnectionPool.class.getName() + ".connectTimeout", 10000);
+	/**
+	 * Longest wait for a database to answer a statement.
+	 */
+	static final int SOCKET_TIMEOUT = Integer.getInteger(
+			ConnectionPool.class.getName() + ".socketTimeout", 60000);
+
+	/**
+	 * Opens connections through {@link DriverManager}.
+	 */
+	public static class DriverManagerFactory implements ConnectionFactory {
+		private final String url;
+		private final String username;
+		private final String password;
+
+		public DriverManagerFactory(String url, String username,
+				String password) {
+			this.url = url;
+			this.username = username;
+			this.password = password;
+		}
+
+		public Connection open() throws SQLException {
+			return connect(url, username, password, CONNECT_TIMEOUT,
+					SOCKET_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Open a connection that gives up on a database host that does not
+	 * answer, rather than blocking the caller until the operating system
+	 * drops the connection.
+	 * @param connectTimeout milliseconds to wait for the connection
+	 * @param socketTimeout milliseconds to wait for each answer
+	 */
+	static Connection connect(String url, String username, String password,
+			int connectTimeout, int socketTimeout) throws SQLException {
+		Properties info = new Properties();
+		if (username != null) {
+			info.setProperty("user", username);
+		}
+		if (password != null) {
+			info.setProperty("password", password);
+		}
+		if (url.startsWith("jdbc:mysql:")) {
+			info.setProperty("connectTimeout",
+					Integer.toString(connectTimeout));
+			info.setProperty("socketTimeout", Integer.toString(socketTimeout));
+		} else if (url.startsWith("jdbc:postgresql:")) {
+			//in seconds
+			String connect = Integer.toString(
+					Math.max(1, connectTimeout / 1000));
+			info.setProperty("connectTimeout", connect);
+			info.setProperty("loginTimeout", connect);
+			info.setProperty("socketTimeout",
+					Integer.toString(Math.max(1, socketTimeout / 1000)));
+		}
+		return DriverManager.getConnection(url, info);
+	}
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	private final ConnectionFactory factory;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<Connection> idle =
+			new LinkedBlockingDeque<Connection>();
+	private volatile boolean closed;
+
+	/**
+	 * @param factory source of new connections
+	 * @param maxSize maximum number of connections open at once
+	 */
+	public ConnectionPool(ConnectionFactory factory, int maxSize) {
+		this.factory = factory;
+		this.permits = new Semaphore(Math.max(1, maxSize), true);
+	}
+
+	/**
+	 * Borrow a connection, waiting if the pool is exhausted.
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return an open connection, never null
+	 * @throws SQLException if no connection is available in time or
+	 * a new connection cannot be opened
+	 */
+	public Connection borrow(long timeout)
+			throws SQLException, InterruptedException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+			throw new SQLException("Timed out waiting for a connection");
+		}
+
+		try {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (isUsable(connection)) {
+					return connection;
+				}
+				closeQuietly(connection);
+			}
+			return factory.open();
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a borrowed connection to the pool.
+	 * @param connection connection obtained from {@link #borrow(long)}
+	 * @param broken true to discard the connection instead of reusing it
+	 */
+	public void release(Connection connection, boolean broken) {
+		try {
+			if (broken || closed) {
+				closeQuietly(connection);
+			} else {
+				idle.offerFirst(connection);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Close all idle connections. Borrowed connections are closed when
+	 * they are released.
+	 */
+	public void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			closeQuietly(connection);
+		}
+	}
+
+	private static boolean isUsable(Connection connection) {
+		try {
+			return !connection.isClosed()
+					&& connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One combination of testbed, parameter file and swept parameter values
+ * that the test cases of a build run against. Builds given several
+ * testbeds, parameter files or parameter values run one iTestRT process
+ * per axis, in parallel.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ExecutionAxis {
+
+	private final String name;
+	private final String testbed;
+	private final String paramFile;
+	private final List<String> params;
+
+	public ExecutionAxis(String name, String testbed, String paramFile,
+			List<String> params) {
+		this.name = name;
+		this.testbed = testbed;
+		this.paramFile = paramFile;
+		this.params = new ArrayList<String>(params);
+	}
+
+	/**
+	 * @return name unique within the build, safe as a file name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return resolved testbed path, may be empty
+	 */
+	public String getTestbed() {
+		return testbed;
+	}
+
+	/**
+	 * @return resolved parameter file path, may be empty
+	 */
+	public String getParamFile() {
+		return paramFile;
+	}
+
+	/**
+	 * @return parameter=value pairs of this axis only
+	 */
+	public List<String> getParams() {
+		return params;
+	}
+
+	/**
+	 * Comma separated values of a field, e.g. several testbeds.
+	 * @param value resolved field value
+	 * @return non empty values, trimmed
+	 */
+	static List<String> split(String value) {
+		List<String> values = new ArrayList<String>();
+		if (value == null) {
+			return values;
+		}
+		for (String v : value.split(",")) {
+			if (!v.trim().isEmpty()) {
+				values.add(v.trim());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Combine every testbed with every parameter file.
+	 * @param testbeds resolved testbed paths, may be empty
+	 * @param paramFiles resolved parameter file paths, may be empty
+	 * @return axes named after the files they use
+	 */
+	static List<ExecutionAxis> expand(List<String> testbeds,
+			List<String> paramFiles) {
+		return expand(testbeds, paramFiles, Collections.singletonList(
+				Collections.<String>emptyList()));
+	}
+
+	/**
+	 * Combine every testbed with every parameter file and every
+	 * combination of swept parameter values.
+	 * @param testbeds resolved testbed paths, may be empty
+	 * @param paramFiles resolved parameter file paths, may be empty
+	 * @param sweep parameter=value pairs of each combination
+	 * @return axes named after the files and values they use
+	 */
+	static List<ExecutionAxis> expand(List<String> testbeds,
+			List<String> paramFiles, List<List<String>> sweep) {
+		List<String> beds = testbeds.isEmpty()
+				? Collections.singletonList("") : testbeds;
+		List<String> files = paramFiles.isEmpty()
+				? Collections.singletonList("") : paramFiles;
+
+		List<ExecutionAxis> axes = new ArrayList<ExecutionAxis>();
+		Set<String> names = new HashSet<String>();
+		for (String bed : beds) {
+			for (String file : files) {
+				for (List<String> params : sweep) {
+					StringBuilder name = new StringBuilder();
+					if (beds.size() > 1) {
+						name.append(baseName(bed));
+					}
+					if (files.size() > 1) {
+						name.append(name.length() > 0 ? "-" : "")
+								.append(baseName(file));
+					}
+					for (String param : params) {
+						name.append(name.length() > 0 ? "-" : "").append(
+								param.replaceAll("[^A-Za-z0-9._-]", "_"));
+					}
+					axes.add(new ExecutionAxis(unique(name.toString(), names),
+							bed, file, params));
+				}
+			}
+		}
+		return axes;
+	}
+
+	/**
+	 * @return file name without directory and extension, safe as a path
+	 * element
+	 */
+	static String baseName(String path) {
+		String name = path.replace('\\', '/');
+		name = name.substring(name.lastIndexOf('/') + 1);
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+		return name.isEmpty() ? "axis" : name;
+	}
+
+	/**
+	 * @return name, with a number appended if already taken
+	 */
+	static String unique(String name, Set<String> taken) {
+		String base = name.isEmpty() ? "axis" : name;
+		String candidate = base;
+		for (int i = 2; !taken.add(candidate); i++) {
+			candidate = base + "-" + i;
+		}
+		return candidate;
+	}
+
+	/**
+	 * Key of a test case of an axis in progress and log listings.
+	 * @param axis axis name, or null outside of a matrix
+	 * @param uri test case URI
+	 */
+	static String qualify(String axis, String uri) {
+		return axis == null ? uri : uri + " @ " + axis;
+	}
+
+	/**
+	 * @return axis name of a qualified key, or null
+	 */
+	static String axisOf(String key) {
+		int at = key.indexOf(" @ ");
+		return at < 0 ? null : key.substring(at + 3);
+	}
+
+	/**
+	 * @return test case URI of a qualified key
+	 */
+	static String uriOf(String key) {
+		int at = key.indexOf(" @ ");
+		return at < 0 ? key : key.substring(0, at);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Prefixes each line with the axis name, so that the interleaved output
+	 * of parallel axes can be told apart in the build log.
+	 */
+	static final class PrefixedOutputStream
+			extends LineTransformationOutputStream {
+		private final PrintStream console;
+		private final byte[] prefix;
+
+		PrefixedOutputStream(PrintStream console, String axis) {
+			this.console = console;
+			this.prefix = ("[" + axis + "] ").getBytes();
+		}
+
+		@Override
+		protected void eol(byte[] b, int len) throws IOException {
+			//one write per line, so lines of different axes do not mix
+			byte[] line = new byte[prefix.length + len];
+			System.arraycopy(prefix, 0, line, 0, prefix.length);
+			System.arraycopy(b, 0, line, prefix.length, len);
+			console.write(line, 0, line.length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			console.flush();
+		}
+
+		/**
+		 * The build log belongs to the caller and is left open.
+		 */
+		@Override
+		public void close() throws IOException {
+			forceEol();
+			console.flush();
+		}
+	}
+}
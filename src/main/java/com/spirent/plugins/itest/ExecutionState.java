@@ -0,0 +1,654 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.console.LineTransformationOutputStream;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+
+/**
+ * Execution plan and progress of an iTestRT run started by a build,
+ * persisted in the build directory. iTestRT is launched as a durable task,
+ * so it keeps running when the controller restarts; the next build of the
+ * job then either reattaches to it or runs only the test cases that had
+ * not finished.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ExecutionState {
+
+	private static final Logger LOGGER =
+			Logger.getLogger(ExecutionState.class.getName());
+
+	static final String FILE_NAME = "itest-execution.xml";
+	static final long MIN_POLL_INTERVAL = 250;
+	static final long MAX_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+	static final long SAVE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	/**
+	 * Longest wait for iTestRT to exit once stopped by the watchdog.
+	 */
+	static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Test cases of the whole build, in execution order.
+	 */
+	private List<String> testCases;
+	private int build;
+	/**
+	 * Test cases passed to the iTestRT process currently tracked.
+	 */
+	private List<String> launched;
+	/**
+	 * Parser of the output of the tracked iTestRT process, saved along with
+	 * how far the controller has read it, so that verdicts reported after a
+	 * restart go to the test cases that were running.
+	 */
+	private OutputParser parser;
+	private List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+	private Controller controller;
+	private String node;
+	private String workspace;
+	private String reportDir;
+	private boolean finished;
+	private int resumedBy;
+	/**
+	 * Axis run by this execution, null unless the build runs several.
+	 */
+	private String axis;
+
+	private transient XmlFile file;
+	private transient Watchdog watchdog;
+	/**
+	 * Test cases the watchdog kept from running by stopping iTestRT.
+	 */
+	private transient List<String> unfinished = new ArrayList<String>();
+
+	private ExecutionState(XmlFile file) {
+		this.file = file;
+	}
+
+	private Object readResolve() {
+		unfinished = new ArrayList<String>();
+		return this;
+	}
+
+	private static XmlFile fileOf(Run<?, ?> run) {
+		return new XmlFile(Jenkins.XSTREAM2,
+				new File(run.getRootDir(), FILE_NAME));
+	}
+
+	private static XmlFile fileOf(Run<?, ?> run, String axis) {
+		return axis == null ? fileOf(run) : new XmlFile(Jenkins.XSTREAM2,
+				new File(run.getRootDir(), "itest-execution-" + axis + ".xml"));
+	}
+
+	/**
+	 * @return the state saved by a build, or null if it has none
+	 */
+	public static ExecutionState load(Run<?, ?> run) {
+		XmlFile file = fileOf(run);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			ExecutionState state = (ExecutionState) file.read();
+			state.file = file;
+			return state;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the state of the execution of a build without axes, or of
+	 * every axis of a build with several, in no particular order
+	 */
+	public static List<ExecutionState> loadAll(Run<?, ?> run) {
+		List<ExecutionState> states = new ArrayList<ExecutionState>();
+		File[] files = run.getRootDir().listFiles();
+		if (files == null) {
+			return states;
+		}
+		for (File f : files) {
+			if (!f.getName().startsWith("itest-execution")
+					|| !f.getName().endsWith(".xml")) {
+				continue;
+			}
+			XmlFile file = new XmlFile(Jenkins.XSTREAM2, f);
+			try {
+				ExecutionState state = (ExecutionState) file.read();
+				state.file = file;
+				states.add(state);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Create the state of a new execution.
+	 * @param build build running the test cases
+	 * @param testCases all test cases of the build
+	 * @param reportDir directory iTestRT writes reports to, may be null
+	 */
+	public static ExecutionState create(AbstractBuild<?, ?> build,
+			List<String> testCases, FilePath reportDir) {
+		return create(build, testCases, reportDir, null);
+	}
+
+	/**
+	 * Create the state of the execution of one axis of a build. Only the
+	 * execution of a build without axes is resumed after a restart.
+	 * @param build build running the test cases
+	 * @param testCases test cases of the axis
+	 * @param reportDir directory iTestRT writes reports to, may be null
+	 * @param axis axis name, or null if the build has no axes
+	 */
+	public static ExecutionState create(AbstractBuild<?, ?> build,
+			List<String> testCases, FilePath reportDir, String axis) {
+		ExecutionState state = new ExecutionState(fileOf(build, axis));
+		state.build = build.getNumber();
+		state.testCases = new ArrayList<String>(testCases);
+		state.reportDir = reportDir == null ? null : reportDir.getRemote();
+		state.axis = axis;
+		return state;
+	}
+
+	/**
+	 * Find the execution of the earlier build of the same test cases that
+	 * was cut short by a controller restart, and claim it for this build.
+	 * Only a build scheduled to resume it claims it; a build that failed
+	 * for another reason is not resumed by the next one.
+	 * @param build the new build
+	 * @param testCases test cases of the new build
+	 * @return the interrupted execution, or null
+	 */
+	public static ExecutionState claimInterrupted(AbstractBuild<?, ?> build,
+			List<String> testCases) {
+		ResumeCause cause = build.getCause(ResumeCause.class);
+		AbstractBuild<?, ?> previous = cause == null
+				? null : build.getProject().getBuildByNumber(cause.getBuild());
+		if (previous == null || previous.isBuilding()) {
+			return null;
+		}
+
+		ExecutionState state = load(previous);
+		if (state == null || state.finished || state.resumedBy != 0
+				|| !state.testCases.equals(testCases)) {
+			return null;
+		}
+
+		state.resumedBy = build.getNumber();
+		state.save();
+		return state;
+	}
+
+	/**
+	 * Keep tracking a claimed execution in the build that resumed it, so
+	 * that its progress and any relaunch of iTestRT are saved with that
+	 * build. The earlier build keeps its copy, marked as resumed.
+	 * @param build the build that claimed the execution
+	 */
+	public void moveTo(AbstractBuild<?, ?> build) {
+		file = fileOf(build, axis);
+		resumedBy = 0;
+		save();
+	}
+
+	/**
+	 * @return test cases that have no verdict yet
+	 */
+	public List<String> getRemaining() {
+		Set<String> done = new HashSet<String>();
+		for (TestCaseResult result : results) {
+			done.add(result.getUri());
+		}
+		List<String> remaining = new ArrayList<String>();
+		for (String testCase : testCases) {
+			if (!done.contains(testCase)) {
+				remaining.add(testCase);
+			}
+		}
+		return remaining;
+	}
+
+	public List<TestCaseResult> getResults() {
+		return results;
+	}
+
+	/**
+	 * Merge the verdicts of every attempt, the last attempt of a test case
+	 * replacing earlier ones.
+	 * @return final result of each test case that reported a verdict, in
+	 * execution order
+	 */
+	public List<TestCaseResult> getVerdicts() {
+		Map<String, TestCaseResult> last =
+				new LinkedHashMap<String, TestCaseResult>();
+		for (TestCaseResult result : results) {
+			last.put(result.getUri(), result);
+		}
+		List<TestCaseResult> verdicts = new ArrayList<TestCaseResult>();
+		for (String testCase : testCases) {
+			TestCaseResult result = last.remove(testCase);
+			if (result != null) {
+				verdicts.add(result);
+			}
+		}
+		//results for URIs iTestRT reported in another spelling
+		verdicts.addAll(last.values());
+		return verdicts;
+	}
+
+	/**
+	 * @return test cases whose final verdict is not a pass
+	 */
+	public List<String> getFailed() {
+		List<String> failed = new ArrayList<String>();
+		for (TestCaseResult result : getVerdicts()) {
+			if (!result.isPassed()) {
+				failed.add(result.getUri());
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * @return true if a test case was run more than once
+	 */
+	public boolean isRetried() {
+		return results.size() > getVerdicts().size();
+	}
+
+	/**
+	 * @return test cases passed to the last iTestRT process
+	 */
+	public List<String> getLaunched() {
+		return launched;
+	}
+
+	/**
+	 * @return test cases launched but not run because the watchdog stopped
+	 * iTestRT, empty unless it did
+	 */
+	public List<String> getUnfinished() {
+		return unfinished;
+	}
+
+	/**
+	 * Stop iTestRT when it is stuck on a test case.
+	 * @param watchdog watchdog, or null for none
+	 */
+	void setWatchdog(Watchdog watchdog) {
+		this.watchdog = watchdog;
+	}
+
+	/**
+	 * @return build that started this execution
+	 */
+	public int getBuild() {
+		return build;
+	}
+
+	/**
+	 * @return directory iTestRT wrote reports to, or null if none or
+	 * its node is offline
+	 */
+	public FilePath getReportDir() {
+		FilePath ws = workspace();
+		return ws == null || reportDir == null
+				? null : new FilePath(ws.getChannel(), reportDir);
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * @return axis name, or null if the build has no axes
+	 */
+	public String getAxis() {
+		return axis;
+	}
+
+	/**
+	 * @return true if the iTestRT process of this execution still runs
+	 */
+	public boolean isAlive(TaskListener listener) {
+		if (controller == null || finished) {
+			return false;
+		}
+		try {
+			FilePath ws = workspace();
+			return ws != null
+					&& controller.exitStatus(ws, launcher(listener)) == null;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Launch iTestRT on the build's node.
+	 * @param command iTestRT command
+	 * @param tests test cases passed in the command
+	 */
+	public void launch(AbstractBuild<?, ?> build, Launcher launcher,
+			TaskListener listener, String command, List<String> tests)
+					throws IOException, InterruptedException {
+		FilePath ws = build.getWorkspace();
+		EnvVars env = build.getEnvironment(listener);
+		DurableTask task = launcher.isUnix()
+				? new BourneShellScript(command)
+				: new WindowsBatchScript(command);
+		controller = task.launch(env, ws, launcher, listener);
+		node = build.getBuiltOnStr();
+		workspace = ws.getRemote();
+		launched = new ArrayList<String>(tests);
+		parser = new OutputParser(launched);
+		unfinished = new ArrayList<String>();
+		finished = false;
+		save();
+	}
+
+	/**
+	 * Copy the output of the tracked iTestRT process to the log until it
+	 * exits, recording each verdict as it is reported. If the watchdog
+	 * finds it stuck, it is stopped and the test case it was running given
+	 * a timeout verdict; the test cases it did not get to are then
+	 * {@link #getUnfinished() unfinished}.
+	 * @param logs if not null, the output of each test case is written to
+	 * a compressed log of its own and only summarized in the build log
+	 * @param progress if not null, updated as test cases complete
+	 * @return exit code of iTestRT
+	 * @throws AbortException if iTestRT was stopped but did not exit, so
+	 * that it must not be launched again
+	 */
+	public int await(TaskListener listener, TestCaseLogsAction logs,
+			ProgressAction progress) throws IOException, InterruptedException {
+		FilePath ws = workspace();
+		if (ws == null) {
+			throw new IOException(node + " is offline");
+		}
+		Launcher launcher = launcher(listener);
+		if (parser == null) {
+			//saved by a version that did not keep the parser
+			parser = new OutputParser(launched);
+		}
+		LineTransformationOutputStream output = logs != null
+				? new SpoolingOutputStream(listener.getLogger(), parser, logs,
+						axis)
+				: new ParsingOutputStream(listener.getLogger(), parser);
+
+		//results parsed before a restart are already recorded and shown
+		int recorded = parser.getResults().size();
+		int reported = recorded;
+		long interval = MIN_POLL_INTERVAL;
+		long saved = System.currentTimeMillis();
+		if (watchdog != null) {
+			watchdog.start();
+		}
+		try {
+			while (true) {
+				boolean wrote = controller.writeLog(ws, output);
+				if (progress != null) {
+					reported = progress.update(parser, reported, axis);
+				}
+				Integer exitStatus = controller.exitStatus(ws, launcher);
+				if (exitStatus != null) {
+					controller.writeLog(ws, output);
+					output.close();
+					if (progress != null) {
+						progress.update(parser, reported, axis);
+					}
+					record(parser, recorded);
+					finished = true;
+					save();
+					controller.cleanup(ws);
+					return exitStatus;
+				}
+
+				String stuck = watchdog == null
+						? null : watchdog.check(parser.getCurrent(), wrote);
+				if (stuck != null) {
+					Integer exit = stop(stuck, ws, launcher, listener, output,
+							parser);
+					if (progress != null) {
+						progress.update(parser, reported, axis);
+					}
+					record(parser, recorded);
+					finished = true;
+					save();
+					controller.cleanup(ws);
+					if (exit == null) {
+						//another iTestRT would share the testbed with it
+						throw new AbortException("iTestRT did not exit within "
+								+ TimeUnit.MILLISECONDS.toSeconds(STOP_TIMEOUT)
+								+ " s of being stopped, not launching it again");
+					}
+					return exit;
+				}
+
+				if (parser.getResults().size() > recorded
+						|| System.currentTimeMillis() - saved > SAVE_INTERVAL) {
+					recorded = record(parser, recorded);
+					save();
+					saved = System.currentTimeMillis();
+				}
+
+				Thread.sleep(interval);
+				interval = wrote ? MIN_POLL_INTERVAL
+						: Math.min(interval * 2, MAX_POLL_INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			Jenkins jenkins = Jenkins.getInstance();
+			if (jenkins == null || !jenkins.isTerminating()) {
+				//aborted by the user, not by a restart
+				controller.stop(ws, launcher);
+				finished = true;
+			}
+			record(parser, recorded);
+			save();
+			throw e;
+		}
+	}
+
+	/**
+	 * Dump the processes of the build, kill the process tree of iTestRT
+	 * and give the test case it was running a timeout verdict.
+	 * @param stuck why iTestRT is stopped
+	 * @return exit code of iTestRT, null if it did not exit in time
+	 */
+	private Integer stop(String stuck, FilePath ws, Launcher launcher,
+			TaskListener listener, LineTransformationOutputStream output,
+			OutputParser parser) throws IOException, InterruptedException {
+		PrintStream logger = listener.getLogger();
+		logger.println("Watchdog: " + stuck + ", stopping iTestRT");
+		watchdog.dump(ws.getChannel(), logger);
+		controller.stop(ws, launcher);
+		Integer exitStatus = null;
+		long stopped = System.currentTimeMillis();
+		while (exitStatus == null
+				&& System.currentTimeMillis() - stopped < STOP_TIMEOUT) {
+			Thread.sleep(MIN_POLL_INTERVAL);
+			exitStatus = controller.exitStatus(ws, launcher);
+		}
+		controller.writeLog(ws, output);
+		output.close();
+
+		TestCaseResult result = parser.timeOut(stuck,
+				System.currentTimeMillis());
+		if (result != null) {
+			//same format as iTestRT, so the verdict is found in the log
+			logger.println("Timed out: " + result.getUri());
+			logger.println("Execution status:  Timeout");
+		}
+		Set<String> done = new HashSet<String>();
+		for (TestCaseResult r : parser.getResults()) {
+			done.add(r.getUri());
+		}
+		for (String testCase : launched) {
+			if (!done.contains(testCase)) {
+				unfinished.add(testCase);
+			}
+		}
+		return exitStatus;
+	}
+
+	/**
+	 * Write the verdicts of an interrupted execution to the log in the
+	 * format used by iTestRT, so that they count towards this build.
+	 */
+	public void replayResults(PrintStream logger) {
+		for (TestCaseResult result : results) {
+			logger.println("Completed by build #" + build + ": "
+					+ result.getUri());
+			logger.println("Execution status:  "
+					+ result.getVerdict().name().charAt(0)
+					+ result.getVerdict().name().substring(1).toLowerCase());
+		}
+	}
+
+	private int record(OutputParser parser, int recorded) {
+		List<TestCaseResult> parsed = parser.getResults();
+		for (int i = recorded; i < parsed.size(); i++) {
+			results.add(parsed.get(i));
+		}
+		return parsed.size();
+	}
+
+	private FilePath workspace() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null || workspace == null) {
+			return null;
+		}
+		Computer computer = node == null || node.isEmpty()
+				? jenkins.toComputer() : jenkins.getComputer(node);
+		VirtualChannel channel = computer == null
+				? null : computer.getChannel();
+		return channel == null ? null : new FilePath(channel, workspace);
+	}
+
+	private Launcher launcher(TaskListener listener) throws IOException {
+		Jenkins jenkins = Jenkins.getInstance();
+		Node n = jenkins == null ? null
+				: (node == null || node.isEmpty() ? jenkins : jenkins.getNode(node));
+		if (n == null) {
+			throw new IOException("Node " + node + " no longer exists");
+		}
+		return n.createLauncher(listener);
+	}
+
+	public synchronized void save() {
+		try {
+			file.write(this);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot save " + file, e);
+		}
+	}
+
+	/**
+	 * Start a new build for every iTest job whose last build was running
+	 * iTestRT when the controller stopped.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void resumeInterrupted() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return;
+		}
+		for (AbstractProject<?, ?> project
+				: jenkins.getAllItems(AbstractProject.class)) {
+			if (!ITest.isUsedBy(project)) {
+				continue;
+			}
+			AbstractBuild<?, ?> last = project.getLastBuild();
+			ExecutionState state = last == null ? null : load(last);
+			if (state != null && !state.finished && state.resumedBy == 0) {
+				LOGGER.info("Resuming iTest execution of "
+						+ last.getFullDisplayName());
+				project.scheduleBuild2(0, new ResumeCause(last.getNumber()));
+			}
+		}
+	}
+
+	/**
+	 * Build started to finish an execution interrupted by a restart.
+	 */
+	public static class ResumeCause extends Cause {
+		private final int build;
+
+		public ResumeCause(int build) {
+			this.build = build;
+		}
+
+		public int getBuild() {
+			return build;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Resuming iTest execution of build #" + build
+					+ " interrupted by a restart";
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.Connection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Periodically checks that the license server and the test report database
+ * can be reached and caches the outcome, so that builds and the global
+ * configuration page never wait on a network connection themselves.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+@Extension
+public class HealthMonitor extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER =
+			Logger.getLogger(HealthMonitor.class.getName());
+
+	static final long PERIOD = Long.getLong(
+			HealthMonitor.class.getName() + ".period",
+			TimeUnit.MINUTES.toMillis(1));
+	static final int PROBE_TIMEOUT = Integer.getInteger(
+			HealthMonitor.class.getName() + ".timeout", 5000);
+	static final int DEFAULT_LICENSE_PORT = 27000;
+
+	/**
+	 * Database probes run on a thread of their own because JDBC connection
+	 * attempts cannot always be interrupted. There is only one, so that a
+	 * database that hangs holds up one thread rather than one per period.
+	 */
+	private static final ExecutorService PROBES =
+			Executors.newSingleThreadExecutor(new NamingThreadFactory(
+					new DaemonThreadFactory(), "iTest health probe"));
+	/**
+	 * Database probe submitted last, guarded by the class.
+	 */
+	private static Future<Status> lastProbe;
+
+	private static volatile Status licenseServer = Status.UNKNOWN;
+	private static volatile Status database = Status.UNKNOWN;
+
+	public HealthMonitor() {
+		super("iTest health monitor");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return PERIOD;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		probeAll();
+	}
+
+	/**
+	 * @return last known state of the license server
+	 */
+	public static Status getLicenseServerStatus() {
+		return licenseServer;
+	}
+
+	/**
+	 * @return last known state of the test report database
+	 */
+	public static Status getDatabaseStatus() {
+		return database;
+	}
+
+	/**
+	 * Refresh the cached status in the background, e.g. after the global
+	 * configuration has changed.
+	 */
+	public static void requestProbe() {
+		Timer.get().submit(new Runnable() {
+			public void run() {
+				probeAll();
+			}
+		});
+	}
+
+	static void probeAll() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return;
+		}
+		ITest.Descriptor global =
+				jenkins.getDescriptorByType(ITest.Descriptor.class);
+		if (global == null) {
+			return;
+		}
+
+		if (isEmpty(global.getLsIPAddress())) {
+			licenseServer = Status.NOT_CONFIGURED;
+		} else {
+			licenseServer = probeLicenseServer(global.getLsIPAddress(),
+					global.getLsPort());
+		}
+
+		if (isEmpty(global.getDbUsername())) {
+			database = Status.NOT_CONFIGURED;
+		} else {
+			database = probeDatabase(global.getDbType(), global.getDbURI(),
+					global.getDatabaseUrl(), global.getDbUsername(),
+					global.getDbPassword());
+		}
+	}
+
+	/**
+	 * Open and close a TCP connection to the license server.
+	 * @param host license server IP address or host name
+	 * @param port port number, default port if empty
+	 */
+	public static Status probeLicenseServer(String host, String port) {
+		long start = System.currentTimeMillis();
+		Socket socket = new Socket();
+		try {
+			int portNumber = isEmpty(port)
+					? DEFAULT_LICENSE_PORT : Integer.parseInt(port.trim());
+			socket.connect(new InetSocketAddress(host, portNumber),
+					PROBE_TIMEOUT);
+			return Status.up(System.currentTimeMillis() - start);
+		} catch (NumberFormatException e) {
+			return Status.down("Invalid port number " + port);
+		} catch (IOException e) {
+			return Status.down("Cannot reach license server: "
+					+ e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close probe socket", e);
+			}
+		}
+	}
+
+	/**
+	 * Open and close a database connection, giving up after the probe
+	 * timeout.
+	 */
+	public static Status probeDatabase(final String dbType,
+			final String dbURI, final String url, final String username,
+			final String password) {
+		final long start = System.currentTimeMillis();
+		Future<Status> probe;
+		synchronized (HealthMonitor.class) {
+			if (lastProbe != null && !lastProbe.isDone()) {
+				return Status.down("No response from database to the "
+						+ "previous probe yet");
+			}
+			probe = PROBES.submit(new Callable<Status>() {
+				public Status call() throws Exception {
+					ITest.Descriptor.loadDriver(dbType, dbURI);
+					Connection connection = ConnectionPool.connect(url,
+							username, password, PROBE_TIMEOUT, PROBE_TIMEOUT);
+					try {
+						return Status.up(System.currentTimeMillis() - start);
+					} finally {
+						connection.close();
+					}
+				}
+			});
+			lastProbe = probe;
+		}
+
+		try {
+			return probe.get(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			probe.cancel(true);
+			return Status.down("No response from database within "
+					+ PROBE_TIMEOUT + " ms");
+		} catch (InterruptedException e) {
+			probe.cancel(true);
+			Thread.currentThread().interrupt();
+			return Status.UNKNOWN;
+		} catch (Exception e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			return Status.down("Cannot connect to database: "
+					+ cause.getMessage());
+		}
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.trim().isEmpty();
+	}
+
+	/**
+	 * Reachability and latency of a server at the time it was probed.
+	 */
+	public static final class Status {
+
+		public enum State { UNKNOWN, NOT_CONFIGURED, UP, DOWN }
+
+		static final Status UNKNOWN = new Status(State.UNKNOWN, 0, 0,
+				"Not checked yet");
+		static final Status NOT_CONFIGURED = new Status(State.NOT_CONFIGURED,
+				0, 0, "Not configured");
+
+		private final State state;
+		private final long latency;
+		private final long checkedAt;
+		private final String message;
+
+		private Status(State state, long latency, long checkedAt,
+				String message) {
+			this.state = state;
+			this.latency = latency;
+			this.checkedAt = checkedAt;
+			this.message = message;
+		}
+
+		static Status up(long latency) {
+			return new Status(State.UP, latency, System.currentTimeMillis(),
+					"Reachable");
+		}
+
+		static Status down(String message) {
+			return new Status(State.DOWN, 0, System.currentTimeMillis(),
+					message);
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public boolean isUp() {
+			return state == State.UP;
+		}
+
+		public boolean isDown() {
+			return state == State.DOWN;
+		}
+
+		/**
+		 * @return connection time in milliseconds when reachable
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		public long getCheckedAt() {
+			return checkedAt;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			if (checkedAt == 0) {
+				return message;
+			}
+			String time = new SimpleDateFormat("HH:mm:ss").format(
+					new Date(checkedAt));
+			return isUp()
+					? message + " (" + latency + " ms, checked " + time + ")"
+					: message + " (checked " + time + ")";
+		}
+	}
+
+	/**
+	 * Keeps iTest builds in the queue while the license server or the
+	 * database is known to be unreachable, if configured to wait.
+	 */
+	@Extension
+	public static class QueueGate extends QueueTaskDispatcher {
+
+		@Override
+		public CauseOfBlockage canRun(Queue.Item item) {
+			if (!ITest.isUsedBy(item.task)) {
+				return null;
+			}
+			Jenkins jenkins = Jenkins.getInstance();
+			ITest.Descriptor global = jenkins == null ? null
+					: jenkins.getDescriptorByType(ITest.Descriptor.class);
+			if (global == null || !ITest.Descriptor.POLICY_WAIT.equals(
+					global.getUnreachablePolicy())) {
+				return null;
+			}
+
+			if (licenseServer.isDown()) {
+				return blockage("Waiting for iTest license server: "
+						+ licenseServer.getMessage());
+			}
+			if (database.isDown() && !isEmpty(global.getDbUsername())) {
+				return blockage("Waiting for iTest test report database: "
+						+ database.getMessage());
+			}
+			return null;
+		}
+
+		private static CauseOfBlockage blockage(final String description) {
+			return new CauseOfBlockage() {
+				@Override
+				public String getShortDescription() {
+					return description;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,594 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Keeps the iTAR files exported from iTest projects on each agent, keyed by
+ * a hash of the files of the project, so that a project whose files did
+ * not change since any build on the agent exported it is not exported
+ * again. The cache is shared by every job and build on the agent; it is
+ * only read and written under a lock on a file of the cache, and the least
+ * recently used iTAR files are removed once it grows past its size limit.
+ * <p>
+ * The size limit is set with the system property
+ * <code>com.spirent.plugins.itest.ITarCache.maxBytes</code> on the
+ * controller; 0 disables the cache.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class ITarCache {
+
+	static final String DIR_NAME = "itest-itar-cache";
+	static final String EXTENSION = ".itar";
+	static final String INDEX = ".itest-hash-index";
+	static final String LOCK = ".itest-lock";
+	static final String TEMP_SUFFIX = ".itest-tmp";
+	/**
+	 * Most bytes of iTAR files kept on an agent.
+	 */
+	static final long MAX_BYTES = Long.getLong(
+			ITarCache.class.getName() + ".maxBytes", 10L * 1024 * 1024 * 1024);
+
+	private ITarCache() {
+	}
+
+	/**
+	 * @param node agent running the build
+	 * @return cache directory on the agent, or null if the cache is
+	 * disabled or the agent is offline
+	 */
+	static FilePath cacheFor(Node node) {
+		FilePath root = node == null || MAX_BYTES <= 0
+				? null : node.getRootPath();
+		return root == null ? null : root.child(DIR_NAME);
+	}
+
+	/**
+	 * Copy the cached iTAR file of every project whose files are unchanged
+	 * to the export directory.
+	 * @param path iTest workspace, also the export directory
+	 * @param cache cache directory on the same agent
+	 * @param itestcli iTestCLI command, part of the key
+	 * @param projects names of the projects to export
+	 * @param logger build log
+	 * @return projects that still have to be exported
+	 */
+	static Lookup restore(FilePath path, FilePath cache, String itestcli,
+			List<String> projects, PrintStream logger)
+			throws IOException, InterruptedException {
+		Lookup lookup = path.act(new Restore(cache.getRemote(), itestcli,
+				projects));
+		for (Map.Entry<String, String> hit : lookup.hits.entrySet()) {
+			logger.println("iTAR cache hit for " + hit.getKey() + " ("
+					+ hit.getValue().substring(0, 12) + ")");
+		}
+		return lookup;
+	}
+
+	/**
+	 * Add the iTAR files exported for the projects missing from the cache,
+	 * and remove the least recently used ones past the size limit.
+	 * @param path iTest workspace, also the export directory
+	 * @param cache cache directory on the same agent
+	 * @param lookup result of {@link #restore}
+	 * @param logger build log
+	 * @return keys stored and evicted
+	 */
+	static Stored store(FilePath path, FilePath cache, Lookup lookup,
+			PrintStream logger) throws IOException, InterruptedException {
+		return store(path, cache, lookup, MAX_BYTES, logger);
+	}
+
+	/**
+	 * @param maxBytes size limit of the cache
+	 * @see #store(FilePath, FilePath, Lookup, PrintStream)
+	 */
+	static Stored store(FilePath path, FilePath cache, Lookup lookup,
+			long maxBytes, PrintStream logger)
+			throws IOException, InterruptedException {
+		Stored stored = path.act(new Store(cache.getRemote(), lookup.misses,
+				lookup.before, maxBytes));
+		for (String message : stored.messages) {
+			logger.println(message);
+		}
+		return stored;
+	}
+
+	/**
+	 * Projects found in the cache and projects to export.
+	 */
+	static final class Lookup implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, String> hits =
+				new LinkedHashMap<String, String>();
+		private final Map<String, String> misses =
+				new LinkedHashMap<String, String>();
+		/**
+		 * Modification time of the iTAR file of each miss before the export.
+		 */
+		private final Map<String, Long> before = new HashMap<String, Long>();
+
+		/**
+		 * @return names of the projects to export
+		 */
+		List<String> getMisses() {
+			return new ArrayList<String>(misses.keySet());
+		}
+
+		/**
+		 * @return key of every project found in the iTest workspace
+		 */
+		Map<String, String> getKeys() {
+			Map<String, String> keys = new LinkedHashMap<String, String>(hits);
+			for (Map.Entry<String, String> miss : misses.entrySet()) {
+				if (miss.getValue() != null) {
+					keys.put(miss.getKey(), miss.getValue());
+				}
+			}
+			return keys;
+		}
+
+		/**
+		 * @return keys of the projects restored from the cache
+		 */
+		Collection<String> getHits() {
+			return hits.values();
+		}
+	}
+
+	/**
+	 * Keys added to and removed from the cache by a store.
+	 */
+	static final class Stored implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> messages = new ArrayList<String>();
+		private final List<String> keys = new ArrayList<String>();
+		private final List<String> evicted = new ArrayList<String>();
+
+		/**
+		 * @return keys of the iTAR files stored
+		 */
+		List<String> getKeys() {
+			return keys;
+		}
+
+		/**
+		 * @return keys of the iTAR files evicted to make room, possibly
+		 * exported by other jobs
+		 */
+		List<String> getEvicted() {
+			return evicted;
+		}
+	}
+
+	/**
+	 * Excludes other threads of the agent as well as other processes
+	 * sharing the cache directory; a file lock alone is held by the whole
+	 * process.
+	 */
+	private static final class CacheLock {
+		private static final ReentrantLock THREADS = new ReentrantLock();
+
+		private final RandomAccessFile file;
+		private final FileLock lock;
+
+		CacheLock(File dir) throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			THREADS.lock();
+			RandomAccessFile f = null;
+			try {
+				f = new RandomAccessFile(new File(dir, LOCK), "rw");
+				lock = f.getChannel().lock();
+				file = f;
+			} catch (IOException e) {
+				if (f != null) {
+					f.close();
+				}
+				THREADS.unlock();
+				throw e;
+			}
+		}
+
+		void release() throws IOException {
+			try {
+				lock.release();
+				file.close();
+			} finally {
+				THREADS.unlock();
+			}
+		}
+	}
+
+	private static final class Restore
+			extends MasterToSlaveFileCallable<Lookup> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cache;
+		private final String itestcli;
+		private final List<String> projects;
+
+		Restore(String cache, String itestcli, List<String> projects) {
+			this.cache = cache;
+			this.itestcli = itestcli;
+			this.projects = new ArrayList<String>(projects);
+		}
+
+		public Lookup invoke(File path, VirtualChannel channel)
+				throws IOException {
+			File dir = new File(cache);
+			Lookup lookup = new Lookup();
+
+			Map<String, String> index;
+			CacheLock lock = new CacheLock(dir);
+			try {
+				index = readIndex(dir);
+			} finally {
+				lock.release();
+			}
+
+			//hash without the lock, files unchanged since last time are not
+			//read again
+			Map<String, String> updated = new HashMap<String, String>();
+			for (String project : projects) {
+				File files = new File(path, project);
+				lookup.misses.put(project, files.isDirectory()
+						? key(project, files, index, updated) : null);
+			}
+
+			lock = new CacheLock(dir);
+			try {
+				if (!updated.isEmpty()) {
+					index = readIndex(dir);
+					index.putAll(updated);
+					for (Iterator<String> it = index.keySet().iterator();
+							it.hasNext();) {
+						if (!new File(it.next()).isFile()) {
+							it.remove();
+						}
+					}
+					writeIndex(dir, index);
+				}
+
+				for (Iterator<Map.Entry<String, String>> it =
+						lookup.misses.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<String, String> miss = it.next();
+					if (miss.getValue() == null) {
+						continue;
+					}
+					File entry = new File(dir, miss.getValue());
+					File cached = new File(entry, miss.getKey() + EXTENSION);
+					if (!cached.isFile()) {
+						lookup.before.put(miss.getKey(),
+								new File(path, cached.getName()).lastModified());
+					} else {
+						copy(cached, new File(path, cached.getName()));
+						entry.setLastModified(System.currentTimeMillis());
+						lookup.hits.put(miss.getKey(), miss.getValue());
+						it.remove();
+					}
+				}
+			} finally {
+				lock.release();
+			}
+			return lookup;
+		}
+
+		/**
+		 * @return hash of iTestCLI, the project name and the path and
+		 * content of every file of the project
+		 */
+		private String key(String project, File files,
+				Map<String, String> index, Map<String, String> updated)
+				throws IOException {
+			TreeMap<String, File> sorted = new TreeMap<String, File>();
+			list(files, "", sorted);
+			MessageDigest digest = sha1();
+			digest.update((itestcli + "\n" + project + "\n").getBytes("UTF-8"));
+			for (Map.Entry<String, File> file : sorted.entrySet()) {
+				digest.update((file.getKey() + "\0"
+						+ hash(file.getValue(), index, updated) + "\n")
+						.getBytes("UTF-8"));
+			}
+			return Util.toHexString(digest.digest());
+		}
+	}
+
+	private static final class Store
+			extends MasterToSlaveFileCallable<Stored> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cache;
+		private final Map<String, String> misses;
+		private final Map<String, Long> before;
+		private final long maxBytes;
+
+		Store(String cache, Map<String, String> misses,
+				Map<String, Long> before, long maxBytes) {
+			this.cache = cache;
+			this.misses = new LinkedHashMap<String, String>(misses);
+			this.before = new HashMap<String, Long>(before);
+			this.maxBytes = maxBytes;
+		}
+
+		public Stored invoke(File path, VirtualChannel channel)
+				throws IOException {
+			File dir = new File(cache);
+			Stored result = new Stored();
+			List<String> messages = result.messages;
+			Set<String> stored = new HashSet<String>();
+
+			CacheLock lock = new CacheLock(dir);
+			try {
+				for (Map.Entry<String, String> miss : misses.entrySet()) {
+					File itar = new File(path, miss.getKey() + EXTENSION);
+					if (miss.getValue() == null) {
+						messages.add("iTAR of " + miss.getKey() + " not cached: "
+								+ "no project folder in the iTest workspace");
+					} else if (!itar.isFile() || Long.valueOf(itar.lastModified())
+							.equals(before.get(miss.getKey()))) {
+						//an older export must not be stored as this one
+						messages.add("iTAR of " + miss.getKey() + " not cached: "
+								+ "iTestCLI did not write " + itar);
+					} else {
+						File entry = new File(dir, miss.getValue());
+						if (!entry.isDirectory() && !entry.mkdirs()) {
+							throw new IOException("Cannot create " + entry);
+						}
+						copy(itar, new File(entry, itar.getName()));
+						stored.add(entry.getName());
+						result.keys.add(entry.getName());
+						messages.add("Cached iTAR of " + miss.getKey() + " ("
+								+ miss.getValue().substring(0, 12) + ")");
+					}
+				}
+				evict(dir, stored, result);
+			} finally {
+				lock.release();
+			}
+			return result;
+		}
+
+		/**
+		 * Remove the least recently used entries until the cache fits its
+		 * size limit, keeping the entries just stored.
+		 */
+		private void evict(File dir, Set<String> keep, Stored result) {
+			File[] entries = dir.listFiles();
+			if (entries == null) {
+				return;
+			}
+			final Map<File, Long> used = new HashMap<File, Long>();
+			long total = 0;
+			for (File entry : entries) {
+				if (entry.isDirectory()) {
+					used.put(entry, entry.lastModified());
+					total += size(entry);
+				}
+			}
+			if (total <= maxBytes) {
+				return;
+			}
+
+			List<File> oldest = new ArrayList<File>(used.keySet());
+			Collections.sort(oldest, new Comparator<File>() {
+				public int compare(File a, File b) {
+					return used.get(a).compareTo(used.get(b));
+				}
+			});
+			for (File entry : oldest) {
+				if (total <= maxBytes) {
+					break;
+				}
+				if (keep.contains(entry.getName())) {
+					continue;
+				}
+				long size = size(entry);
+				try {
+					Util.deleteRecursive(entry);
+					total -= size;
+					result.evicted.add(entry.getName());
+					result.messages.add("Evicted "
+							+ entry.getName().substring(0, 12)
+							+ " from the iTAR cache");
+				} catch (IOException e) {
+					result.messages.add("Cannot evict " + entry + ": " + e);
+				}
+			}
+		}
+	}
+
+	private static void list(File dir, String prefix,
+			Map<String, File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String name = prefix + child.getName();
+			if (child.isDirectory()) {
+				list(child, name + "/", files);
+			} else if (!name.endsWith(EXTENSION)
+					&& !name.endsWith(TEMP_SUFFIX)) {
+				files.put(name, child);
+			}
+		}
+	}
+
+	/**
+	 * @return SHA-1 of a file, from the index if its size and modification
+	 * time did not change
+	 */
+	private static String hash(File file, Map<String, String> index,
+			Map<String, String> updated) throws IOException {
+		String path = file.getAbsolutePath();
+		String stamp = file.length() + ":" + file.lastModified() + ":";
+		String known = index.get(path);
+		if (known != null && known.startsWith(stamp)) {
+			return known.substring(stamp.length());
+		}
+
+		MessageDigest digest = sha1();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String hash = Util.toHexString(digest.digest());
+		updated.put(path, stamp + hash);
+		return hash;
+	}
+
+	private static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static long size(File dir) {
+		long size = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.isDirectory() ? size(file) : file.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Copy through a temporary file, so that a partly copied iTAR file is
+	 * never seen under its name.
+	 */
+	private static void copy(File from, File to) throws IOException {
+		File temp = new File(to.getPath() + TEMP_SUFFIX);
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel source = in.getChannel();
+				long size = source.size();
+				long copied = 0;
+				while (copied < size) {
+					copied += source.transferTo(copied, size - copied,
+							out.getChannel());
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!temp.renameTo(to) && !(to.delete() && temp.renameTo(to))) {
+			temp.delete();
+			throw new IOException("Cannot replace " + to);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> readIndex(File dir) throws IOException {
+		File file = new File(dir, INDEX);
+		if (!file.isFile()) {
+			return new HashMap<String, String>();
+		}
+		ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (Map<String, String>) in.readObject();
+		} catch (ClassNotFoundException e) {
+			//hash every file again
+			return new HashMap<String, String>();
+		} catch (IOException e) {
+			//a truncated index is rewritten by the next lookup
+			return new HashMap<String, String>();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeIndex(File dir, Map<String, String> index)
+			throws IOException {
+		File temp = new File(dir, INDEX + TEMP_SUFFIX);
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeObject(new HashMap<String, String>(index));
+		} finally {
+			out.close();
+		}
+		File file = new File(dir, INDEX);
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+}
@@ -24,12 +24,20 @@
 
 package com.spirent.plugins.itest;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.SubTask;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.CommandInterpreter;
@@ -38,25 +46,38 @@ import hudson.tasks.Shell;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.ListBoxModel.Option;
+import hudson.util.StreamTaskListener;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -100,17 +121,79 @@ public class ITest extends CommandInterpreter {
 	 * @since 1.0
 	 */
 	public final String dbCustomTag; 
+	/**
+	 * @since 1.1
+	 */
+	private int testbedPriority; 
+	/**
+	 * @since 1.1
+	 */
+	private int retries; 
+	/**
+	 * @since 1.1
+	 */
+	private String manifest = ""; 
+	/**
+	 * @since 1.1
+	 */
+	private String manifestFilter = ""; 
+	/**
+	 * @since 1.1
+	 */
+	private boolean spoolLogs; 
+	/**
+	 * @since 1.1
+	 */
+	private String sweepMode = ParameterSweep.CARTESIAN; 
+	/**
+	 * @since 1.1
+	 */
+	private int maxParallelAxes; 
+	/**
+	 * @since 1.1
+	 */
+	private String workspaceSource = ""; 
+	/**
+	 * @since 1.1
+	 */
+	private boolean preExport; 
+	/**
+	 * @since 1.1
+	 */
+	private boolean adaptiveParallelism; 
+	/**
+	 * @since 1.1
+	 */
+	private int inactivityTimeout; 
+	/**
+	 * @since 1.1
+	 */
+	private int testCaseTimeout; 
 
 	private final static boolean BUILD_FAILURE = false; 
 	private final static boolean BUILD_SUCCESS = true; 
 
 	private transient String safeTestbed = ""; 
 	private transient String safeParamFile = ""; 
+	private transient List<String> safeParams; 
 
 	private transient String iTestCommand = ""; 
 	private transient String itestcli = ""; 
 	private transient String itestrt = ""; 
+	private transient VariableResolver vars; 
+	private transient Map<String, List<String>> caseParams; 
+	private transient TestCaseLogsAction logs; 
+	private transient ProgressAction progress; 
 	private transient ArrayList<String> testCaseNames; 
+	private transient List<String> testsToRun; 
+	private transient ExecutionState resumed; 
+	private transient boolean reattach; 
+	private transient ExecutionState execution; 
+	private transient List<ExecutionAxis> axes; 
+	private transient Map<ExecutionAxis, ExecutionState> axisStates; 
+	private transient AxisResultsAction axisResults; 
+	private transient String reportPath; 
+	private transient String syncedWorkspace; 
 
 	@DataBoundConstructor
 	public ITest(String workspace, String projects,
@@ -127,95 +210,947 @@ public class ITest extends CommandInterpreter {
 		this.dbCustomTag = dbCustomTag;
 	}
 
+	/**
+	 * @return priority among builds waiting for the same testbed 
+	 */
+	public int getTestbedPriority() { 
+		return testbedPriority; 
+	}
+
+	@DataBoundSetter 
+	public void setTestbedPriority(int testbedPriority) { 
+		this.testbedPriority = testbedPriority; 
+	}
+
+	/**
+	 * @return number of times failed test cases are run again 
+	 */
+	public int getRetries() { 
+		return retries; 
+	}
+
+	@DataBoundSetter 
+	public void setRetries(int retries) { 
+		this.retries = Math.max(0, retries); 
+	}
+
+	/**
+	 * @return path of the suite manifest, empty if none is used 
+	 */
+	public String getManifest() { 
+		return manifest == null ? "" : manifest; 
+	}
+
+	@DataBoundSetter 
+	public void setManifest(String manifest) { 
+		this.manifest = manifest; 
+	}
+
+	/**
+	 * @return tag filter selecting test cases from the suite manifest 
+	 */
+	public String getManifestFilter() { 
+		return manifestFilter == null ? "" : manifestFilter; 
+	}
+
+	@DataBoundSetter 
+	public void setManifestFilter(String manifestFilter) { 
+		this.manifestFilter = manifestFilter; 
+	}
+
+	/**
+	 * @return true if test case output is kept in compressed logs of its 
+	 * own instead of the build log 
+	 */
+	public boolean isSpoolLogs() { 
+		return spoolLogs; 
+	}
+
+	@DataBoundSetter 
+	public void setSpoolLogs(boolean spoolLogs) { 
+		this.spoolLogs = spoolLogs; 
+	}
+
+	/**
+	 * @return how parameters with several values are combined 
+	 */
+	public String getSweepMode() { 
+		return sweepMode == null ? ParameterSweep.CARTESIAN : sweepMode; 
+	}
+
+	@DataBoundSetter 
+	public void setSweepMode(String sweepMode) { 
+		this.sweepMode = sweepMode; 
+	}
+
+	/**
+	 * @return iTest workspace on the controller copied to the node before 
+	 * each build, empty if the workspace is already on the node 
+	 */
+	public String getWorkspaceSource() { 
+		return workspaceSource == null ? "" : workspaceSource; 
+	}
+
+	@DataBoundSetter 
+	public void setWorkspaceSource(String workspaceSource) { 
+		this.workspaceSource = workspaceSource; 
+	}
+
+	/**
+	 * @return most axes run at the same time, 0 for all of them 
+	 */
+	public int getMaxParallelAxes() { 
+		return maxParallelAxes; 
+	}
+
+	@DataBoundSetter 
+	public void setMaxParallelAxes(int maxParallelAxes) { 
+		this.maxParallelAxes = Math.max(0, maxParallelAxes); 
+	}
+
+	/**
+	 * @return true to warm up the workspace copy and iTAR cache of the 
+	 * likely agent as soon as an SCM change queues a build 
+	 */
+	public boolean isPreExport() { 
+		return preExport; 
+	}
+
+	@DataBoundSetter 
+	public void setPreExport(boolean preExport) { 
+		this.preExport = preExport; 
+	}
+
+	/**
+	 * @return true to adapt the number of axes running at the same time 
+	 * to the load of the node 
+	 */
+	public boolean isAdaptiveParallelism() { 
+		return adaptiveParallelism; 
+	}
+
+	@DataBoundSetter 
+	public void setAdaptiveParallelism(boolean adaptiveParallelism) { 
+		this.adaptiveParallelism = adaptiveParallelism; 
+	}
+
+	/**
+	 * @return minutes iTestRT may write nothing before it is stopped, 0 
+	 * for no limit 
+	 */
+	public int getInactivityTimeout() { 
+		return inactivityTimeout; 
+	}
+
+	@DataBoundSetter 
+	public void setInactivityTimeout(int inactivityTimeout) { 
+		this.inactivityTimeout = Math.max(0, inactivityTimeout); 
+	}
+
+	/**
+	 * @return minutes a test case may run before iTestRT is stopped, 0 for 
+	 * no limit 
+	 */
+	public int getTestCaseTimeout() { 
+		return testCaseTimeout; 
+	}
+
+	@DataBoundSetter 
+	public void setTestCaseTimeout(int testCaseTimeout) { 
+		this.testCaseTimeout = Math.max(0, testCaseTimeout); 
+	}
+
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, 
 			final Launcher launcher, final BuildListener listener) {
 
 		ITest.Descriptor global = new ITest.Descriptor();  
 		testCaseNames = new ArrayList<String>(); 
-		itestcli = global.cliPath.isEmpty() ? "itestcli" : global.cliPath; 
-		itestrt = global.rtPath.isEmpty() ? "itestrt" : global.rtPath; 
+		execution = null; 
+		axisStates = null; 
+		axisResults = null; 
+		caseParams = new HashMap<String, List<String>>(); 
+		progress = build.getAction(ProgressAction.class); 
+		if (progress == null) { 
+			progress = new ProgressAction(); 
+			build.addAction(progress); 
+		}
+		if (build.getAction(ResultsApiAction.class) == null) { 
+			build.addAction(new ResultsApiAction()); 
+		}
+		logs = null; 
+		if (spoolLogs) { 
+			logs = build.getAction(TestCaseLogsAction.class); 
+			if (logs == null) { 
+				logs = new TestCaseLogsAction(); 
+				build.addAction(logs); 
+			}
+		}
+		itestcli = ITestCommand.itestcli(global); 
+		itestrt = ITestCommand.itestrt(global); 
 
-		processBuildWorkspace(build); 
+		long licenseWait = LicenseThrottle.takeWait(build.getQueueId()); 
+		if (licenseWait > 0) { 
+			listener.getLogger().println("Waited " + licenseWait / 1000 
+					+ " s in the queue for an iTest license"); 
+		}
 
-		if (!canGenerateITARFile(projects.replaceAll("\\s+",""), 
+		if (!licenseServerIsReachable(global, listener)) { 
+			return BUILD_FAILURE; 
+		}
+
+		try { 
+			vars = VariableResolver.of(build, listener); 
+		} catch (IOException e) { 
+			e.printStackTrace(listener.error("Cannot read build environment")); 
+			return BUILD_FAILURE; 
+		} catch (InterruptedException e) { 
+			listener.error("Interrupted while reading build environment"); 
+			return BUILD_FAILURE; 
+		}
+
+		if (!processBuildWorkspace(build, listener)) { 
+			return BUILD_FAILURE; 
+		}
+
+		syncedWorkspace = null; 
+		WorkspaceSync.Lease synced = null; 
+		if (!getWorkspaceSource().isEmpty()) { 
+			try { 
+				SpeculativeExport.await(build.getProject().getFullName(), 
+						build.getBuiltOnStr(), listener.getLogger()); 
+			} catch (InterruptedException e) { 
+				listener.error("Interrupted while waiting for iTAR export"); 
+				return BUILD_FAILURE; 
+			}
+			synced = syncWorkspace(build, listener); 
+			if (synced == null) { 
+				return BUILD_FAILURE; 
+			}
+			syncedWorkspace = synced.getRemote(); 
+			AffinityLoadBalancer.recordWorkspace(build.getProject().getFullName(), 
+					build.getBuiltOnStr(), 
+					vars.resolve(getWorkspaceSource()).trim(), synced); 
+		}
+		try { 
+			return runInWorkspace(global, build, launcher, listener); 
+		} finally { 
+			if (synced != null) { 
+				synced.release(); 
+			}
+		}
+	}
+
+	/**
+	 * Select, export and run the test cases once the iTest workspace is 
+	 * available on the node. 
+	 * @param global
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 */
+	private boolean runInWorkspace(final ITest.Descriptor global, 
+			final AbstractBuild<?, ?> build, final Launcher launcher, 
+			final BuildListener listener) { 
+
+		if (!parseTestCases(build, listener)) { 
+			return BUILD_FAILURE; 
+		}
+		if (isMatrix()) { 
+			//only a build without axes is resumed after a restart 
+			testsToRun = testCaseNames; 
+			resumed = null; 
+			reattach = false; 
+		} else { 
+			resumeInterruptedExecution(build, listener); 
+		}
+
+		//a running iTestRT already has its iTAR files 
+		if (!reattach && !canGenerateITARFile(projects.replaceAll("\\s+",""), 
 				build, launcher, listener)) { 
 			return BUILD_FAILURE; 
 		}
 
-		String licenseServerURI = global.lsIPAddress; 
-		if(!global.lsPort.isEmpty()) { 
-			licenseServerURI += ":" + global.lsPort; 
+		iTestCommand = ITestCommand.run(itestrt, 
+				ITestCommand.licenseServer(global), parseWorkspace(build), 
+				safeTestbed, safeParams, safeParamFile, 
+				testsToRun); 
+
+		if (!testReportRequired) { 
+			if (!testsSucceed(global, build, launcher, listener)) { 
+				return BUILD_FAILURE; 
+			}
+		} else { 
+			if (!canInitializeReport(build, launcher, listener) 
+					|| !testsSucceed(global, build, launcher, listener)
+					|| !canFinalizeReport(build, launcher, listener)) { 
+				return BUILD_FAILURE; 
+			}
+		}
+
+		ingestResults(global, build, listener); 
+
+		return testPassed(build) ? BUILD_SUCCESS : BUILD_FAILURE; 
+	}
+
+	/**
+	 * Queue per test case results for the itest_results table of the test 
+	 * report database when configured. iTestRT still stores its own 
+	 * results there through the database options. 
+	 * @param global
+	 * @param build
+	 * @param listener
+	 */
+	private void ingestResults(final ITest.Descriptor global, 
+			final AbstractBuild<?, ?> build, final BuildListener listener) { 
+
+		if (!global.ingestResults || global.dbUsername.isEmpty()) { 
+			return; 
 		}
 
-		iTestCommand = itestrt + " --licenseServer " + licenseServerURI 
-				+ " --itar " + parseWorkspace(build); 
+		//results of each axis are told apart by their tag 
+		Map<String, List<TestCaseResult>> results = 
+				new LinkedHashMap<String, List<TestCaseResult>>(); 
+		if (axisStates != null) { 
+			for (Map.Entry<ExecutionAxis, ExecutionState> e 
+					: axisStates.entrySet()) { 
+				results.put(dbCustomTag.isEmpty() ? e.getKey().getName() 
+						: dbCustomTag + "-" + e.getKey().getName(), 
+						e.getValue().getVerdicts()); 
+			}
+		} else { 
+			results.put(dbCustomTag, execution != null 
+					? execution.getVerdicts() 
+					: OutputParser.parse(build.getLogFile(), testCaseNames)); 
+		}
+		try { 
+			Descriptor.loadDriver(global.dbType, global.dbURI); 
+			ResultIngestor ingestor = ResultIngestor.getInstance(
+					global.getDatabaseUrl(), global.dbUsername, 
+					global.dbPassword); 
+			int queued = 0; 
+			for (Map.Entry<String, List<TestCaseResult>> e 
+					: results.entrySet()) { 
+				queued += ingestor.submit(build.getProject().getFullName(), 
+						build.getNumber(), e.getKey(), e.getValue(), 
+						listener.getLogger()); 
+			}
+			listener.getLogger().println("Queued " + queued 
+					+ " test case results for the test report database"); 
+		} catch (ClassNotFoundException e) { 
+			listener.error("Cannot load database driver: " + e.getMessage()); 
+		} catch (InterruptedException e) { 
+			e.printStackTrace(); 
+		}
+	}
 
-		addTestExecutionOptions(); 
-		parseTestCases(build); 
+	/**
+	 * Pick up the execution of an earlier build that was interrupted by a 
+	 * controller restart: reattach to its iTestRT if that is still running, 
+	 * otherwise run only the test cases it did not finish. 
+	 * @param build
+	 * @param listener
+	 */
+	private void resumeInterruptedExecution(final AbstractBuild<?, ?> build, 
+			final BuildListener listener) { 
+
+		testsToRun = testCaseNames; 
+		resumed = ExecutionState.claimInterrupted(build, testCaseNames); 
+		reattach = resumed != null && resumed.isAlive(listener); 
+		if (resumed == null) { 
+			return; 
+		}
+
+		resumed.replayResults(listener.getLogger()); 
+		if (reattach) { 
+			listener.getLogger().println("Reattaching to iTestRT started by " 
+					+ "build #" + resumed.getBuild()); 
+			resumed.moveTo(build); 
+		} else { 
+			testsToRun = resumed.getRemaining(); 
+			listener.getLogger().println("Resuming build #" 
+					+ resumed.getBuild() + ": " + testsToRun.size() + " of " 
+					+ testCaseNames.size() + " test cases left to run"); 
+		}
+	}
+
+	/**
+	 * Check the cached license server status before spending time on 
+	 * exporting iTAR files. 
+	 * @param global
+	 * @param listener
+	 * @return false if the build should fail now 
+	 */
+	private boolean licenseServerIsReachable(final ITest.Descriptor global, 
+			final BuildListener listener) { 
+
+		HealthMonitor.Status status = HealthMonitor.getLicenseServerStatus(); 
+		if (!status.isDown()) { 
+			return true; 
+		}
+
+		if (Descriptor.POLICY_FAIL.equals(global.getUnreachablePolicy())) { 
+			listener.error("License server is unreachable: " + status); 
+			return false; 
+		}
+
+		listener.getLogger().println("Warning: license server was "
+				+ "unreachable at last check: " + status); 
+		return true; 
+	}
+
+	/**
+	 * @return the results API of the job 
+	 */
+	@Override
+	public Collection<? extends Action> getProjectActions(
+			AbstractProject<?, ?> project) { 
+		return Collections.singletonList(
+				new ResultsApiAction.JobAction(project)); 
+	}
+
+	/**
+	 * @param task
+	 * @return true if the task is a project with an iTest build step 
+	 */
+	static boolean isUsedBy(final SubTask task) { 
+		return task instanceof Project 
+				&& ((Project<?, ?>) task).getBuildersList()
+						.get(ITest.class) != null; 
+	}
+
+	/**
+	 * @param task
+	 * @return license seats a build of the task takes at most: one per 
+	 * iTestRT process its iTest build steps may run at the same time 
+	 */
+	static int seatsUsedBy(final SubTask task) { 
+		int seats = 0; 
+		if (task instanceof Project) { 
+			for (ITest step : ((Project<?, ?>) task).getBuildersList()
+					.getAll(ITest.class)) { 
+				seats = Math.max(seats, step.getParallelProcesses()); 
+			}
+		}
+		return seats; 
+	}
+
+	/**
+	 * Count the axes from the configuration, before build variables are 
+	 * resolved, so that it is known while the build is queued. 
+	 * @return iTestRT processes the step may run at the same time 
+	 */
+	int getParallelProcesses() { 
+		int count; 
+		try { 
+			count = Math.max(1, ExecutionAxis.split(testbed).size()) 
+					* Math.max(1, ExecutionAxis.split(paramFile).size()) 
+					* ParameterSweep.parse(splitParams(params))
+							.combinations(getSweepMode()).size(); 
+		} catch (IllegalArgumentException e) { 
+			//the build fails before running iTestRT 
+			return 1; 
+		}
+		return maxParallelAxes > 0 ? Math.min(maxParallelAxes, count) : count; 
+	}
+
+	/**
+	 * Resolve build variables in the testbed, parameter file paths and 
+	 * parameters. Several comma separated testbeds or parameter files, and 
+	 * parameters with several values, make one axis per combination. 
+	 * @param build
+	 * @param listener
+	 * @return false if the parameter sweep is invalid 
+	 */
+	private boolean processBuildWorkspace(AbstractBuild<?, ?> build, 
+			BuildListener listener) {
+		safeTestbed = vars.resolve(testbed); 
+		safeParamFile = vars.resolve(paramFile); 
+		try { 
+			ParameterSweep sweep = ParameterSweep.parse(
+					vars.resolveParams(splitParams(params))); 
+			safeParams = sweep.getFixed(); 
+			axes = ExecutionAxis.expand(ExecutionAxis.split(safeTestbed), 
+					ExecutionAxis.split(safeParamFile), 
+					sweep.combinations(getSweepMode())); 
+		} catch (IllegalArgumentException e) { 
+			listener.error(e.getMessage()); 
+			return BUILD_FAILURE; 
+		}
+		if (isMatrix()) { 
+			//each axis adds its own testbed, parameter file and values 
+			safeTestbed = ""; 
+			safeParamFile = ""; 
+		}
+		return BUILD_SUCCESS; 
+	}
+
+	/**
+	 * @return true if the test cases run against several axes 
+	 */
+	private boolean isMatrix() { 
+		return axes != null && axes.size() > 1; 
+	}
+
+	/**
+	 * Run iTestRT commands. 
+	 * 
+	 * @param command
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 */
+	private boolean buildSucceeds(final String command, final AbstractBuild<?, ?> build, 
+			final Launcher launcher, final BuildListener listener) { 
+
+		String uniformPathSeparators = 
+				ITestCommand.uniformPathSeparators(command); 
+		CommandInterpreter runner = 
+				getCommandInterpreter(launcher, uniformPathSeparators); 
+		ResourceSampler sampler = 
+				ResourceSampler.start(build, "report setup", listener); 
+		try {
+			runner.perform(build, launcher, listener);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally { 
+			ResourceSampler.stop(sampler); 
+		}
+
+		return consoleOutputIsValid(build); 
+	}
+
+	/**
+	 * Run iTestRT as a durable task, recording progress in the build so the 
+	 * execution can be resumed if the controller restarts meanwhile. 
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 */
+	private boolean runTests(final AbstractBuild<?, ?> build, 
+			final Launcher launcher, final BuildListener listener) { 
+
+		progress.start(testCaseNames, build); 
+		if (resumed != null) { 
+			for (TestCaseResult result : resumed.getVerdicts()) { 
+				progress.add(result); 
+			}
+		}
+
+		long lastAttempt = 0; 
+		try { 
+			ExecutionState state; 
+			if (reattach) { 
+				state = resumed; 
+			} else { 
+				state = ExecutionState.create(build, testCaseNames, 
+						testReportRequired ? reportDir(build) : null); 
+				if (resumed != null) { 
+					state.getResults().addAll(resumed.getResults()); 
+				}
+				execution = state; 
+				if (testsToRun.isEmpty()) { 
+					state.save(); 
+					copyResumedReports(build); 
+					return consoleOutputIsValid(build); 
+				}
+				state.launch(build, launcher, listener, 
+						script(iTestCommand, launcher), testsToRun); 
+			}
+			execution = state; 
+			awaitTests(state, iTestCommand, build, launcher, listener); 
+			copyResumedReports(build); 
+
+			//testPassed judges the verdicts merged across retries 
+			lastAttempt = retryFailedTests(state, iTestCommand, build, 
+					launcher, listener); 
+		} catch (AbortException e) { 
+			listener.error(e.getMessage()); 
+			return BUILD_FAILURE; 
+		} catch (IOException e) { 
+			Util.displayIOException(e, listener); 
+			e.printStackTrace(listener.fatalError("Failed to run iTestRT")); 
+			return BUILD_FAILURE; 
+		} catch (InterruptedException e) { 
+			listener.error("Interrupted while running iTestRT"); 
+			return BUILD_FAILURE; 
+		} finally { 
+			progress.finish(); 
+		}
+
+		//errors reported by failed attempts do not fail the build 
+		return consoleOutputIsValid(build, lastAttempt); 
+	}
+
+	/**
+	 * Copy the reports the interrupted execution wrote before the restart 
+	 * to the report directory of this build. 
+	 * @param build
+	 */
+	private void copyResumedReports(final AbstractBuild<?, ?> build) 
+			throws IOException, InterruptedException { 
+
+		if (resumed != null && testReportRequired) { 
+			FilePath previousReports = resumed.getReportDir(); 
+			if (previousReports != null && previousReports.exists()) { 
+				previousReports.copyRecursiveTo("**/*", reportDir(build)); 
+			}
+		}
+	}
+
+	/**
+	 * Run the test cases that did not pass again, up to the configured 
+	 * number of times. Reports of a retry replace those of the failed 
+	 * attempt, since iTestRT names them after the test case. 
+	 * @param state
+	 * @param command iTestRT command of the first attempt 
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 * @return offset in the build log the last attempt started at, 0 if no 
+	 * test case was run again 
+	 */
+	private long retryFailedTests(final ExecutionState state, 
+			final String command, final AbstractBuild<?, ?> build, 
+			final Launcher launcher, final TaskListener listener) 
+					throws IOException, InterruptedException { 
+
+		long lastAttempt = 0; 
+		for (int attempt = 1; attempt <= retries; attempt++) { 
+			List<String> failed = state.getFailed(); 
+			if (failed.isEmpty()) { 
+				break; 
+			}
+			listener.getLogger().println("Retrying " + failed.size() 
+					+ " failed test cases (attempt " + attempt + " of " 
+					+ retries + "): " + failed); 
+			listener.getLogger().flush(); 
+			lastAttempt = build.getLogFile().length(); 
+			state.launch(build, launcher, listener, 
+					script(ITestCommand.withTests(command, failed), 
+							launcher), failed); 
+			awaitTests(state, command, build, launcher, listener); 
+		}
+		return lastAttempt; 
+	}
+
+	/**
+	 * Wait for iTestRT to finish. When the watchdog stops it on a test case 
+	 * that hangs, iTestRT is launched again with the test cases it did not 
+	 * get to, rather than failing the build, unless it did not exit. 
+	 * @param state
+	 * @param command iTestRT command the test cases were launched with 
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 */
+	private void awaitTests(final ExecutionState state, final String command, 
+			final AbstractBuild<?, ?> build, final Launcher launcher, 
+			final TaskListener listener) 
+					throws IOException, InterruptedException { 
+
+		if (inactivityTimeout > 0 || testCaseTimeout > 0) { 
+			state.setWatchdog(new Watchdog(
+					TimeUnit.MINUTES.toMillis(inactivityTimeout), 
+					TimeUnit.MINUTES.toMillis(testCaseTimeout), 
+					progress.getExpected(), 
+					build.getEnvironment(listener).get("BUILD_TAG"))); 
+		}
+		state.await(listener, logs, progress); 
+		List<String> left = state.getUnfinished(); 
+		int before = state.getLaunched().size(); 
+		while (!left.isEmpty()) { 
+			if (left.size() >= before) { 
+				//no test case completed, launching again would not either 
+				listener.error("Not continuing with the " + left.size() 
+						+ " test cases left, none completed: " + left); 
+				break; 
+			}
+			before = left.size(); 
+			listener.getLogger().println("Continuing with the " + left.size() 
+					+ " test cases left: " + left); 
+			state.launch(build, launcher, listener, 
+					script(ITestCommand.withTests(command, left), launcher), 
+					left); 
+			state.await(listener, logs, progress); 
+			left = state.getUnfinished(); 
+		}
+	}
+
+	/**
+	 * Add the test cases selected from the suite manifest, with their own 
+	 * parameters. 
+	 * @param build
+	 * @param listener
+	 */
+	private void addManifestTestCases(final AbstractBuild<?, ?> build, 
+			final BuildListener listener) 
+					throws IOException, InterruptedException { 
+
+		FilePath file = new FilePath(build.getWorkspace().getChannel(), 
+				vars.resolvePath(getManifest(), build.getWorkspace())); 
+		List<SuiteManifest.Entry> selected = SuiteManifest.select(file, 
+				vars.resolve(getManifestFilter())); 
+
+		Set<String> known = new HashSet<String>(testCaseNames); 
+		long duration = 0; 
+		for (SuiteManifest.Entry entry : selected) { 
+			String uri = vars.resolveTestCase(entry.getUri()); 
+			if (known.add(uri)) { 
+				testCaseNames.add(uri); 
+				duration += entry.getDuration(); 
+			}
+			if (!entry.getParams().isEmpty()) { 
+				caseParams.put(uri, vars.resolveParams(entry.getParams())); 
+			}
+		}
+		listener.getLogger().println("Selected " + selected.size() 
+				+ " test cases from " + file.getName() + ", expected to run " 
+				+ Util.getTimeSpanString(duration * 1000)); 
+	}
+
+	/**
+	 * Script running an iTestRT command, in batches of test cases if the 
+	 * command is too long for one line or test cases have parameters of 
+	 * their own. 
+	 * @param command
+	 * @param launcher
+	 */
+	private String script(final String command, final Launcher launcher) { 
+		return ITestCommand.uniformPathSeparators(ITestCommand.batches(
+				command, caseParams, launcher.isUnix())); 
+	}
+
+	/**
+	 * @param build
+	 * @return directory the test reports of a build are written to 
+	 */
+	private static FilePath reportDir(final AbstractBuild<?, ?> build) { 
+		return build.getWorkspace().child("jenkins_test_reports_" 
+				+ build.getId()); 
+	}
+
+	/**
+	 * Run the iTestRT command while holding the testbed, so that no other 
+	 * build drives the same topology at the same time. 
+	 * @param global
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 */
+	private boolean testsSucceed(final ITest.Descriptor global, 
+			final AbstractBuild<?, ?> build, final Launcher launcher, 
+			final BuildListener listener) { 
+
+		ResourceSampler sampler = 
+				ResourceSampler.start(build, "run", listener); 
+		try { 
+			return runTestsOnTestbeds(global, build, launcher, listener); 
+		} finally { 
+			ResourceSampler.stop(sampler); 
+		}
+	}
+
+	private boolean runTestsOnTestbeds(final ITest.Descriptor global, 
+			final AbstractBuild<?, ?> build, final Launcher launcher, 
+			final BuildListener listener) { 
+
+		if (isMatrix()) { 
+			return runAxes(global, build, launcher, listener); 
+		}
+		if (testbed.isEmpty()) { 
+			return runTests(build, launcher, listener); 
+		}
 
-		if (!testReportRequired) { 
-			if (!buildSucceeds(iTestCommand, build, launcher, listener) 
-					|| !testPassed(build)) { 
-				return BUILD_FAILURE; 
-			}
-		} else { 
-			if (!canInitializeReport(build, launcher, listener) 
-					|| !buildSucceeds(iTestCommand, build, launcher, listener)
-					|| !canFinalizeReport(build, launcher, listener)
-					|| !testPassed(build)) { 
-				return BUILD_FAILURE; 
-			}
+		TestbedLockManager.Lease lease; 
+		try { 
+			lease = TestbedLockManager.get().acquire(safeTestbed, 
+					build.getFullDisplayName(), 
+					build.getProject().getFullName(), testbedPriority, 
+					global.getTestbedShareCount(), 
+					global.getTestbedScheduling(), listener.getLogger()); 
+		} catch (InterruptedException e) { 
+			listener.error("Interrupted while waiting for testbed " 
+					+ safeTestbed); 
+			return BUILD_FAILURE; 
 		}
 
-		return BUILD_SUCCESS; 
+		try { 
+			return runTests(build, launcher, listener); 
+		} finally { 
+			lease.release(); 
+		}
 	}
 
 	/**
-	 * Expand environment variables for ${WORKSPACE}. 
+	 * Run the test cases against every axis at the same time, one iTestRT 
+	 * process per axis. The iTAR files were exported once and are shared. 
+	 * @param global
 	 * @param build
-	 * @param src 
+	 * @param launcher
+	 * @param listener
 	 */
-	private void processBuildWorkspace(AbstractBuild<?, ?> build) {
+	private boolean runAxes(final ITest.Descriptor global, 
+			final AbstractBuild<?, ?> build, final Launcher launcher, 
+			final BuildListener listener) { 
+
+		List<String> planned = new ArrayList<String>(); 
+		for (ExecutionAxis axis : axes) { 
+			for (String testCase : testsToRun) { 
+				planned.add(ExecutionAxis.qualify(axis.getName(), testCase)); 
+			}
+		}
+		int parallel = maxParallelAxes > 0 
+				? Math.min(maxParallelAxes, axes.size()) : axes.size(); 
+		progress.start(planned, build, parallel); 
+		listener.getLogger().println("Running " + testsToRun.size() 
+				+ " test cases on " + axes.size() + " axes, " + parallel 
+				+ " at a time: " + axes); 
+		final AdaptiveConcurrency concurrency = adaptiveParallelism 
+				&& axes.size() > 1 
+				? AdaptiveConcurrency.forNode(build.getBuiltOn()) : null; 
+		if (concurrency != null) { 
+			concurrency.join(listener.getLogger()); 
+			progress.watch(concurrency); 
+		}
 
-		String front = build.getWorkspace() + ""; 
+		ExecutorService pool = Executors.newFixedThreadPool(parallel); 
+		List<Future<ExecutionState>> runs = 
+				new ArrayList<Future<ExecutionState>>(); 
+		final long[] durations = new long[axes.size()]; 
+		try { 
+			for (int i = 0; i < axes.size(); i++) { 
+				final int index = i; 
+				final ExecutionAxis axis = axes.get(i); 
+				runs.add(pool.submit(new Callable<ExecutionState>() { 
+					public ExecutionState call() throws Exception { 
+						long start = System.currentTimeMillis(); 
+						try { 
+							return runAxis(global, axis, build, launcher, 
+									listener, concurrency); 
+						} finally { 
+							durations[index] = 
+									System.currentTimeMillis() - start; 
+						}
+					}
+				})); 
+			}
 
-		if (testbed.toUpperCase().contains("WORKSPACE")) { 
-			String back = testbed.substring(testbed.indexOf("}") + 1); 
-			safeTestbed = front + back; 
-		} else { 
-			safeTestbed = testbed; 
+			axisStates = new LinkedHashMap<ExecutionAxis, ExecutionState>(); 
+			axisResults = new AxisResultsAction(); 
+			for (int i = 0; i < axes.size(); i++) { 
+				ExecutionAxis axis = axes.get(i); 
+				try { 
+					ExecutionState state = runs.get(i).get(); 
+					axisStates.put(axis, state); 
+					axisResults.add(axis, state.getVerdicts(), 
+							testsToRun.size(), durations[i], null); 
+				} catch (ExecutionException e) { 
+					e.getCause().printStackTrace(listener.error("Axis " 
+							+ axis.getName() + " failed")); 
+					axisResults.add(axis, 
+							Collections.<TestCaseResult>emptyList(), 
+							testsToRun.size(), durations[i], 
+							String.valueOf(e.getCause().getMessage())); 
+				}
+			}
+		} catch (InterruptedException e) { 
+			//stops the iTestRT process of every axis 
+			pool.shutdownNow(); 
+			listener.error("Interrupted while running iTestRT"); 
+			return BUILD_FAILURE; 
+		} finally { 
+			pool.shutdown(); 
+			progress.finish(); 
+			if (concurrency != null) { 
+				concurrency.leave(listener.getLogger()); 
+			}
 		}
 
-		if (paramFile.toUpperCase().contains("WORKSPACE")) { 
-			String back = paramFile.substring(paramFile.indexOf("}") + 1); 
-			safeParamFile = front + back; 
-		} else { 
-			safeParamFile = paramFile; 
+		AxisResultsAction previous = build.getAction(AxisResultsAction.class); 
+		if (previous != null) { 
+			build.getActions().remove(previous); 
 		}
+		build.addAction(axisResults); 
+		for (AxisResultsAction.AxisResult axis : axisResults.getAxes()) { 
+			listener.getLogger().println("Axis " + axis.getName() + ": " 
+					+ axis.getPassed() + " of " + axis.getTotal() 
+					+ " test cases passed in " + axis.getDurationString()); 
+		}
+		for (ExecutionState state : axisStates.values()) { 
+			if (state.isRetried()) { 
+				//the log of the axes interleaves the errors of failed 
+				//attempts, testPassed judges the verdicts merged across 
+				//retries instead 
+				return BUILD_SUCCESS; 
+			}
+		}
+		return consoleOutputIsValid(build); 
 	}
 
 	/**
-	 * Run iTestRT commands. 
-	 * 
-	 * @param command
+	 * Run the test cases against one axis, holding its testbed meanwhile. 
+	 * Its output is prefixed with the axis name in the build log. 
+	 * @param global
+	 * @param axis
 	 * @param build
 	 * @param launcher
 	 * @param listener
+	 * @param concurrency controller of the axes running on the node, or 
+	 * null 
+	 * @return execution of the axis 
 	 */
-	private boolean buildSucceeds(final String command, final AbstractBuild<?, ?> build, 
-			final Launcher launcher, final BuildListener listener) { 
+	private ExecutionState runAxis(final ITest.Descriptor global, 
+			final ExecutionAxis axis, final AbstractBuild<?, ?> build, 
+			final Launcher launcher, final BuildListener listener, 
+			final AdaptiveConcurrency concurrency) 
+					throws IOException, InterruptedException { 
+
+		ExecutionAxis.PrefixedOutputStream out = 
+				new ExecutionAxis.PrefixedOutputStream(listener.getLogger(), 
+						axis.getName()); 
+		TaskListener axisListener = new StreamTaskListener(out); 
+		TestbedLockManager.Lease lease = null; 
+		boolean admitted = false; 
+		try { 
+			if (!axis.getTestbed().isEmpty()) { 
+				lease = TestbedLockManager.get().acquire(axis.getTestbed(), 
+						build.getFullDisplayName() + " " + axis.getName(), 
+						build.getProject().getFullName(), testbedPriority, global.getTestbedShareCount(), 
+						global.getTestbedScheduling(), 
+						axisListener.getLogger()); 
+			}
+			if (concurrency != null) { 
+				concurrency.acquire(); 
+				admitted = true; 
+			}
 
-		String uniformPathSeparators = command.replaceAll("\\\\", "/"); 
-		CommandInterpreter runner = 
-				getCommandInterpreter(launcher, uniformPathSeparators); 
-		try {
-			runner.perform(build, launcher, listener);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+			String command = ITestCommand.withSetup(iTestCommand, 
+					axis.getTestbed(), axis.getParams(), axis.getParamFile()); 
+			FilePath reports = null; 
+			if (testReportRequired) { 
+				reports = reportDir(build).child(axis.getName()); 
+				reports.mkdirs(); 
+				command += " --report " + reportPath + "/" + axis.getName() 
+						+ "/{tcfilename}.html"; 
+			}
 
-		return consoleOutputIsValid(build); 
+			ExecutionState state = ExecutionState.create(build, testsToRun, 
+					reports, axis.getName()); 
+			state.launch(build, launcher, axisListener, 
+					script(command, launcher), testsToRun); 
+			awaitTests(state, command, build, launcher, axisListener); 
+			retryFailedTests(state, command, build, launcher, axisListener); 
+			return state; 
+		} finally { 
+			if (admitted) { 
+				concurrency.release(); 
+			}
+			if (lease != null) { 
+				lease.release(); 
+			}
+			out.close(); 
+		}
 	}
 
 	/**
@@ -223,33 +1158,51 @@ public class ITest extends CommandInterpreter {
 	 * @param build 
 	 */
 	private String parseWorkspace(final AbstractBuild<?, ?> build) { 
+		if (syncedWorkspace != null) { 
+			return syncedWorkspace; 
+		}
+		return vars.resolvePath(workspace, build.getWorkspace()); 
+	}
 
-		String front = build.getWorkspace() + ""; 
+	/**
+	 * Bring the copy of the iTest workspace kept on the node up to date, 
+	 * sending only what changed since the last build on the node. 
+	 * @param build
+	 * @param listener
+	 * @return lease on a checkout of the copy for this build, or null if 
+	 * it cannot be synchronized 
+	 */
+	private WorkspaceSync.Lease syncWorkspace(final AbstractBuild<?, ?> build, 
+			final BuildListener listener) { 
+
+		File source = new File(vars.resolve(getWorkspaceSource()).trim()); 
+		if (!source.isDirectory()) { 
+			listener.error("iTest workspace " + source 
+					+ " does not exist on the controller"); 
+			return null; 
+		}
+		Node node = build.getBuiltOn(); 
+		FilePath cache = node == null 
+				? null : WorkspaceSync.cacheFor(node, source); 
+		if (cache == null) { 
+			listener.error("Node " + build.getBuiltOnStr() + " is offline"); 
+			return null; 
+		}
 
-		if (workspace.toUpperCase().contains("WORKSPACE")) { 
-			String back = workspace.substring(workspace.indexOf("}") + 1); 
-			return front + back; 
-		} 
-		
-		String regex = "[([A-Z]:\\\\)|/].*";
-		if (Pattern.matches(regex, workspace)) { 
-			return workspace; //full path was provided - Windows or *nix
-		} else if (workspace.isEmpty()) { 
-			//TODO these last two can be combined 
-			return build.getWorkspace() + ""; //relative path 
-		} else { 
-			//workspace is a relative path inside the Jenkins workspace 
-			return build.getWorkspace() + workspace; 
+		try { 
+			return WorkspaceSync.sync(source, cache, listener.getLogger()); 
+		} catch (IOException e) { 
+			Util.displayIOException(e, listener); 
+			e.printStackTrace(listener.error(
+					"Failed to synchronize iTest workspace")); 
+		} catch (InterruptedException e) { 
+			listener.error("Interrupted while synchronizing iTest workspace"); 
 		}
+		return null; 
 	}
 
 	private String expandEnvironmentVariables(String src){
-		String res = src;
-		Map<String, String> env = System.getenv();
-		for(String key : env.keySet()){
-			res = res.replaceAll("\\$"+key, env.get(key));
-		}
-		return res;
+		return vars.resolve(src); 
 	}
 
 	/**
@@ -282,13 +1235,15 @@ public class ITest extends CommandInterpreter {
 		}
 
 		try {
-			iTestCommand += " --report " + test.toURI()
-					+ "jenkins_test_reports_" + buildID 
-					+ "/{tcfilename}.html";
+			reportPath = test.toURI() + "jenkins_test_reports_" + buildID; 
 		} catch (Exception e) {
 			e.printStackTrace();
 			return BUILD_FAILURE; 
 		} 
+		//each axis reports to a directory of its own 
+		if (!isMatrix()) { 
+			iTestCommand += " --report " + reportPath + "/{tcfilename}.html";
+		}
 
 		addTestReportDatabaseOptions(); 
 		return BUILD_SUCCESS; 
@@ -317,9 +1272,17 @@ public class ITest extends CommandInterpreter {
 		for (String s : testCaseNames) { 
 			String temp = s.substring(s.lastIndexOf("/") + 1, 
 					s.lastIndexOf(".")); 
-			String report = reportName + "-" + temp; 
-			list.add(new Report(report, reportDir, 
-					temp + ".html", true, true)); 
+			if (!isMatrix()) { 
+				String report = reportName + "-" + temp; 
+				list.add(new Report(report, reportDir, 
+						temp + ".html", true, true)); 
+				continue; 
+			}
+			for (ExecutionAxis axis : axes) { 
+				String report = reportName + "-" + axis.getName() + "-" + temp; 
+				list.add(new Report(report, reportDir + "/" + axis.getName(), 
+						temp + ".html", true, true)); 
+			}
 		}
 
 		ReportPublisher publisher = new ReportPublisher(list);
@@ -341,36 +1304,64 @@ public class ITest extends CommandInterpreter {
 	 * @param listener
 	 */
 	private boolean consoleOutputIsValid(final AbstractBuild<?, ?> build) {  
+		return consoleOutputIsValid(build, 0); 
+	}
+
+	/**
+	 * Check console output for error messages written after an offset. 
+	 * @param build
+	 * @param from offset in the build log 
+	 */
+	private boolean consoleOutputIsValid(final AbstractBuild<?, ?> build, 
+			final long from) {  
 		File test = build.getLogFile();
 		Scanner scanner = null;
 		try {
-			scanner = new Scanner(test);
+			FileInputStream in = new FileInputStream(test); 
+			in.getChannel().position(from); 
+			scanner = new Scanner(in);
 			while (scanner.hasNextLine()) { 
-				String nextLine = scanner.nextLine(); 
-				//error messages generated by iTestCLI and iTestRT 
-				if (nextLine.contains("Error") 
-						|| nextLine.contains("cannot find the path")
-						|| nextLine.contains("valid directory")
-						|| nextLine.contains("No project to be exported")
-						|| nextLine.contains("Failed to generate report")) { 
+				if (reportsError(scanner.nextLine())) { 
 					return false; 
 				}
 			} 
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		} finally { 
-			scanner.close();
+			if (scanner != null) { 
+				scanner.close();
+			}
 		}
 
 		return true; 
 	}
 
+	/**
+	 * @param line line of output of iTestCLI or iTestRT 
+	 * @return true if it is an error message that fails the build 
+	 */
+	static boolean reportsError(final String line) { 
+		return line.contains("Error") 
+				|| line.contains("cannot find the path")
+				|| line.contains("valid directory")
+				|| line.contains("No project to be exported")
+				|| line.contains("Failed to generate report"); 
+	}
+
 	/**
 	 * Determine if all any test cases have failed. 
 	 * @param build
 	 * @return
 	 */
 	private boolean testPassed(final AbstractBuild<?, ?> build) {  
+		if (axisResults != null) { 
+			return axisResults.isPassed(); 
+		}
+		//verdicts merged across retries 
+		if (execution != null) { 
+			return execution.getFailed().isEmpty(); 
+		}
+
 		File test = build.getLogFile();
 		Scanner scanner = null;
 		try {
@@ -391,7 +1382,9 @@ public class ITest extends CommandInterpreter {
 	}
 
 	/**
-	 * Generate iTAR files using iTestCLI. 
+	 * Generate iTAR files using iTestCLI. Projects whose files did not 
+	 * change since a build on the node exported them are taken from the 
+	 * iTAR cache of the node instead. 
 	 * 
 	 * @param project
 	 * @param build
@@ -402,72 +1395,136 @@ public class ITest extends CommandInterpreter {
 			final AbstractBuild<?, ?> build, 
 			final Launcher launcher, final BuildListener listener) { 
 
-		//--exportProject accepts multiple projects separated 
-		//by comma but not spaces 
-
 		String path = parseWorkspace(build); 
-		String generateITAR = itestcli + " --workspace " + path
-				+ " --exportPath " + path + " --exportProject " 
-				+ project.replaceAll("\\s+",""); 
+		FilePath cache = ITarCache.cacheFor(build.getBuiltOn()); 
+		FilePath exportPath = build.getWorkspace() == null ? null 
+				: new FilePath(build.getWorkspace().getChannel(), path); 
+		ITarCache.Lookup lookup = null; 
+		String toExport = project; 
+
+		if (cache != null && exportPath != null) { 
+			try { 
+				lookup = ITarCache.restore(exportPath, cache, itestcli, 
+						Arrays.asList(project.split(",")), 
+						listener.getLogger()); 
+				AffinityLoadBalancer.recordITars(build.getProject().getFullName(), 
+						build.getBuiltOnStr(), lookup.getKeys(), lookup.getHits(), 
+						lookup.getHits().size(), 
+						lookup.getHits().size() + lookup.getMisses().size()); 
+				if (lookup.getMisses().isEmpty()) { 
+					listener.getLogger().println("All iTAR files of " + project 
+							+ " restored from the cache, iTestCLI not run"); 
+					return consoleOutputIsValid(build); 
+				}
+				toExport = Util.join(lookup.getMisses(), ","); 
+			} catch (IOException e) { 
+				e.printStackTrace(listener.error("iTAR cache unavailable, " 
+						+ "exporting " + project)); 
+				lookup = null; 
+			} catch (InterruptedException e) { 
+				Thread.currentThread().interrupt(); 
+				return false; 
+			}
+		}
+
+		String generateITAR = ITestCommand.export(itestcli, path, toExport); 
 
 		CommandInterpreter runner = 
 				getCommandInterpreter(launcher, generateITAR); 
 
+		boolean exported = false; 
+		ResourceSampler sampler = 
+				ResourceSampler.start(build, "export " + toExport, listener); 
 		try { 
-			runner.perform(build, launcher, listener);
+			exported = runner.perform(build, launcher, listener);
 		} catch (Exception e) { 
 			e.printStackTrace();
+		} finally { 
+			ResourceSampler.stop(sampler); 
 		}
 
-		return consoleOutputIsValid(build); 
+		boolean valid = consoleOutputIsValid(build); 
+		if (exported && valid && lookup != null) { 
+			try { 
+				ITarCache.Stored stored = ITarCache.store(exportPath, cache, 
+						lookup, listener.getLogger()); 
+				AffinityLoadBalancer.recordITars(build.getProject().getFullName(), 
+						build.getBuiltOnStr(), lookup.getKeys(), 
+						stored.getKeys(), 0, 0); 
+				AffinityLoadBalancer.forgetITars(build.getBuiltOnStr(), 
+						stored.getEvicted()); 
+			} catch (IOException e) { 
+				e.printStackTrace(listener.error("Cannot cache iTAR files")); 
+			} catch (InterruptedException e) { 
+				Thread.currentThread().interrupt(); 
+				return false; 
+			}
+		}
+		return valid; 
 	}
 
 	/**
-	 * Each test case must be preceded by --test option. 
+	 * Collect the test case URIs to pass to iTestRT, expanding patterns 
+	 * against the test case index of the iTest workspace. 
+	 * @param build
+	 * @param listener
+	 * @return true if at least one test case was found 
 	 */
-	private void parseTestCases(final AbstractBuild<?, ?> build) { 
+	private boolean parseTestCases(final AbstractBuild<?, ?> build, 
+			final BuildListener listener) { 
 
 		String[] multipleTestCases = testcases.replaceAll("\\s+","").split(","); 
-		String back = null, temp = null; 
+		List<String> entries = new ArrayList<String>(); 
 
 		for (String testCase: multipleTestCases) {
-			if (testCase.toUpperCase().contains("WORKSPACE")) { 
-				System.out.println("contains workspace");
-				back = testCase.substring(testCase.indexOf("}") + 1);
-				if (back.indexOf("/") == 0 || back.indexOf("\\") == 0) { 
-					System.out.println("Slash was found at beginning");
-					temp = "project://" + back.substring(1); 
-				} else { 
-
-					temp = "project://" + back; 
-				}
-			} else { 
-				//TODO assumes that test case URI starts with project://
-				temp = testCase; 
+			if (!testCase.isEmpty()) { 
+				entries.add(vars.resolveTestCase(testCase)); 
+			}
+		}
+
+		try { 
+			FilePath root = new FilePath(build.getWorkspace().getChannel(), 
+					parseWorkspace(build)); 
+			testCaseNames.addAll(TestCaseIndex.expand(root, 
+					TestCaseIndex.indexDirFor(build.getBuiltOn()), entries)); 
+			if (!getManifest().isEmpty()) { 
+				addManifestTestCases(build, listener); 
 			}
-			testCaseNames.add(new String(temp)); 
-			iTestCommand += " --test " + temp; 
+		} catch (IOException e) { 
+			e.printStackTrace(listener.error("Failed to select test cases")); 
+			return BUILD_FAILURE; 
+		} catch (InterruptedException e) { 
+			listener.error("Interrupted while selecting test cases"); 
+			return BUILD_FAILURE; 
+		}
+
+		if (testCaseNames.isEmpty()) { 
+			listener.error("No test cases match " + testcases); 
+			return BUILD_FAILURE; 
 		}
+		if (testCaseNames.size() != entries.size()) { 
+			listener.getLogger().println("Selected " + testCaseNames.size() 
+					+ " test cases"); 
+		}
+		return BUILD_SUCCESS; 
 	}
 
 	/**
-	 * Parse test execution options. 
+	 * Parameter/value pairs are separated by commas. 
+	 * @param params
+	 * @return pairs in the format parameter=value 
 	 */
-	private void addTestExecutionOptions() { 
-		if (!testbed.isEmpty()) { 
-			iTestCommand += " --testbed file:/" + safeTestbed; 
+	static List<String> splitParams(final String params) { 
+		List<String> pairs = new ArrayList<String>(); 
+		if (params == null || params.isEmpty()) { 
+			return pairs; 
 		}
-
-		if (!params.isEmpty()) { 
-			String[] multipleParams = params.replaceAll("\\s+","").split(","); 
-			for(String param : multipleParams) { 
-				iTestCommand += " --param " + param; 
+		for (String param : params.replaceAll("\\s+","").split(",")) { 
+			if (!param.isEmpty()) { 
+				pairs.add(param); 
 			}
 		}
-
-		if (!paramFile.isEmpty()) { 
-			iTestCommand += " --paramfile file:/" + safeParamFile; 
-		}
+		return pairs; 
 	}
 
 	/**
@@ -518,6 +1575,19 @@ public class ITest extends CommandInterpreter {
 	@Extension
 	public static final class Descriptor extends BuildStepDescriptor<Builder> {
 
+		/**
+		 * Run builds even if the license server or database is unreachable. 
+		 */
+		static final String POLICY_IGNORE = "ignore"; 
+		/**
+		 * Fail builds immediately if the license server is unreachable. 
+		 */
+		static final String POLICY_FAIL = "fail"; 
+		/**
+		 * Keep builds in the queue until the servers are reachable. 
+		 */
+		static final String POLICY_WAIT = "wait"; 
+
 		/**
 		 * @since 1.0
 		 */
@@ -562,6 +1632,30 @@ public class ITest extends CommandInterpreter {
 		 * @since 1.0
 		 */
 		private String dbPort;
+		/**
+		 * @since 1.1
+		 */
+		private boolean ingestResults;
+		/**
+		 * @since 1.1
+		 */
+		private String unreachablePolicy;
+		/**
+		 * @since 1.1
+		 */
+		private String licenseSeats;
+		/**
+		 * @since 1.1
+		 */
+		private String testbedShares;
+		/**
+		 * @since 1.1
+		 */
+		private String testbedScheduling;
+		/**
+		 * @since 1.1
+		 */
+		private String resourceSampleInterval;
 
 		/**
 		 * @return the cliPath
@@ -648,6 +1742,123 @@ public class ITest extends CommandInterpreter {
 			return dbPort;
 		}
 
+		/**
+		 * @return true if the plugin stores test results in the database
+		 */
+		public boolean isIngestResults() {
+			return ingestResults;
+		}
+
+		/**
+		 * @return what builds do when the license server is unreachable 
+		 */
+		public String getUnreachablePolicy() {
+			return unreachablePolicy == null 
+					? POLICY_IGNORE : unreachablePolicy;
+		}
+
+		/**
+		 * @return the number of license seats, as entered 
+		 */
+		public String getLicenseSeats() {
+			return licenseSeats;
+		}
+
+		/**
+		 * @return the number of license seats, 0 if unlimited 
+		 */
+		public int getLicenseSeatCount() { 
+			try { 
+				return licenseSeats == null || licenseSeats.trim().isEmpty() 
+						? 0 : Integer.parseInt(licenseSeats.trim()); 
+			} catch (NumberFormatException e) { 
+				return 0; 
+			}
+		}
+
+		/**
+		 * @return builds allowed on one testbed at a time, as entered 
+		 */
+		public String getTestbedShares() {
+			return testbedShares;
+		}
+
+		/**
+		 * @return builds allowed on one testbed at a time, at least 1 
+		 */
+		public int getTestbedShareCount() { 
+			try { 
+				return testbedShares == null || testbedShares.trim().isEmpty() 
+						? 1 : Math.max(1, Integer.parseInt(testbedShares.trim())); 
+			} catch (NumberFormatException e) { 
+				return 1; 
+			}
+		}
+
+		/**
+		 * @return seconds between resource samples, as entered 
+		 */
+		public String getResourceSampleInterval() {
+			return resourceSampleInterval;
+		}
+
+		/**
+		 * @return seconds between resource samples, 0 for none 
+		 */
+		public int getResourceSampleSeconds() { 
+			try { 
+				return resourceSampleInterval == null 
+						|| resourceSampleInterval.trim().isEmpty() 
+						? 10 : Math.max(0, 
+								Integer.parseInt(resourceSampleInterval.trim())); 
+			} catch (NumberFormatException e) { 
+				return 10; 
+			}
+		}
+
+		/**
+		 * @return order in which waiting builds get a testbed 
+		 */
+		public String getTestbedScheduling() {
+			return testbedScheduling == null 
+					? TestbedLockManager.FIFO : testbedScheduling;
+		}
+
+		/**
+		 * @return license queue metrics 
+		 */
+		public String getLicenseQueueSummary() { 
+			return LicenseThrottle.getSummary(); 
+		}
+
+		/**
+		 * @return agent affinity metrics 
+		 */
+		public String getAffinitySummary() { 
+			return AffinityLoadBalancer.getSummary(); 
+		}
+
+		/**
+		 * @return cached license server status 
+		 */
+		public HealthMonitor.Status getLicenseServerStatus() { 
+			return HealthMonitor.getLicenseServerStatus(); 
+		}
+
+		/**
+		 * @return cached test report database status 
+		 */
+		public HealthMonitor.Status getDatabaseStatus() { 
+			return HealthMonitor.getDatabaseStatus(); 
+		}
+
+		/**
+		 * @return JDBC URL built from the URI or individual fields 
+		 */
+		public String getDatabaseUrl() { 
+			return databaseUrl(dbName, dbType, dbURI, dbIPAddress, dbPort); 
+		}
+
 		/**
 		 * @param cliPath the cliPath to set
 		 */
@@ -718,6 +1929,48 @@ public class ITest extends CommandInterpreter {
 			this.dbPort = dbPort;
 		}
 
+		/**
+		 * @param ingestResults the ingestResults to set
+		 */
+		public void setIngestResults(boolean ingestResults) {
+			this.ingestResults = ingestResults;
+		}
+
+		/**
+		 * @param licenseSeats the licenseSeats to set
+		 */
+		public void setLicenseSeats(String licenseSeats) {
+			this.licenseSeats = licenseSeats;
+		}
+
+		/**
+		 * @param testbedShares the testbedShares to set
+		 */
+		public void setTestbedShares(String testbedShares) {
+			this.testbedShares = testbedShares;
+		}
+
+		/**
+		 * @param testbedScheduling the testbedScheduling to set
+		 */
+		public void setTestbedScheduling(String testbedScheduling) {
+			this.testbedScheduling = testbedScheduling;
+		}
+
+		/**
+		 * @param resourceSampleInterval the resourceSampleInterval to set
+		 */
+		public void setResourceSampleInterval(String resourceSampleInterval) {
+			this.resourceSampleInterval = resourceSampleInterval;
+		}
+
+		/**
+		 * @param unreachablePolicy the unreachablePolicy to set
+		 */
+		public void setUnreachablePolicy(String unreachablePolicy) {
+			this.unreachablePolicy = unreachablePolicy;
+		}
+
 		@Override
 		public String getDisplayName() {
 			return "Execute Spirent iTest test case"; 
@@ -766,9 +2019,19 @@ public class ITest extends CommandInterpreter {
 			dbPort = formData.getString("dbPort"); 
 			dbUsername = formData.getString("dbUsername"); 
 			dbPassword = formData.getString("dbPassword"); 
+			ingestResults = formData.optBoolean("ingestResults"); 
+			licenseSeats = formData.optString("licenseSeats"); 
+			testbedShares = formData.optString("testbedShares"); 
+			resourceSampleInterval = formData.optString(
+					"resourceSampleInterval"); 
+			testbedScheduling = formData.optString("testbedScheduling", 
+					TestbedLockManager.FIFO); 
+			unreachablePolicy = formData.optString("unreachablePolicy", 
+					POLICY_IGNORE); 
 
 			setDbType(formData.getString("dbType")); 
 			save();
+			HealthMonitor.requestProbe(); 
 			return false;
 		}
 
@@ -780,6 +2043,36 @@ public class ITest extends CommandInterpreter {
 
 		}
 
+		public ListBoxModel doFillUnreachablePolicyItems() {
+			String policy = getUnreachablePolicy(); 
+			return new ListBoxModel(
+					new Option("Run the build anyway", POLICY_IGNORE, 
+							policy.equals(POLICY_IGNORE)),
+					new Option("Fail the build immediately", POLICY_FAIL, 
+							policy.equals(POLICY_FAIL)), 
+					new Option("Wait in the queue", POLICY_WAIT, 
+							policy.equals(POLICY_WAIT))); 
+		}
+
+		public ListBoxModel doFillSweepModeItems() {
+			return new ListBoxModel(
+					new Option("Every combination", 
+							ParameterSweep.CARTESIAN),
+					new Option("Every pair of values", 
+							ParameterSweep.PAIRWISE)); 
+		}
+
+		public ListBoxModel doFillTestbedSchedulingItems() {
+			String scheduling = getTestbedScheduling(); 
+			return new ListBoxModel(
+					new Option("First come, first served", 
+							TestbedLockManager.FIFO, 
+							scheduling.equals(TestbedLockManager.FIFO)),
+					new Option("Highest priority first", 
+							TestbedLockManager.PRIORITY, 
+							scheduling.equals(TestbedLockManager.PRIORITY))); 
+		}
+
 		/**
 		 * If the URI is used, must extract the database type to initialize 
 		 * the correct JDBC class driver. 
@@ -793,6 +2086,31 @@ public class ITest extends CommandInterpreter {
 			}
 		}
 
+		/**
+		 * Build the JDBC URL, preferring the URI if one was specified. 
+		 */
+		static String databaseUrl(String dbName, String dbType, String dbURI, 
+				String dbIPAddress, String dbPort) { 
+			if (!dbURI.isEmpty()) { 
+				return dbURI; 
+			}
+			return "jdbc:" + dbType.toLowerCase() + "://" 
+					+ dbIPAddress + ":" + dbPort + "/" + dbName; 
+		}
+
+		/**
+		 * Initialize the JDBC class driver for the database type or URI. 
+		 */
+		static void loadDriver(String dbType, String dbURI) 
+				throws ClassNotFoundException { 
+			if (dbType.equalsIgnoreCase("MySQL") 
+					|| parseType(dbURI).equalsIgnoreCase("mysql")) {
+				Class.forName("com.mysql.jdbc.Driver");
+			} else { 
+				Class.forName("org.postgresql.Driver");
+			}
+		}
+
 		public FormValidation doTestConnection(
 				@QueryParameter final String dbName, 
 				@QueryParameter final String dbType, 
@@ -803,60 +2121,55 @@ public class ITest extends CommandInterpreter {
 				@QueryParameter final String dbPassword) 
 						throws IOException, ServletException {
 
-			Connection connection = null;
-			String dburl = null; 
-
 			if (dbURI.isEmpty()) { 
 				if (dbName.isEmpty() || dbType.isEmpty() 
 						|| dbIPAddress.isEmpty() ||dbPort.isEmpty() 
 						|| dbUsername.isEmpty() || dbPassword.isEmpty()) { 
 					return FormValidation.error("Missing required field"); 
 				}
-
-				//build the connection URI 
-				dburl = "jdbc:" + dbType.toLowerCase() + "://" 
-						+ dbIPAddress + ":" + dbPort + "/" + dbName; 
-			} else {
-				dburl = dbURI; 
 			}
 
+			//build the connection URI 
+			String dburl = databaseUrl(dbName, dbType, dbURI, dbIPAddress, 
+					dbPort); 
+
 			//required for both URI or individual fields 
 			if (dbUsername.isEmpty() || dbPassword.isEmpty()) { 
 				return FormValidation.error("Please specify username "
 						+ "and password"); 
 			}
 
-			try { 
-				
-				//initialize class driver 
-				if (dbType.equalsIgnoreCase("MySQL") 
-						|| parseType(dbType).equalsIgnoreCase("mysql")) {
-					Class.forName("com.mysql.jdbc.Driver");
-				}
+			//bounded by a timeout so an unreachable host cannot hang the page 
+			HealthMonitor.Status status = HealthMonitor.probeDatabase(dbType, 
+					dbURI, dburl, dbUsername, dbPassword); 
 
-				if (dbType.equalsIgnoreCase("PostgreSQL") 
-						|| parseType(dbType).equalsIgnoreCase("postgresql")) { 
-					Class.forName("org.postgresql.Driver");
-				}
+			return status.isUp() ? FormValidation.ok("Success") : 
+				FormValidation.error("Please check database credentials: " 
+						+ status.getMessage()); 
+		}
 
-				connection = DriverManager.getConnection(dburl, dbUsername,
-						dbPassword);
+		public FormValidation doCheckLicenseSeats(
+				@QueryParameter final String value) { 
+			if (value.trim().isEmpty()) { 
+				return FormValidation.ok(); 
+			}
+			return FormValidation.validateNonNegativeInteger(value.trim()); 
+		}
 
-				return connection != null ? FormValidation.ok("Success") : 
-					FormValidation.error("Please check database credentials"); 
+		public FormValidation doCheckResourceSampleInterval(
+				@QueryParameter final String value) { 
+			if (value.trim().isEmpty()) { 
+				return FormValidation.ok(); 
+			}
+			return FormValidation.validateNonNegativeInteger(value.trim()); 
+		}
 
-			} catch (Exception e) {
-				return FormValidation.error("Please check database "
-						+ "credentials"); 
-			} finally {
-				if (connection != null) {
-					try {
-						connection.close();
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
+		public FormValidation doCheckTestbedShares(
+				@QueryParameter final String value) { 
+			if (value.trim().isEmpty()) { 
+				return FormValidation.ok(); 
 			}
+			return FormValidation.validatePositiveInteger(value.trim()); 
 		}
 
 		public FormValidation doTestExecutablePath(
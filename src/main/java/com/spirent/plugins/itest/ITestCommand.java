@@ -0,0 +1,252 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Composes iTestCLI and iTestRT command lines shared by the build step and
+ * the Pipeline step.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class ITestCommand {
+
+	/**
+	 * Longest script line passed to cmd.exe, which rejects lines over 8191
+	 * characters.
+	 */
+	static final int WINDOWS_MAX_LINE = Integer.getInteger(
+			ITestCommand.class.getName() + ".windowsMaxLine", 8000);
+	/**
+	 * Longest script line passed to sh, well below common ARG_MAX values.
+	 */
+	static final int UNIX_MAX_LINE = Integer.getInteger(
+			ITestCommand.class.getName() + ".unixMaxLine", 100000);
+
+	private static final Pattern TEST_OPTION = Pattern.compile(" --test \\S+");
+
+	private ITestCommand() {
+	}
+
+	/**
+	 * @param global global iTest configuration
+	 * @return path to iTestCLI, or the executable name if not configured
+	 */
+	static String itestcli(ITest.Descriptor global) {
+		String path = global.getCliPath();
+		return path == null || path.isEmpty() ? "itestcli" : path;
+	}
+
+	/**
+	 * @param global global iTest configuration
+	 * @return path to iTestRT, or the executable name if not configured
+	 */
+	static String itestrt(ITest.Descriptor global) {
+		String path = global.getRtPath();
+		return path == null || path.isEmpty() ? "itestrt" : path;
+	}
+
+	/**
+	 * @param global global iTest configuration
+	 * @return license server host, with port if one was configured
+	 */
+	static String licenseServer(ITest.Descriptor global) {
+		String uri = global.getLsIPAddress();
+		if (global.getLsPort() != null && !global.getLsPort().isEmpty()) {
+			uri += ":" + global.getLsPort();
+		}
+		return uri;
+	}
+
+	/**
+	 * Export projects of an iTest workspace to iTAR files next to it.
+	 * --exportProject accepts multiple projects separated by comma but
+	 * not spaces.
+	 */
+	static String export(String itestcli, String path, String projects) {
+		return itestcli + " --workspace " + path + " --exportPath " + path
+				+ " --exportProject " + projects.replaceAll("\\s+", "");
+	}
+
+	/**
+	 * Run test cases with iTestRT.
+	 * @param itestrt path to iTestRT
+	 * @param licenseServer license server URI
+	 * @param itar directory containing the exported iTAR files
+	 * @param testbed resolved testbed path, may be empty
+	 * @param params parameter=value pairs
+	 * @param paramFile resolved parameter file path, may be empty
+	 * @param testCases test case URIs
+	 */
+	static String run(String itestrt, String licenseServer, String itar,
+			String testbed, List<String> params, String paramFile,
+			List<String> testCases) {
+		StringBuilder command = new StringBuilder(itestrt)
+				.append(" --licenseServer ").append(licenseServer)
+				.append(" --itar ").append(itar);
+		appendSetup(command, testbed, params, paramFile);
+		for (String testCase : testCases) {
+			command.append(" --test ").append(testCase);
+		}
+		return command.toString();
+	}
+
+	/**
+	 * Add the testbed and parameters of one axis to an iTestRT command
+	 * that has none of its own.
+	 * @param command iTestRT command
+	 * @param testbed resolved testbed path, may be empty
+	 * @param params parameter=value pairs
+	 * @param paramFile resolved parameter file path, may be empty
+	 */
+	static String withSetup(String command, String testbed,
+			List<String> params, String paramFile) {
+		StringBuilder setup = new StringBuilder(command);
+		appendSetup(setup, testbed, params, paramFile);
+		return setup.toString();
+	}
+
+	private static void appendSetup(StringBuilder command, String testbed,
+			List<String> params, String paramFile) {
+		if (!testbed.isEmpty()) {
+			command.append(" --testbed file:/").append(testbed);
+		}
+		for (String param : params) {
+			command.append(" --param ").append(param);
+		}
+		if (!paramFile.isEmpty()) {
+			command.append(" --paramfile file:/").append(paramFile);
+		}
+	}
+
+	/**
+	 * Replace the test cases of an iTestRT command, keeping all other
+	 * options.
+	 * @param command iTestRT command
+	 * @param testCases test case URIs to run instead
+	 */
+	static String withTests(String command, List<String> testCases) {
+		StringBuilder rerun = new StringBuilder(
+				TEST_OPTION.matcher(command).replaceAll(""));
+		for (String testCase : testCases) {
+			rerun.append(" --test ").append(testCase);
+		}
+		return rerun.toString();
+	}
+
+	/**
+	 * Split an iTestRT command whose test cases do not fit on one script
+	 * line into several invocations with the same options, each running a
+	 * batch of the test cases. The script exits with an error if any batch
+	 * failed, after all batches have run.
+	 * @param command iTestRT command
+	 * @param unix true for a shell script, false for a batch file
+	 * @return the command itself if it fits on one line, otherwise a script
+	 */
+	static String batches(String command, boolean unix) {
+		return batches(command, Collections.<String, List<String>>emptyMap(),
+				unix);
+	}
+
+	/**
+	 * Split an iTestRT command into invocations that fit on one script line
+	 * each. Consecutive test cases with the same parameters of their own
+	 * share an invocation.
+	 * @param command iTestRT command
+	 * @param caseParams parameter=value pairs by test case URI, added to
+	 * the options of the command for those test cases
+	 * @param unix true for a shell script, false for a batch file
+	 * @return the command itself if it needs no splitting, otherwise a
+	 * script
+	 */
+	static String batches(String command, Map<String, List<String>> caseParams,
+			boolean unix) {
+		int max = unix ? UNIX_MAX_LINE : WINDOWS_MAX_LINE;
+		if (caseParams.isEmpty() && command.length() <= max) {
+			return command;
+		}
+
+		List<String> tests = new ArrayList<String>();
+		Matcher m = TEST_OPTION.matcher(command);
+		while (m.find()) {
+			tests.add(m.group());
+		}
+		String base = TEST_OPTION.matcher(command).replaceAll("");
+		//keep sh -e from stopping at the first failed batch
+		String suffix = unix ? " || ITEST_RC=$?" : "";
+
+		List<StringBuilder> lines = new ArrayList<StringBuilder>();
+		StringBuilder line = null;
+		List<String> lineParams = null;
+		for (String test : tests) {
+			List<String> params = caseParams.get(
+					test.substring(" --test ".length()));
+			if (params == null) {
+				params = Collections.emptyList();
+			}
+			if (line == null || !params.equals(lineParams) || line.length()
+					+ test.length() + suffix.length() > max) {
+				line = new StringBuilder(base);
+				for (String param : params) {
+					line.append(" --param ").append(param);
+				}
+				lines.add(line);
+				lineParams = params;
+			}
+			line.append(test);
+		}
+		if (lines.size() < 2) {
+			return lines.isEmpty() ? command : lines.get(0).toString();
+		}
+
+		String newLine = unix ? "\n" : "\r\n";
+		StringBuilder script = new StringBuilder(
+				unix ? "ITEST_RC=0" : "set ITEST_RC=0").append(newLine);
+		for (StringBuilder invocation : lines) {
+			//batch files must call iTestRT to continue after it
+			script.append(unix ? "" : "call ").append(invocation)
+					.append(suffix).append(newLine);
+			if (!unix) {
+				script.append("if errorlevel 1 set ITEST_RC=1").append(newLine);
+			}
+		}
+		script.append(unix ? "exit $ITEST_RC" : "exit /b %ITEST_RC%");
+		return script.toString();
+	}
+
+	/**
+	 * iTestRT is given forward slashes on every platform.
+	 */
+	static String uniformPathSeparators(String command) {
+		return command.replaceAll("\\\\", "/");
+	}
+}
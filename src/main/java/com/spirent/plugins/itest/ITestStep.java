@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Extension;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step that runs iTest test cases as a durable task on the agent:
+ * <pre>
+ * node('lab') {
+ *     itest testcases: 'project://system_test/smoke.fftc',
+ *           projects: 'system_test'
+ * }
+ * </pre>
+ * The step does not hold a controller thread while iTestRT runs, keeps
+ * running across controller restarts and can be used in parallel branches.
+ * Like the build step, it waits for a free license seat and fails on error
+ * messages in the output of iTestCLI and iTestRT. It does not generate HTML
+ * reports, so iTestRT is not given the test report database options that
+ * come with them.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITestStep extends AbstractStepImpl {
+
+	private final String testcases;
+	private String workspace = "";
+	private String projects = "";
+	private String testbed = "";
+	private String params = "";
+	private String paramFile = "";
+
+	@DataBoundConstructor
+	public ITestStep(String testcases) {
+		this.testcases = testcases;
+	}
+
+	public String getTestcases() {
+		return testcases;
+	}
+
+	public String getWorkspace() {
+		return workspace;
+	}
+
+	@DataBoundSetter
+	public void setWorkspace(String workspace) {
+		this.workspace = workspace;
+	}
+
+	public String getProjects() {
+		return projects;
+	}
+
+	@DataBoundSetter
+	public void setProjects(String projects) {
+		this.projects = projects;
+	}
+
+	public String getTestbed() {
+		return testbed;
+	}
+
+	@DataBoundSetter
+	public void setTestbed(String testbed) {
+		this.testbed = testbed;
+	}
+
+	public String getParams() {
+		return params;
+	}
+
+	@DataBoundSetter
+	public void setParams(String params) {
+		this.params = params;
+	}
+
+	public String getParamFile() {
+		return paramFile;
+	}
+
+	@DataBoundSetter
+	public void setParamFile(String paramFile) {
+		this.paramFile = paramFile;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+		public DescriptorImpl() {
+			super(ITestStepExecution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "itest";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Execute Spirent iTest test cases";
+		}
+	}
+}
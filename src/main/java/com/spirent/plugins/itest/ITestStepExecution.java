@@ -0,0 +1,404 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import com.google.inject.Inject;
+
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+/**
+ * Launches iTestCLI and iTestRT as a durable task and polls it from a timer
+ * thread, backing off while there is no new output. The task is launched
+ * from the timer thread too, once a license seat is free, as selecting the
+ * test cases reads the iTest workspace on the agent.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITestStepExecution extends AbstractStepExecutionImpl
+		implements Runnable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long MIN_POLL_INTERVAL = 250;
+	static final long MAX_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+	/**
+	 * Steps currently running iTestRT on this controller.
+	 */
+	private static final AtomicInteger running = new AtomicInteger();
+
+	@Inject(optional = true)
+	private transient ITestStep step;
+	@StepContextParameter
+	private transient FilePath ws;
+	@StepContextParameter
+	private transient EnvVars env;
+	/**
+	 * Injected when the step starts only; after a restart, fetched again
+	 * from the context by {@link #launcher()}.
+	 */
+	@StepContextParameter
+	private transient Launcher launcher;
+	/**
+	 * Injected when the step starts only; after a restart, fetched again
+	 * from the context by {@link #listener()}.
+	 */
+	@StepContextParameter
+	private transient TaskListener listener;
+	@StepContextParameter
+	private transient Computer computer;
+
+	private Controller controller;
+	private String node;
+	private String remote;
+	private OutputParser parser;
+	/**
+	 * What to run, resolved from the build environment when the step
+	 * starts.
+	 */
+	private List<String> testCases;
+	private String itar;
+	private String projects;
+	private String testbed;
+	private List<String> params;
+	private String paramFile;
+	private long waitingSince;
+	private transient ParsingOutputStream output;
+	private transient volatile ScheduledFuture<?> task;
+	private transient long pollInterval;
+	private transient boolean offlineReported;
+	/**
+	 * Whether this step is counted in {@link #running}.
+	 */
+	private transient boolean counted;
+
+	/**
+	 * @return number of Pipeline steps running iTestRT
+	 */
+	static int getRunningCount() {
+		return running.get();
+	}
+
+	@Override
+	public boolean start() throws Exception {
+		descriptor();
+
+		VariableResolver vars = new VariableResolver(env);
+		testCases = new ArrayList<String>();
+		for (String testCase : step.getTestcases()
+				.replaceAll("\\s+", "").split(",")) {
+			if (!testCase.isEmpty()) {
+				testCases.add(vars.resolveTestCase(testCase));
+			}
+		}
+		itar = vars.resolvePath(step.getWorkspace(), ws);
+		projects = vars.resolve(step.getProjects());
+		testbed = vars.resolve(step.getTestbed());
+		params = vars.resolveParams(ITest.splitParams(step.getParams()));
+		paramFile = vars.resolve(step.getParamFile());
+		node = computer.getName();
+		remote = ws.getRemote();
+		schedule(0);
+		return false;
+	}
+
+	/**
+	 * Select the test cases and launch iTestCLI and iTestRT, unless every
+	 * license seat is in use, in which case the next poll tries again.
+	 * @param workspace workspace of the step on the agent
+	 */
+	private void launch(FilePath workspace) throws Exception {
+		ITest.Descriptor global = descriptor();
+		if (!reserveSeat(global)) {
+			if (waitingSince == 0) {
+				waitingSince = System.currentTimeMillis();
+				listener().getLogger().println("Waiting for an iTest license (all "
+						+ global.getLicenseSeatCount() + " in use)");
+			}
+			schedule(MAX_POLL_INTERVAL);
+			return;
+		}
+		counted = true;
+		if (waitingSince > 0) {
+			listener().getLogger().println("Waited " + TimeUnit.MILLISECONDS
+					.toSeconds(System.currentTimeMillis() - waitingSince)
+					+ " s for an iTest license");
+		}
+
+		Computer c = getContext().get(Computer.class);
+		List<String> selected = TestCaseIndex.expand(
+				new FilePath(workspace.getChannel(), itar),
+				TestCaseIndex.indexDirFor(c == null ? null : c.getNode()),
+				testCases);
+		if (selected.isEmpty()) {
+			throw new AbortException("No test cases match " + testCases);
+		}
+
+		Launcher launcher = launcher();
+		String newLine = launcher.isUnix() ? "\n" : "\r\n";
+		StringBuilder script = new StringBuilder();
+		if (!projects.isEmpty()) {
+			script.append(ITestCommand.export(ITestCommand.itestcli(global),
+					itar, projects)).append(newLine);
+			if (!launcher.isUnix()) {
+				script.append("if errorlevel 1 exit /b 1").append(newLine);
+			}
+		}
+		String run = ITestCommand.run(ITestCommand.itestrt(global),
+				ITestCommand.licenseServer(global), itar, testbed, params,
+				paramFile, selected);
+		script.append(ITestCommand.batches(
+				ITestCommand.uniformPathSeparators(run), launcher.isUnix()));
+
+		String command = ITestCommand.uniformPathSeparators(
+				script.toString());
+		DurableTask durableTask = launcher.isUnix()
+				? new BourneShellScript(command)
+				: new WindowsBatchScript(command);
+
+		parser = new OutputParser(selected);
+		controller = durableTask.launch(env(), workspace, launcher,
+				listener());
+		schedule(MIN_POLL_INTERVAL);
+	}
+
+	/**
+	 * Count a step as running iTestRT if a license seat is free. Builds in
+	 * the queue are held back by {@link LicenseThrottle}; a step already
+	 * runs on an executor, so it waits here instead.
+	 * @param global
+	 * @return false if every license seat is in use
+	 */
+	private static synchronized boolean reserveSeat(
+			ITest.Descriptor global) {
+		Jenkins jenkins = Jenkins.getInstance();
+		int seats = global.getLicenseSeatCount();
+		if (seats > 0 && jenkins != null
+				&& LicenseThrottle.countInFlight(jenkins) >= seats) {
+			return false;
+		}
+		running.incrementAndGet();
+		return true;
+	}
+
+	private static ITest.Descriptor descriptor() throws AbortException {
+		Jenkins jenkins = Jenkins.getInstance();
+		ITest.Descriptor global = jenkins == null ? null
+				: jenkins.getDescriptorByType(ITest.Descriptor.class);
+		if (global == null) {
+			throw new AbortException("iTest plugin is not configured");
+		}
+		return global;
+	}
+
+	@Override
+	public void stop(Throwable cause) throws Exception {
+		FilePath workspace = getWorkspace();
+		if (workspace != null && controller != null) {
+			//the next poll reports the exit status
+			controller.stop(workspace, launcher());
+		} else {
+			finish();
+			getContext().onFailure(cause);
+		}
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		if (controller != null) {
+			running.incrementAndGet();
+			counted = true;
+		}
+		schedule(MIN_POLL_INTERVAL);
+	}
+
+	public void run() {
+		try {
+			check();
+		} catch (Exception e) {
+			finish();
+			getContext().onFailure(e);
+		}
+	}
+
+	private void check() throws Exception {
+		FilePath workspace = getWorkspace();
+		if (workspace == null) {
+			if (!offlineReported) {
+				listener().getLogger().println("Waiting for " + node
+						+ " to come back online");
+				offlineReported = true;
+			}
+			schedule(MAX_POLL_INTERVAL);
+			return;
+		}
+		offlineReported = false;
+		if (controller == null) {
+			launch(workspace);
+			return;
+		}
+
+		Integer exitStatus;
+		boolean wrote;
+		try {
+			wrote = controller.writeLog(workspace, output());
+			exitStatus = controller.exitStatus(workspace, launcher());
+		} catch (IOException e) {
+			//agent connection problems are usually transient
+			listener().getLogger().println("Failed to check iTestRT status: "
+					+ e.getMessage());
+			schedule(MAX_POLL_INTERVAL);
+			return;
+		}
+
+		if (exitStatus == null) {
+			schedule(wrote ? MIN_POLL_INTERVAL
+					: Math.min(pollInterval * 2, MAX_POLL_INTERVAL));
+			return;
+		}
+
+		controller.writeLog(workspace, output());
+		output().close();
+		controller.cleanup(workspace);
+		finish();
+
+		int failed = 0;
+		for (TestCaseResult result : parser.getResults()) {
+			if (!result.isPassed()) {
+				failed++;
+			}
+		}
+		if (exitStatus != 0) {
+			getContext().onFailure(new AbortException(
+					"iTestRT returned exit code " + exitStatus));
+		} else if (failed > 0) {
+			getContext().onFailure(new AbortException(failed + " of "
+					+ parser.getResults().size() + " test cases failed"));
+		} else if (parser.getError() != null) {
+			//as checked in the console output of a build
+			getContext().onFailure(new AbortException(
+					"iTestRT reported an error: " + parser.getError()));
+		} else {
+			getContext().onSuccess(null);
+		}
+	}
+
+	private ParsingOutputStream output()
+			throws IOException, InterruptedException {
+		if (output == null) {
+			output = new ParsingOutputStream(listener().getLogger(), parser);
+		}
+		return output;
+	}
+
+	/**
+	 * @return the environment of the step, fetched again after a restart
+	 */
+	private EnvVars env() throws IOException, InterruptedException {
+		if (env == null) {
+			env = getContext().get(EnvVars.class);
+		}
+		return env;
+	}
+
+	/**
+	 * @return the log of the step, fetched again after a restart
+	 */
+	private TaskListener listener() throws IOException, InterruptedException {
+		if (listener == null) {
+			listener = getContext().get(TaskListener.class);
+		}
+		return listener;
+	}
+
+	/**
+	 * @return a launcher on the node running iTestRT, created again after
+	 * a restart
+	 * @throws IOException if the node is offline
+	 */
+	private Launcher launcher() throws IOException, InterruptedException {
+		if (launcher == null) {
+			Computer c = getContext().get(Computer.class);
+			Node n = c == null ? null : c.getNode();
+			if (n == null) {
+				throw new IOException(node + " is offline");
+			}
+			launcher = n.createLauncher(listener());
+		}
+		return launcher;
+	}
+
+	private FilePath getWorkspace() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return null;
+		}
+		Computer c = node.isEmpty()
+				? jenkins.toComputer() : jenkins.getComputer(node);
+		VirtualChannel channel = c == null ? null : c.getChannel();
+		return channel == null ? null : new FilePath(channel, remote);
+	}
+
+	private void schedule(long delay) {
+		pollInterval = delay;
+		task = Timer.get().schedule(this, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void finish() {
+		if (task != null) {
+			task.cancel(false);
+		}
+		if (counted) {
+			running.decrementAndGet();
+			counted = false;
+		}
+	}
+}
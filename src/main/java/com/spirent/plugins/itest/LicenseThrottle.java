@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps iTest builds in the queue while every license seat configured for
+ * the license server is in use, instead of letting them start and fail.
+ * Each iTestRT process takes a seat, so a build takes one per axis it may
+ * run at the same time.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+@Extension
+public class LicenseThrottle extends QueueTaskDispatcher {
+
+	/**
+	 * Queue items currently held back, with the time they were first held.
+	 */
+	private static final Map<Long, Long> blockedSince =
+			new ConcurrentHashMap<Long, Long>();
+	/**
+	 * Time spent waiting for a license by items that have been released,
+	 * until the build picks it up.
+	 */
+	private static final Map<Long, Long> releasedWaits =
+			new ConcurrentHashMap<Long, Long>();
+
+	private static final int MAX_RELEASED = 1000;
+
+	private static final AtomicLong throttledItems = new AtomicLong();
+	private static final AtomicLong totalWait = new AtomicLong();
+	private static final AtomicLong maxWait = new AtomicLong();
+
+	@Override
+	public CauseOfBlockage canRun(Queue.Item item) {
+		if (!ITest.isUsedBy(item.task)) {
+			return null;
+		}
+		Jenkins jenkins = Jenkins.getInstance();
+		ITest.Descriptor global = jenkins == null ? null
+				: jenkins.getDescriptorByType(ITest.Descriptor.class);
+		int seats = global == null ? 0 : global.getLicenseSeatCount();
+		if (seats <= 0) {
+			return null;
+		}
+
+		final int inUse = countInFlight(jenkins);
+		int needed = ITest.seatsUsedBy(item.task);
+		//a build needing more seats than configured still runs alone
+		if (inUse >= seats || (inUse > 0 && inUse + needed > seats)) {
+			if (!blockedSince.containsKey(item.getId())) {
+				blockedSince.put(item.getId(), System.currentTimeMillis());
+			}
+			final int capacity = seats;
+			return new CauseOfBlockage() {
+				@Override
+				public String getShortDescription() {
+					return "Waiting for an iTest license (" + inUse + " of "
+							+ capacity + " in use)";
+				}
+			};
+		}
+
+		//the wait is recorded once the item leaves the queue, as another
+		//dispatcher may still hold it back
+		return null;
+	}
+
+	/**
+	 * Count the license seats held, or about to be taken, by iTest builds.
+	 */
+	static int countInFlight(Jenkins jenkins) {
+		int count = 0;
+		for (Computer computer : jenkins.getComputers()) {
+			for (Executor executor : computer.getExecutors()) {
+				Queue.Executable executable = executor.getCurrentExecutable();
+				if (executable != null) {
+					count += ITest.seatsUsedBy(executable.getParent());
+				}
+			}
+		}
+		for (Queue.BuildableItem item : jenkins.getQueue().getPendingItems()) {
+			count += ITest.seatsUsedBy(item.task);
+		}
+		//Pipeline steps run inside a node block, not as queue items
+		return count + ITestStepExecution.getRunningCount();
+	}
+
+	private static void release(long id, boolean record) {
+		Long since = blockedSince.remove(id);
+		if (since == null || !record) {
+			return;
+		}
+		long wait = System.currentTimeMillis() - since;
+		throttledItems.incrementAndGet();
+		totalWait.addAndGet(wait);
+		long max;
+		while (wait > (max = maxWait.get())
+				&& !maxWait.compareAndSet(max, wait)) {
+			//retry
+		}
+		if (releasedWaits.size() > MAX_RELEASED) {
+			//builds that never reached the iTest step
+			releasedWaits.clear();
+		}
+		releasedWaits.put(id, wait);
+	}
+
+	/**
+	 * Remove and return the time a queue item spent waiting for a license.
+	 * @param queueId id of the queue item that started the build
+	 * @return wait in milliseconds, 0 if the item was never held back
+	 */
+	public static long takeWait(long queueId) {
+		Long wait = releasedWaits.remove(queueId);
+		return wait == null ? 0 : wait;
+	}
+
+	/**
+	 * @return number of builds currently waiting for a license
+	 */
+	public static int getWaiting() {
+		return blockedSince.size();
+	}
+
+	/**
+	 * @return number of builds that have waited for a license
+	 */
+	public static long getThrottledCount() {
+		return throttledItems.get();
+	}
+
+	/**
+	 * @return total time builds have waited for a license, in milliseconds
+	 */
+	public static long getTotalWait() {
+		return totalWait.get();
+	}
+
+	/**
+	 * @return longest time a build has waited for a license, in milliseconds
+	 */
+	public static long getMaxWait() {
+		return maxWait.get();
+	}
+
+	/**
+	 * @return one line summary of license queue metrics
+	 */
+	public static String getSummary() {
+		long count = throttledItems.get();
+		long average = count == 0 ? 0 : totalWait.get() / count;
+		return getWaiting() + " waiting now, " + count + " delayed so far, "
+				+ "average wait " + TimeUnit.MILLISECONDS.toSeconds(average)
+				+ " s, longest wait "
+				+ TimeUnit.MILLISECONDS.toSeconds(maxWait.get()) + " s";
+	}
+
+	/**
+	 * Records the wait of items held back once they start, and forgets
+	 * items that leave the queue without starting, e.g. when they are
+	 * cancelled.
+	 */
+	@Extension
+	public static class Cleanup extends QueueListener {
+		@Override
+		public void onLeft(Queue.LeftItem item) {
+			if (item.isCancelled()) {
+				release(item.getId(), false);
+				releasedWaits.remove(item.getId());
+			} else {
+				release(item.getId(), true);
+			}
+		}
+	}
+}
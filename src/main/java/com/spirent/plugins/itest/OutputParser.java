@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.console.ConsoleNote;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Line oriented parser for iTestRT output. Lines are fed one at a time, so
+ * the parser can either follow a running execution or scan a finished log.
+ * It is serializable so a Pipeline step can keep its progress across
+ * restarts.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class OutputParser implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Pattern STATUS =
+			Pattern.compile("Execution status:\\s+(\\w+)");
+	private static final Pattern TEST_URI =
+			Pattern.compile("project://[^\\s\"'<>,]+");
+
+	/**
+	 * Test cases in the order they were passed to iTestRT.
+	 */
+	private final List<String> planned;
+	private final Set<String> completed = new HashSet<String>();
+	private final List<TestCaseResult> results =
+			new ArrayList<TestCaseResult>();
+
+	private String current;
+	private long currentStart;
+	private String currentMessage;
+	private String error;
+
+	public OutputParser(List<String> testCases) {
+		this.planned = testCases != null
+				? new ArrayList<String>(testCases) : new ArrayList<String>();
+	}
+
+	/**
+	 * Feed the next line of output.
+	 * @param line output line without line terminator
+	 * @param now time the line was produced, 0 if unknown
+	 * @return the result completed by this line, or null
+	 */
+	public TestCaseResult parseLine(String line, long now) {
+		//the echoed iTestRT command lists every test case
+		if (line.contains("--test ")) {
+			return null;
+		}
+		if (error == null && ITest.reportsError(line)) {
+			error = line.trim();
+		}
+
+		Matcher status = STATUS.matcher(line);
+		if (status.find()) {
+			String uri = current != null ? current : nextPending();
+			long duration = currentStart > 0 && now > 0
+					? now - currentStart : 0;
+			TestCaseResult result = new TestCaseResult(uri,
+					TestCaseResult.Verdict.parse(status.group(1)),
+					currentStart, duration, currentMessage);
+			results.add(result);
+			completed.add(uri);
+			current = null;
+			currentStart = 0;
+			currentMessage = null;
+			return result;
+		}
+
+		Matcher uri = TEST_URI.matcher(line);
+		if (current == null && uri.find()) {
+			current = uri.group();
+			currentStart = now;
+		} else if (current != null && currentMessage == null
+				&& line.contains("Error")) {
+			currentMessage = line.trim();
+		}
+		return null;
+	}
+
+	/**
+	 * Give the test case running when iTestRT was stopped a timeout
+	 * verdict.
+	 * @param reason why iTestRT was stopped
+	 * @param now time it was stopped
+	 * @return result of the test case, or null if every test case had
+	 * completed
+	 */
+	public TestCaseResult timeOut(String reason, long now) {
+		//a URI echoed by iTestRT may not be one it was given, leaving the
+		//test case it ran unfinished forever
+		String uri = current != null && planned.contains(current)
+				? current : nextPending();
+		if (uri.equals("unknown")) {
+			return null;
+		}
+		TestCaseResult result = new TestCaseResult(uri,
+				TestCaseResult.Verdict.TIMEOUT, currentStart,
+				currentStart > 0 ? now - currentStart : 0,
+				"Timed out: " + reason);
+		results.add(result);
+		completed.add(uri);
+		current = null;
+		currentStart = 0;
+		currentMessage = null;
+		return result;
+	}
+
+	/**
+	 * @return the test case currently executing, or null
+	 */
+	public String getCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return first line reporting an error, as checked in the console
+	 * output of a build, or null
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return results of the test cases completed so far
+	 */
+	public List<TestCaseResult> getResults() {
+		return results;
+	}
+
+	/**
+	 * When iTestRT does not echo the URI of a test case, assume test cases
+	 * run in the order they were given.
+	 */
+	private String nextPending() {
+		for (String testCase : planned) {
+			if (!completed.contains(testCase)) {
+				return testCase;
+			}
+		}
+		return "unknown";
+	}
+
+	/**
+	 * Parse the results contained in a finished log file.
+	 * @param log build log
+	 * @param testCases test cases passed to iTestRT
+	 * @return parsed results, empty if log cannot be read
+	 */
+	public static List<TestCaseResult> parse(File log,
+			List<String> testCases) {
+		OutputParser parser = new OutputParser(testCases);
+		Scanner scanner = null;
+		try {
+			scanner = new Scanner(log);
+			while (scanner.hasNextLine()) {
+				parser.parseLine(ConsoleNote.removeNotes(scanner.nextLine()), 0);
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
+		}
+		return parser.getResults();
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parameters given a list or range of values instead of a single value,
+ * expanded into the combinations to run. A value list separates values
+ * with |, e.g. frameSize=64|512|1518; a range of whole numbers gives its
+ * bounds and an optional step, e.g. rate=10..100:10.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class ParameterSweep {
+
+	/**
+	 * Run every combination of the values.
+	 */
+	static final String CARTESIAN = "cartesian";
+	/**
+	 * Run enough combinations for every pair of values of two parameters
+	 * to be run together at least once.
+	 */
+	static final String PAIRWISE = "pairwise";
+	/**
+	 * Most combinations a sweep may expand to.
+	 */
+	static final int MAX_COMBINATIONS = Integer.getInteger(
+			ParameterSweep.class.getName() + ".maxCombinations", 256);
+
+	private static final Pattern RANGE =
+			Pattern.compile("(-?\\d+)\\.\\.(-?\\d+)(?::([1-9]\\d*))?");
+
+	private final List<String> fixed = new ArrayList<String>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<List<String>> values = new ArrayList<List<String>>();
+
+	private ParameterSweep() {
+	}
+
+	/**
+	 * @param params resolved parameter=value pairs
+	 */
+	static ParameterSweep parse(List<String> params) {
+		ParameterSweep sweep = new ParameterSweep();
+		for (String param : params) {
+			int eq = param.indexOf('=');
+			List<String> swept = eq < 0 ? null
+					: values(param.substring(eq + 1));
+			if (swept == null) {
+				sweep.fixed.add(param);
+			} else {
+				sweep.names.add(param.substring(0, eq));
+				sweep.values.add(swept);
+			}
+		}
+		return sweep;
+	}
+
+	/**
+	 * @return values of a value list or range, or null for a single value
+	 */
+	static List<String> values(String value) {
+		if (value.indexOf('|') >= 0) {
+			List<String> list = new ArrayList<String>();
+			for (String v : value.split("\\|")) {
+				if (!v.isEmpty() && !list.contains(v)) {
+					list.add(v);
+				}
+			}
+			return list.size() > 1 ? list : null;
+		}
+
+		Matcher range = RANGE.matcher(value);
+		if (!range.matches()) {
+			return null;
+		}
+		long from = Long.parseLong(range.group(1));
+		long to = Long.parseLong(range.group(2));
+		long step = range.group(3) == null ? 1 : Long.parseLong(range.group(3));
+		if ((Math.abs(to - from) / step) + 1 > MAX_COMBINATIONS) {
+			throw new IllegalArgumentException("Range " + value
+					+ " has more than " + MAX_COMBINATIONS + " values");
+		}
+		List<String> list = new ArrayList<String>();
+		for (long v = from; from <= to ? v <= to : v >= to;
+				v += from <= to ? step : -step) {
+			list.add(Long.toString(v));
+		}
+		return list;
+	}
+
+	/**
+	 * @return parameter=value pairs that are the same for every combination
+	 */
+	List<String> getFixed() {
+		return fixed;
+	}
+
+	/**
+	 * @return true if no parameter has several values
+	 */
+	boolean isEmpty() {
+		return names.isEmpty();
+	}
+
+	/**
+	 * @param mode CARTESIAN or PAIRWISE
+	 * @return parameter=value pairs of each combination to run; a single
+	 * empty combination if nothing is swept
+	 */
+	List<List<String>> combinations(String mode) {
+		List<int[]> rows = PAIRWISE.equals(mode) && names.size() > 2
+				? pairwise() : cartesian();
+		if (rows.size() > MAX_COMBINATIONS) {
+			throw new IllegalArgumentException("Parameter sweep has "
+					+ rows.size() + " combinations, more than "
+					+ MAX_COMBINATIONS);
+		}
+
+		List<List<String>> combinations = new ArrayList<List<String>>();
+		for (int[] row : rows) {
+			List<String> pairs = new ArrayList<String>();
+			for (int p = 0; p < row.length; p++) {
+				pairs.add(names.get(p) + "=" + values.get(p).get(row[p]));
+			}
+			combinations.add(pairs);
+		}
+		return combinations.isEmpty()
+				? Collections.singletonList(Collections.<String>emptyList())
+				: combinations;
+	}
+
+	private List<int[]> cartesian() {
+		List<int[]> rows = new ArrayList<int[]>();
+		if (names.isEmpty()) {
+			return rows;
+		}
+		long count = 1;
+		for (List<String> v : values) {
+			count *= v.size();
+			if (count > MAX_COMBINATIONS) {
+				throw new IllegalArgumentException("Parameter sweep has more "
+						+ "than " + MAX_COMBINATIONS + " combinations; "
+						+ "consider a pairwise sweep");
+			}
+		}
+		int[] row = new int[names.size()];
+		while (true) {
+			rows.add(row.clone());
+			int p = row.length - 1;
+			while (p >= 0 && ++row[p] == values.get(p).size()) {
+				row[p--] = 0;
+			}
+			if (p < 0) {
+				return rows;
+			}
+		}
+	}
+
+	/**
+	 * In-parameter-order generation: start from every pair of the first
+	 * two parameters, then add one parameter at a time, first choosing for
+	 * each existing combination the value covering most new pairs, then
+	 * adding combinations for the pairs still missing.
+	 */
+	private List<int[]> pairwise() {
+		int n = names.size();
+		List<int[]> rows = new ArrayList<int[]>();
+		for (int a = 0; a < values.get(0).size(); a++) {
+			for (int b = 0; b < values.get(1).size(); b++) {
+				int[] row = new int[n];
+				Arrays.fill(row, -1);
+				row[0] = a;
+				row[1] = b;
+				rows.add(row);
+			}
+		}
+
+		for (int k = 2; k < n; k++) {
+			int size = values.get(k).size();
+			//uncovered[i][v][w]: value v of parameter i with value w of k
+			boolean[][][] uncovered = new boolean[k][][];
+			for (int i = 0; i < k; i++) {
+				uncovered[i] = new boolean[values.get(i).size()][size];
+				for (boolean[] w : uncovered[i]) {
+					Arrays.fill(w, true);
+				}
+			}
+
+			for (int[] row : rows) {
+				int best = 0;
+				int bestCount = -1;
+				for (int w = 0; w < size; w++) {
+					int count = 0;
+					for (int i = 0; i < k; i++) {
+						if (row[i] >= 0 && uncovered[i][row[i]][w]) {
+							count++;
+						}
+					}
+					if (count > bestCount) {
+						best = w;
+						bestCount = count;
+					}
+				}
+				row[k] = best;
+				cover(row, k, uncovered);
+			}
+
+			for (int i = 0; i < k; i++) {
+				for (int v = 0; v < uncovered[i].length; v++) {
+					for (int w = 0; w < size; w++) {
+						if (!uncovered[i][v][w]) {
+							continue;
+						}
+						int[] target = null;
+						for (int[] row : rows) {
+							if (row[k] == w && row[i] < 0) {
+								target = row;
+								break;
+							}
+						}
+						if (target == null) {
+							target = new int[n];
+							Arrays.fill(target, -1);
+							target[k] = w;
+							rows.add(target);
+						}
+						target[i] = v;
+						cover(target, k, uncovered);
+					}
+				}
+			}
+		}
+
+		//parameters no pair depends on take their first value
+		for (int[] row : rows) {
+			for (int p = 0; p < n; p++) {
+				if (row[p] < 0) {
+					row[p] = 0;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static void cover(int[] row, int k, boolean[][][] uncovered) {
+		for (int i = 0; i < k; i++) {
+			if (row[i] >= 0) {
+				uncovered[i][row[i]][row[k]] = false;
+			}
+		}
+	}
+}
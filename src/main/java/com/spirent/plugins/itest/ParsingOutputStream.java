@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Passes iTestRT output through to the build log while feeding each line to
+ * an {@link OutputParser}.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ParsingOutputStream extends LineTransformationOutputStream {
+
+	private final OutputStream sink;
+	private final OutputParser parser;
+	private final Charset charset;
+
+	public ParsingOutputStream(OutputStream sink, OutputParser parser) {
+		this.sink = sink;
+		this.parser = parser;
+		this.charset = Charset.defaultCharset();
+	}
+
+	@Override
+	protected void eol(byte[] b, int len) throws IOException {
+		parser.parseLine(trimEOL(new String(b, 0, len, charset)),
+				System.currentTimeMillis());
+		sink.write(b, 0, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sink.flush();
+	}
+
+	/**
+	 * The sink belongs to the caller and is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		forceEol();
+		sink.flush();
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.RunAction2;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Progress of the iTestRT execution of a build, updated from the output as
+ * it is read. A summary on the build page polls a small JSON document
+ * instead of the console, and the document is rebuilt at most once a
+ * second whatever the number of watchers.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ProgressAction implements RunAction2 {
+
+	/**
+	 * Previous builds whose durations are used to estimate the remaining
+	 * time.
+	 */
+	static final int HISTORY_BUILDS = 5;
+	/**
+	 * Most previous builds looked at to find HISTORY_BUILDS executions.
+	 */
+	static final int HISTORY_SEARCH = 20;
+	static final long JSON_TTL = 1000;
+
+	private int total;
+	private final Map<String, TestCaseResult.Verdict> verdicts =
+			new LinkedHashMap<String, TestCaseResult.Verdict>();
+	private String current;
+	private boolean finished;
+
+	private transient Run<?, ?> run;
+	private transient List<String> planned;
+	private transient Map<String, Long> expected;
+	/**
+	 * Test case running on each axis, the key of a build without axes
+	 * being null.
+	 */
+	private transient Map<String, String> running;
+	private transient Map<String, Long> runningSince;
+	/**
+	 * Most axes running at the same time, 0 if all of them.
+	 */
+	private transient int parallel;
+	/**
+	 * Controller taking in the results to adapt the number of axes
+	 * running at the same time, or null.
+	 */
+	private transient AdaptiveConcurrency concurrency;
+	private transient long version;
+	private transient String json;
+	private transient long jsonVersion = -1;
+	private transient long jsonTime;
+
+	public String getIconFileName() {
+		return finished ? null : "clock.png";
+	}
+
+	public String getDisplayName() {
+		return "iTest Progress";
+	}
+
+	public String getUrlName() {
+		return "itest-progress";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	/**
+	 * Start tracking an execution.
+	 * @param testCases all test cases of the build, qualified by their
+	 * axis if the build has several
+	 * @param build build running them, whose predecessors provide the
+	 * expected durations
+	 */
+	public synchronized void start(List<String> testCases, Run<?, ?> build) {
+		start(testCases, build, 0);
+	}
+
+	/**
+	 * Start tracking an execution whose axes do not all run at once.
+	 * @param testCases all test cases of the build, qualified by their axis
+	 * @param build build running them
+	 * @param parallel most axes running at the same time, 0 if all
+	 */
+	public synchronized void start(List<String> testCases, Run<?, ?> build,
+			int parallel) {
+		this.parallel = parallel;
+		planned = new ArrayList<String>(testCases);
+		total = planned.size();
+		finished = false;
+		running = new LinkedHashMap<String, String>();
+		runningSince = new HashMap<String, Long>();
+		expected = history(build);
+		version++;
+	}
+
+	/**
+	 * Take in the results parsed since the last update.
+	 * @param parser parser following the execution
+	 * @param reported number of its results already taken in
+	 * @return number of its results taken in
+	 */
+	public synchronized int update(OutputParser parser, int reported) {
+		return update(parser, reported, null);
+	}
+
+	/**
+	 * Take in the results parsed since the last update of one axis.
+	 * @param parser parser following the execution of the axis
+	 * @param reported number of its results already taken in
+	 * @param axis axis name, or null if the build has no axes
+	 * @return number of its results taken in
+	 */
+	public synchronized int update(OutputParser parser, int reported,
+			String axis) {
+		List<TestCaseResult> results = parser.getResults();
+		for (int i = reported; i < results.size(); i++) {
+			String testCase = ExecutionAxis.qualify(axis,
+					results.get(i).getUri());
+			put(testCase, results.get(i).getVerdict());
+			if (concurrency != null) {
+				concurrency.record(results.get(i),
+						expected.get(ExecutionAxis.uriOf(testCase)));
+			}
+		}
+		String now = parser.getCurrent() == null ? null
+				: ExecutionAxis.qualify(axis, parser.getCurrent());
+		String before = running.get(axis);
+		if (now == null ? before != null : !now.equals(before)) {
+			if (before != null) {
+				runningSince.remove(before);
+			}
+			if (now != null) {
+				running.put(axis, now);
+				runningSince.put(now, System.currentTimeMillis());
+			} else {
+				running.remove(axis);
+			}
+			current = running.isEmpty() ? null
+					: Util.join(running.values(), ", ");
+			version++;
+		}
+		return results.size();
+	}
+
+	/**
+	 * Take in a result of an earlier attempt or build.
+	 */
+	public synchronized void add(TestCaseResult result) {
+		put(result.getUri(), result.getVerdict());
+	}
+
+	private void put(String testCase, TestCaseResult.Verdict verdict) {
+		//a retry replaces the verdict of the failed attempt
+		verdicts.remove(testCase);
+		verdicts.put(testCase, verdict);
+		version++;
+	}
+
+	/**
+	 * @return average duration of each test case in previous builds, by
+	 * URI
+	 */
+	synchronized Map<String, Long> getExpected() {
+		return expected == null ? new HashMap<String, Long>()
+				: new HashMap<String, Long>(expected);
+	}
+
+	/**
+	 * Pass the results of the execution on to a concurrency controller.
+	 * @param concurrency controller, or null to stop
+	 */
+	synchronized void watch(AdaptiveConcurrency concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public synchronized void finish() {
+		finished = true;
+		concurrency = null;
+		current = null;
+		planned = null;
+		running = null;
+		runningSince = null;
+		version++;
+	}
+
+	public synchronized int getTotal() {
+		return total;
+	}
+
+	public synchronized int getDone() {
+		return verdicts.size();
+	}
+
+	public synchronized int getPassed() {
+		int passed = 0;
+		for (TestCaseResult.Verdict verdict : verdicts.values()) {
+			if (verdict == TestCaseResult.Verdict.PASS) {
+				passed++;
+			}
+		}
+		return passed;
+	}
+
+	public synchronized int getFailed() {
+		return verdicts.size() - getPassed();
+	}
+
+	public synchronized String getCurrent() {
+		return current;
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return estimated time to completion in milliseconds, -1 if unknown
+	 */
+	public synchronized long getEta() {
+		if (finished || planned == null) {
+			return -1;
+		}
+		long fallback = averageExpected();
+		long now = System.currentTimeMillis();
+		Map<String, Long> axes = new HashMap<String, Long>();
+		for (String testCase : planned) {
+			if (verdicts.containsKey(testCase)) {
+				continue;
+			}
+			Long duration = expected.get(ExecutionAxis.uriOf(testCase));
+			long d = duration != null ? duration : fallback;
+			if (d < 0) {
+				return -1;
+			}
+			Long since = runningSince.get(testCase);
+			if (since != null) {
+				d = Math.max(0, d - (now - since));
+			}
+			String axis = ExecutionAxis.axisOf(testCase);
+			Long sum = axes.get(axis);
+			axes.put(axis, (sum == null ? 0 : sum) + d);
+		}
+		//axes run in parallel, so the slowest one finishes last, unless
+		//fewer run at a time than there are left
+		long eta = 0;
+		long sum = 0;
+		for (long remaining : axes.values()) {
+			eta = Math.max(eta, remaining);
+			sum += remaining;
+		}
+		if (parallel > 0 && axes.size() > parallel) {
+			eta = Math.max(eta, sum / parallel);
+		}
+		return eta;
+	}
+
+	private long averageExpected() {
+		if (expected.isEmpty()) {
+			return -1;
+		}
+		long sum = 0;
+		for (long duration : expected.values()) {
+			sum += duration;
+		}
+		return sum / expected.size();
+	}
+
+	/**
+	 * @return one line summary of the progress
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder()
+				.append(getDone()).append(" of ").append(total)
+				.append(" test cases done (").append(getPassed())
+				.append(" passed, ").append(getFailed()).append(" failed)");
+		if (current != null) {
+			summary.append(", running ").append(current);
+		}
+		long eta = getEta();
+		if (eta >= 0) {
+			summary.append(", about ").append(Util.getTimeSpanString(eta))
+					.append(" left");
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Send the progress as JSON, answering 304 if the caller already has
+	 * the current document.
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		String body;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (json == null || jsonVersion != version
+					|| (!finished && now - jsonTime > JSON_TTL)) {
+				JSONObject o = new JSONObject();
+				o.put("total", total);
+				o.put("done", getDone());
+				o.put("passed", getPassed());
+				o.put("failed", getFailed());
+				o.put("current", current == null ? "" : current);
+				o.put("eta", getEta());
+				o.put("finished", finished);
+				o.put("summary", getSummary());
+				json = o.toString();
+				jsonVersion = version;
+				jsonTime = now;
+			}
+			body = json;
+		}
+
+		String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+		rsp.setHeader("ETag", etag);
+		rsp.setHeader("Cache-Control", "no-cache");
+		if (etag.equals(req.getHeader("If-None-Match"))) {
+			rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(body);
+	}
+
+	/**
+	 * Average test case durations of the last builds that ran iTestRT.
+	 */
+	private static Map<String, Long> history(Run<?, ?> build) {
+		Map<String, long[]> sums = new HashMap<String, long[]>();
+		int found = 0;
+		int searched = 0;
+		for (Run<?, ?> r = build.getPreviousBuild();
+				r != null && found < HISTORY_BUILDS && searched < HISTORY_SEARCH;
+				r = r.getPreviousBuild()) {
+			searched++;
+			ExecutionState state = ExecutionState.load(r);
+			if (state == null) {
+				continue;
+			}
+			found++;
+			for (TestCaseResult result : state.getVerdicts()) {
+				if (result.getDuration() <= 0) {
+					continue;
+				}
+				long[] sum = sums.get(result.getUri());
+				if (sum == null) {
+					sum = new long[2];
+					sums.put(result.getUri(), sum);
+				}
+				sum[0] += result.getDuration();
+				sum[1]++;
+			}
+		}
+
+		Map<String, Long> averages = new HashMap<String, Long>();
+		for (Map.Entry<String, long[]> e : sums.entrySet()) {
+			averages.put(e.getKey(), e.getValue()[0] / e.getValue()[1]);
+		}
+		return averages;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.widgets.Widget;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Side panel widget showing the progress of a running build on each of its
+ * pages, polling the same JSON document as the summary on the build page.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+@Extension
+public class ProgressWidget extends Widget {
+
+	/**
+	 * @return progress of the build whose page is being rendered, or null
+	 * if the page is not one of a build still running iTestRT
+	 */
+	public ProgressAction getProgress() {
+		StaplerRequest req = Stapler.getCurrentRequest();
+		Run<?, ?> run = req == null ? null : req.findAncestorObject(Run.class);
+		ProgressAction progress = run == null
+				? null : run.getAction(ProgressAction.class);
+		return progress == null || progress.isFinished() ? null : progress;
+	}
+}
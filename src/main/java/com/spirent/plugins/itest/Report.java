@@ -167,10 +167,16 @@ public class Report
         }
 
         /**
-         * Serves HTML reports.
+         * Serves HTML reports. Files are sent directly, compressed when 
+         * the client accepts it; the wrapper index, directory listings and 
+         * zip downloads are left to the directory browser.
          */
         public void doDynamic(StaplerRequest req, StaplerResponse rsp) 
         		throws IOException, ServletException {
+            if (ArchivedReportServer.serve(req, rsp, this.dir(), 
+            		this.isImmutable())) {
+                return;
+            }
             DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(
             		this, new FilePath(this.dir()), this.getTitle(), 
             		"/plugin/itest/images/24x24/Spirent_favicon.ico", false);
@@ -182,6 +188,11 @@ public class Report
         protected abstract String getTitle();
 
         protected abstract File dir();
+
+        /**
+         * @return true if the served archive never changes once written
+         */
+        protected abstract boolean isImmutable();
     }
 
     public class HTMLAction extends BaseHTMLAction 
@@ -214,6 +225,12 @@ public class Report
             return getProjectArchiveDir(this.project);
         }
 
+        @Override
+        protected boolean isImmutable() {
+            // follows the last successful build
+            return false;
+        }
+
         @Override
         protected String getTitle() {
             return this.project.getDisplayName() + " html2";
@@ -242,6 +259,11 @@ public class Report
         protected File dir() {
             return getBuildArchiveDir(this.build);
         }
+
+        @Override
+        protected boolean isImmutable() {
+            return true;
+        }
     }
 
     public void handleAction(AbstractBuild<?, ?> build) {
@@ -254,4 +276,4 @@ public class Report
     public Action getProjectAction(AbstractProject project) {
         return new HTMLAction(project, this);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
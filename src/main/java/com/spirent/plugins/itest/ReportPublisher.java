@@ -44,7 +44,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -162,6 +164,10 @@ public class ReportPublisher {
 			return false;
 		}
 
+		ReportSummary summary = new ReportSummary(); 
+		//variants of project level archives written by this build 
+		Set<File> replaced = new HashSet<File>(); 
+
 		for (int i=0; i < this.reportTargets.size(); i++) {
 			// Create an array of lines to write out, initially the header
 			ArrayList<String> reportLines = new ArrayList<String>(headerLines);
@@ -275,11 +281,56 @@ public class ReportPublisher {
 					reportTarget.handleAction(build);
 					writeFile(reportLines, new File(targetDir.getRemote(), 
 							reportTarget.getWrapperName()));
+					summarize(summary, reportTarget, reports, targetDir, 
+							listener); 
+					// Compress once here rather than on every download 
+					File archived = new File(targetDir.getRemote()); 
+					try { 
+						ArchivedReportServer.precompress(archived, !keepAll 
+								&& replaced.add(ArchivedReportServer
+										.variantsOf(archived))); 
+					} catch (IOException e) { 
+						e.printStackTrace(listener.error("Failed to compress " 
+								+ archived + ", serving it uncompressed")); 
+					}
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+
+		if (!summary.getEntries().isEmpty()) { 
+			try { 
+				summary.save(build); 
+				if (build.getAction(ReportSummaryAction.class) == null) { 
+					build.addAction(new ReportSummaryAction()); 
+				}
+			} catch (IOException e) { 
+				e.printStackTrace(listener.error(
+						"Failed to save report summary")); 
+			}
+		}
 		return true;
 	}
+
+	/**
+	 * Extract the summary of each archived report, reading it once from 
+	 * the archive on the controller. 
+	 */
+	private static void summarize(ReportSummary summary, Report reportTarget, 
+			List<String> reports, FilePath targetDir, BuildListener listener) { 
+		for (String report : reports) { 
+			File html = new File(targetDir.getRemote(), report); 
+			if (!html.isFile()) { 
+				continue; 
+			}
+			try { 
+				summary.add(ReportSummary.scan(reportTarget.getReportName(), 
+						html)); 
+			} catch (IOException e) { 
+				listener.error("Failed to summarize " + html + ": " 
+						+ e.getMessage()); 
+			}
+		}
+	}
 }
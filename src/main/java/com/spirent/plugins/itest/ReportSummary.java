@@ -0,0 +1,301 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.XmlFile;
+import hudson.model.Run;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Verdict, duration, step counts and failure messages of the test case
+ * reports of a build, extracted once while the reports are archived so
+ * that pages and APIs never parse the HTML again.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ReportSummary {
+
+	static final String FILE_NAME = "itest-report-summary.xml";
+	static final int MAX_MESSAGES = 5;
+	static final int MAX_MESSAGE_LENGTH = 500;
+
+	private static final Pattern VERDICT = Pattern.compile(
+			"(?i)^(pass(ed)?|fail(ed)?|abort(ed)?|error)$");
+	private static final Pattern INLINE_VERDICT = Pattern.compile(
+			"(?i)(?:execution status|verdict)\\s*:?\\s*(pass|fail|abort|error)");
+	private static final Pattern DURATION_LABEL = Pattern.compile(
+			"(?i)^(duration|elapsed time|execution time)\\s*:?$");
+	private static final Pattern VERDICT_LABEL = Pattern.compile(
+			"(?i)^(execution status|verdict|status|result)\\s*:?$");
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public void add(Entry entry) {
+		entries.add(entry);
+	}
+
+	private static XmlFile fileOf(Run<?, ?> run) {
+		return new XmlFile(Jenkins.XSTREAM2,
+				new File(run.getRootDir(), FILE_NAME));
+	}
+
+	/**
+	 * @return summary saved with a build, or null if there is none
+	 */
+	public static ReportSummary load(Run<?, ?> run) throws IOException {
+		XmlFile file = fileOf(run);
+		return file.exists() ? (ReportSummary) file.read() : null;
+	}
+
+	public void save(Run<?, ?> run) throws IOException {
+		fileOf(run).write(this);
+	}
+
+	/**
+	 * Extract the summary of one test case report. The report is read once
+	 * as a stream of tags and text, without building a document. A verdict
+	 * is the text following a verdict label or an inline
+	 * "Execution status: Pass"; later standalone Pass/Fail texts are
+	 * counted as step verdicts; texts containing "Error" or following a
+	 * failed step are kept as failure messages.
+	 * @param name report name shown to users
+	 * @param html report file
+	 */
+	public static Entry scan(String name, File html) throws IOException {
+		Entry entry = new Entry(name);
+		Reader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(html), "UTF-8"));
+		try {
+			String previous = "";
+			boolean afterFailedStep = false;
+			String text;
+			HtmlTextReader texts = new HtmlTextReader(reader);
+			while ((text = texts.next()) != null) {
+				if (VERDICT_LABEL.matcher(previous).matches()
+						&& entry.verdict == null
+						&& VERDICT.matcher(text).matches()) {
+					entry.verdict = TestCaseResult.Verdict.parse(text);
+				} else if (DURATION_LABEL.matcher(previous).matches()
+						&& entry.duration == null) {
+					entry.duration = text;
+				} else if (VERDICT.matcher(text).matches()) {
+					TestCaseResult.Verdict step =
+							TestCaseResult.Verdict.parse(text);
+					entry.steps++;
+					if (step == TestCaseResult.Verdict.PASS) {
+						entry.passedSteps++;
+					} else {
+						entry.failedSteps++;
+						afterFailedStep = true;
+						previous = text;
+						continue;
+					}
+				} else {
+					Matcher inline = INLINE_VERDICT.matcher(text);
+					if (entry.verdict == null && inline.find()) {
+						entry.verdict = TestCaseResult.Verdict.parse(
+								inline.group(1));
+					} else if ((afterFailedStep || text.contains("Error"))
+							&& !VERDICT_LABEL.matcher(text).matches()) {
+						entry.addMessage(text);
+					}
+				}
+				afterFailedStep = false;
+				previous = text;
+			}
+		} finally {
+			reader.close();
+		}
+		if (entry.verdict == null) {
+			entry.verdict = entry.steps == 0 ? TestCaseResult.Verdict.UNKNOWN
+					: (entry.failedSteps > 0 ? TestCaseResult.Verdict.FAIL
+							: TestCaseResult.Verdict.PASS);
+		}
+		return entry;
+	}
+
+	/**
+	 * Splits HTML into its text nodes, skipping scripts, styles and
+	 * comments, reading one character at a time from a buffered reader.
+	 */
+	static final class HtmlTextReader {
+		private final Reader in;
+		private final StringBuilder text = new StringBuilder();
+		private final StringBuilder tag = new StringBuilder();
+		private boolean skipping;
+
+		HtmlTextReader(Reader in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return next non blank text with entities decoded and white space
+		 * collapsed, or null at the end of the document
+		 */
+		String next() throws IOException {
+			int c;
+			while ((c = in.read()) >= 0) {
+				if (c != '<') {
+					if (!skipping) {
+						text.append((char) c);
+					}
+					continue;
+				}
+				readTag();
+				String name = tagName();
+				if (name.equals("script") || name.equals("style")) {
+					skipping = true;
+				} else if (name.equals("/script") || name.equals("/style")) {
+					skipping = false;
+				}
+				String node = flush();
+				if (!node.isEmpty()) {
+					return node;
+				}
+			}
+			String node = flush();
+			return node.isEmpty() ? null : node;
+		}
+
+		private void readTag() throws IOException {
+			tag.setLength(0);
+			int c;
+			boolean comment = false;
+			while ((c = in.read()) >= 0) {
+				tag.append((char) c);
+				if (tag.length() == 3 && tag.toString().equals("!--")) {
+					comment = true;
+				}
+				if (c == '>' && (!comment || endsComment())) {
+					return;
+				}
+			}
+		}
+
+		private boolean endsComment() {
+			int n = tag.length();
+			return n >= 5 && tag.charAt(n - 2) == '-' && tag.charAt(n - 3) == '-';
+		}
+
+		private String tagName() {
+			int end = 0;
+			while (end < tag.length()
+					&& !Character.isWhitespace(tag.charAt(end))
+					&& tag.charAt(end) != '>') {
+				end++;
+			}
+			return tag.substring(0, end).toLowerCase();
+		}
+
+		private String flush() {
+			String node = decode(text.toString()).replaceAll("\\s+", " ")
+					.trim();
+			text.setLength(0);
+			return node;
+		}
+
+		private static String decode(String s) {
+			if (s.indexOf('&') < 0) {
+				return s;
+			}
+			return s.replace("&nbsp;", " ").replace("&lt;", "<")
+					.replace("&gt;", ">").replace("&quot;", "\"")
+					.replace("&#39;", "'").replace("&amp;", "&");
+		}
+	}
+
+	/**
+	 * Summary of one test case report.
+	 */
+	public static final class Entry {
+		private final String name;
+		private TestCaseResult.Verdict verdict;
+		private String duration;
+		private int steps;
+		private int passedSteps;
+		private int failedSteps;
+		private final List<String> messages = new ArrayList<String>();
+
+		Entry(String name) {
+			this.name = name;
+		}
+
+		void addMessage(String message) {
+			if (messages.size() < MAX_MESSAGES) {
+				messages.add(message.length() > MAX_MESSAGE_LENGTH
+						? message.substring(0, MAX_MESSAGE_LENGTH) + "..."
+						: message);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public TestCaseResult.Verdict getVerdict() {
+			return verdict;
+		}
+
+		/**
+		 * @return duration as printed in the report, or null
+		 */
+		public String getDuration() {
+			return duration;
+		}
+
+		public int getSteps() {
+			return steps;
+		}
+
+		public int getPassedSteps() {
+			return passedSteps;
+		}
+
+		public int getFailedSteps() {
+			return failedSteps;
+		}
+
+		public List<String> getMessages() {
+			return messages;
+		}
+	}
+}
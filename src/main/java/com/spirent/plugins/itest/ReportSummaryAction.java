@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.RunAction2;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Shows the summaries extracted from the test case reports of a build.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ReportSummaryAction implements RunAction2 {
+
+	private static final Logger LOGGER =
+			Logger.getLogger(ReportSummaryAction.class.getName());
+
+	private transient Run<?, ?> run;
+	private transient SoftReference<ReportSummary> summary;
+
+	public String getIconFileName() {
+		return "/plugin/itest/images/24x24/Spirent_favicon.ico";
+	}
+
+	public String getDisplayName() {
+		return "iTest Report Summary";
+	}
+
+	public String getUrlName() {
+		return "itest-summary";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	/**
+	 * @return summaries of the test case reports, loaded on first use
+	 */
+	public synchronized List<ReportSummary.Entry> getEntries() {
+		ReportSummary loaded = summary == null ? null : summary.get();
+		if (loaded == null) {
+			try {
+				loaded = ReportSummary.load(run);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot read report summary of "
+						+ run, e);
+			}
+			if (loaded == null) {
+				return Collections.emptyList();
+			}
+			summary = new SoftReference<ReportSummary>(loaded);
+		}
+		return loaded.getEntries();
+	}
+
+	/**
+	 * Send the summaries as JSON.
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		JSONArray reports = new JSONArray();
+		for (ReportSummary.Entry entry : getEntries()) {
+			JSONObject o = new JSONObject();
+			o.put("name", entry.getName());
+			o.put("verdict", String.valueOf(entry.getVerdict()));
+			o.put("duration", entry.getDuration() == null
+					? "" : entry.getDuration());
+			o.put("steps", entry.getSteps());
+			o.put("passedSteps", entry.getPassedSteps());
+			o.put("failedSteps", entry.getFailedSteps());
+			o.put("messages", JSONArray.fromObject(entry.getMessages()));
+			reports.add(o);
+		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(new JSONObject().element("reports", reports));
+	}
+}
@@ -0,0 +1,503 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Samples what the processes of a phase of an iTest build consume: CPU
+ * time, resident memory, I/O and threads, read from /proc on Linux nodes.
+ * The processes of a build are found by the BUILD_TAG variable every
+ * process launched for the build inherits. The CPU time and I/O of a
+ * process include those of the children it waited for; those of the
+ * processes of the build started by something else are counted up to the
+ * last sample that saw them, and totals never go down from one sample to
+ * the next.
+ * <p>
+ * Each phase adds a summary to the {@link ResourceUsageAction} of the
+ * build and its samples to a CSV file in the build directory.
+ * <p>
+ * Samples are taken on threads of their own rather than on the shared
+ * Jenkins timer, and an agent that does not answer within
+ * {@link #CALL_TIMEOUT} only costs a sample, so that a slow agent holds up
+ * neither other periodic work nor the build stopping the sampler.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class ResourceSampler {
+
+	/**
+	 * Time series of every phase of a build, in the build directory.
+	 */
+	static final String SERIES = "itest-resources.csv";
+	/**
+	 * Most samples kept per phase; longer phases keep every other sample.
+	 */
+	static final int MAX_POINTS = 720;
+	/**
+	 * Clock ticks per second of the CPU times in /proc, the same on every
+	 * Linux architecture the agents run on.
+	 */
+	static final long USER_HZ = 100;
+	/**
+	 * Longest wait in milliseconds for an agent to answer a probe.
+	 */
+	static final long CALL_TIMEOUT = Long.getLong(
+			ResourceSampler.class.getName() + ".timeout",
+			TimeUnit.SECONDS.toMillis(10));
+	/**
+	 * Runs the probes of every node, also those of
+	 * {@link AdaptiveConcurrency}.
+	 */
+	static final ScheduledExecutorService PROBES =
+			Executors.newScheduledThreadPool(4, new NamingThreadFactory(
+					new DaemonThreadFactory(), "iTest resource probe"));
+
+	private final AbstractBuild<?, ?> build;
+	private final String phase;
+	private final VirtualChannel channel;
+	private final String tag;
+	private final long started = System.currentTimeMillis();
+	private ScheduledFuture<?> task;
+	private boolean unsupported;
+	private boolean stopped;
+	/**
+	 * When the probe of the last sample recorded was sent.
+	 */
+	private long lastTaken;
+
+	/**
+	 * CPU ticks, bytes read, bytes written and parent pid of each process
+	 * of the last sample, by pid and start time.
+	 */
+	private Map<String, long[]> processes = new HashMap<String, long[]>();
+	/**
+	 * CPU ticks, bytes read and bytes written of processes that exited with
+	 * no ancestor left in the build to account for them.
+	 */
+	private final long[] exited = new long[3];
+	/**
+	 * CPU ticks, bytes read and bytes written of the last sample, which
+	 * those of the next one never go below.
+	 */
+	private final long[] totals = new long[3];
+	private final List<long[]> points = new ArrayList<long[]>();
+	private int stride = 1;
+	private int skipped;
+	private int samples;
+	private long peakRss;
+	private long peakThreads;
+	private long peakProcesses;
+
+	private ResourceSampler(AbstractBuild<?, ?> build, String phase,
+			VirtualChannel channel, String tag) {
+		this.build = build;
+		this.phase = phase;
+		this.channel = channel;
+		this.tag = tag;
+	}
+
+	/**
+	 * Start sampling the processes of a build.
+	 * @param phase name of what the processes do, e.g. export
+	 * @return sampler to stop when the phase ends, or null if sampling is
+	 * disabled or the node is offline
+	 */
+	static ResourceSampler start(AbstractBuild<?, ?> build, String phase,
+			TaskListener listener) {
+		Jenkins jenkins = Jenkins.getInstance();
+		ITest.Descriptor global = jenkins == null ? null
+				: jenkins.getDescriptorByType(ITest.Descriptor.class);
+		int interval = global == null ? 0 : global.getResourceSampleSeconds();
+		Node node = build.getBuiltOn();
+		VirtualChannel channel = node == null ? null : node.getChannel();
+		if (interval <= 0 || channel == null) {
+			return null;
+		}
+		String tag;
+		try {
+			tag = build.getEnvironment(listener).get("BUILD_TAG");
+		} catch (IOException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (tag == null) {
+			return null;
+		}
+
+		final ResourceSampler sampler =
+				new ResourceSampler(build, phase, channel, tag);
+		synchronized (sampler) {
+			sampler.task = PROBES.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					sampler.sample();
+				}
+			}, 0, interval, TimeUnit.SECONDS);
+		}
+		return sampler;
+	}
+
+	/**
+	 * Stop sampling and record the phase in the build.
+	 * @param sampler may be null
+	 */
+	static void stop(ResourceSampler sampler) {
+		if (sampler != null) {
+			sampler.stop();
+		}
+	}
+
+	private void stop() {
+		task.cancel(false);
+		//CPU time and I/O up to the end of the phase
+		sample();
+		ResourceUsageAction.Phase summary;
+		synchronized (this) {
+			//samples still in flight are dropped from now on
+			stopped = true;
+			if (unsupported || samples == 0) {
+				return;
+			}
+			summary = new ResourceUsageAction.Phase(phase, started,
+					System.currentTimeMillis() - started,
+					last(1) * 1000 / USER_HZ, peakRss * 1024, last(3),
+					last(4), peakThreads, peakProcesses, samples);
+		}
+		synchronized (build) {
+			ResourceUsageAction action =
+					build.getAction(ResourceUsageAction.class);
+			if (action == null) {
+				action = new ResourceUsageAction();
+				build.addAction(action);
+			}
+			action.add(summary);
+			try {
+				append(new File(build.getRootDir(), SERIES));
+			} catch (IOException e) {
+				//the summary is still recorded
+			}
+		}
+	}
+
+	private long last(int column) {
+		return points.isEmpty() ? 0 : points.get(points.size() - 1)[column];
+	}
+
+	/**
+	 * Call the node without holding the lock on the sampler, then record
+	 * what it answered.
+	 */
+	private void sample() {
+		synchronized (this) {
+			if (unsupported || stopped) {
+				return;
+			}
+		}
+		long taken = System.currentTimeMillis();
+		List<long[]> found;
+		try {
+			found = call(channel, new Sample(tag));
+		} catch (IOException e) {
+			return;
+		} catch (InterruptedException e) {
+			return;
+		}
+		record(taken, found);
+	}
+
+	/**
+	 * Call a node, giving up after {@link #CALL_TIMEOUT}.
+	 * @throws IOException if the node failed or did not answer in time
+	 */
+	static <V> V call(VirtualChannel channel,
+			MasterToSlaveCallable<V, IOException> callable)
+			throws IOException, InterruptedException {
+		Future<V> answer = channel.callAsync(callable);
+		try {
+			return answer.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			answer.cancel(true);
+			throw new IOException("No answer from the agent within "
+					+ CALL_TIMEOUT + " ms", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			answer.cancel(true);
+			throw e;
+		}
+	}
+
+	private synchronized void record(long taken, List<long[]> found) {
+		//a sample overtaken by a later one, or by the end of the phase
+		if (stopped || taken < lastTaken) {
+			return;
+		}
+		lastTaken = taken;
+		if (found == null) {
+			unsupported = true;
+			task.cancel(false);
+			return;
+		}
+
+		Set<Long> pids = new HashSet<Long>();
+		for (long[] p : found) {
+			pids.add(p[0]);
+		}
+		long rss = 0;
+		long threads = 0;
+		Map<String, long[]> current = new HashMap<String, long[]>();
+		for (long[] p : found) {
+			current.put(p[0] + ":" + p[1], new long[] { p[2], p[4], p[5],
+					p[7] });
+			rss += p[3];
+			threads += p[6];
+		}
+		Map<Long, Long> parents = new HashMap<Long, Long>();
+		for (Map.Entry<String, long[]> seen : processes.entrySet()) {
+			parents.put(pid(seen.getKey()), seen.getValue()[3]);
+		}
+		for (Map.Entry<String, long[]> seen : processes.entrySet()) {
+			if (current.containsKey(seen.getKey())) {
+				continue;
+			}
+			//an ancestor still in the build has taken over what it used,
+			//even if the processes in between exited as well
+			long ancestor = seen.getValue()[3];
+			for (int hops = 0; !pids.contains(ancestor)
+					&& parents.containsKey(ancestor)
+					&& hops < parents.size(); hops++) {
+				ancestor = parents.get(ancestor);
+			}
+			if (!pids.contains(ancestor)) {
+				for (int i = 0; i < exited.length; i++) {
+					exited[i] += seen.getValue()[i];
+				}
+			}
+		}
+		processes = current;
+		long[] sum = exited.clone();
+		for (long[] process : processes.values()) {
+			for (int i = 0; i < sum.length; i++) {
+				sum[i] += process[i];
+			}
+		}
+		//a process that exited without being waited for takes what it used
+		//with it, which must not make the series go backwards
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] = Math.max(totals[i], sum[i]);
+		}
+		long cpu = totals[0];
+		long read = totals[1];
+		long written = totals[2];
+		peakRss = Math.max(peakRss, rss);
+		peakThreads = Math.max(peakThreads, threads);
+		peakProcesses = Math.max(peakProcesses, found.size());
+		samples++;
+
+		long[] point = { taken - started, cpu, rss, read, written, threads,
+				found.size() };
+		if (skipped > 0) {
+			//each kept point is the last sample of its stride
+			points.set(points.size() - 1, point);
+		} else {
+			if (points.size() >= MAX_POINTS) {
+				List<long[]> kept = new ArrayList<long[]>();
+				for (int i = 1; i < points.size(); i += 2) {
+					kept.add(points.get(i));
+				}
+				points.clear();
+				points.addAll(kept);
+				stride *= 2;
+			}
+			points.add(point);
+		}
+		skipped = (skipped + 1) % stride;
+	}
+
+	/**
+	 * @param key pid and start time of a process
+	 */
+	private static long pid(String key) {
+		return Long.parseLong(key.substring(0, key.indexOf(':')));
+	}
+
+	private void append(File file) throws IOException {
+		boolean header = !file.isFile();
+		Writer out = new OutputStreamWriter(
+				new FileOutputStream(file, true), "UTF-8");
+		try {
+			if (header) {
+				out.write("phase,elapsed_ms,cpu_ms,rss_kb,read_bytes,"
+						+ "write_bytes,threads,processes\n");
+			}
+			String name = "\"" + phase.replace("\"", "\"\"") + "\"";
+			for (long[] p : points) {
+				out.write(name + "," + p[0] + "," + (p[1] * 1000 / USER_HZ)
+						+ "," + p[2] + "," + p[3] + "," + p[4] + "," + p[5]
+						+ "," + p[6] + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the processes of a build from /proc on the node.
+	 */
+	private static final class Sample
+			extends MasterToSlaveCallable<ArrayList<long[]>, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String tag;
+
+		Sample(String tag) {
+			this.tag = tag;
+		}
+
+		/**
+		 * @return pid, start time, CPU ticks, resident kB, bytes read,
+		 * bytes written, threads and parent pid of each process; null if
+		 * the node has no /proc
+		 */
+		public ArrayList<long[]> call() throws IOException {
+			File proc = new File("/proc");
+			if (!new File(proc, "self/stat").isFile()) {
+				return null;
+			}
+			String variable = "\0BUILD_TAG=" + tag + "\0";
+			ArrayList<long[]> found = new ArrayList<long[]>();
+			String[] pids = proc.list();
+			if (pids == null) {
+				return found;
+			}
+			for (String pid : pids) {
+				if (pid.isEmpty() || !Character.isDigit(pid.charAt(0))) {
+					continue;
+				}
+				File dir = new File(proc, pid);
+				try {
+					if (!("\0" + read(new File(dir, "environ")))
+							.contains(variable)) {
+						continue;
+					}
+					//fields after the command name, which may contain spaces
+					String stat = read(new File(dir, "stat"));
+					String[] f = stat.substring(stat.lastIndexOf(')') + 2)
+							.split(" ");
+					long[] p = new long[8];
+					p[0] = Long.parseLong(pid);
+					p[1] = Long.parseLong(f[19]);
+					//user and system time, of the children waited for too
+					p[2] = Long.parseLong(f[11]) + Long.parseLong(f[12])
+							+ Long.parseLong(f[13]) + Long.parseLong(f[14]);
+					p[3] = value(read(new File(dir, "status")), "VmRSS:");
+					p[6] = Long.parseLong(f[17]);
+					p[7] = Long.parseLong(f[1]);
+					try {
+						String io = read(new File(dir, "io"));
+						p[4] = value(io, "read_bytes:");
+						p[5] = value(io, "write_bytes:");
+					} catch (IOException e) {
+						//I/O counters need the same user, or are not built in
+					}
+					found.add(p);
+				} catch (IOException e) {
+					//exited, or not a process of this user
+				} catch (RuntimeException e) {
+					//exited while being read
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Read a file of /proc, which has no length.
+	 */
+	static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return number following a key such as VmRSS: in a file of /proc, 0
+	 * if missing
+	 */
+	static long value(String text, String key) {
+		int at = text.indexOf(key);
+		if (at < 0) {
+			return 0;
+		}
+		String rest = text.substring(at + key.length()).trim();
+		int end = 0;
+		while (end < rest.length() && Character.isDigit(rest.charAt(end))) {
+			end++;
+		}
+		return end == 0 ? 0 : Long.parseLong(rest.substring(0, end));
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.RunAction2;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * What the iTestCLI and iTestRT processes of each phase of a build
+ * consumed, to size the nodes running iTest builds.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ResourceUsageAction implements RunAction2 {
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	private transient Run<?, ?> run;
+
+	public String getIconFileName() {
+		return "/plugin/itest/images/24x24/Spirent_favicon.ico";
+	}
+
+	public String getDisplayName() {
+		return "iTest Resources";
+	}
+
+	public String getUrlName() {
+		return "itest-resources";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	public synchronized List<Phase> getPhases() {
+		return new ArrayList<Phase>(phases);
+	}
+
+	synchronized void add(Phase phase) {
+		phases.add(phase);
+	}
+
+	/**
+	 * Serve the samples of every phase as CSV.
+	 */
+	public void doSeries(StaplerRequest req, StaplerResponse rsp)
+			throws IOException, ServletException {
+		File file = run == null ? null
+				: new File(run.getRootDir(), ResourceSampler.SERIES);
+		if (file == null || !file.isFile()) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		rsp.setContentType("text/csv;charset=UTF-8");
+		rsp.serveFile(req, file.toURI().toURL());
+	}
+
+	/**
+	 * @return bytes in KB, MB or GB, one decimal
+	 */
+	static String size(long bytes) {
+		if (bytes < 1024 * 1024) {
+			return String.format("%.1f KB", bytes / 1024.0);
+		} else if (bytes < 1024L * 1024 * 1024) {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024));
+		}
+		return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	/**
+	 * Totals and peaks of one phase.
+	 */
+	public static final class Phase {
+		private final String name;
+		private final long start;
+		private final long duration;
+		private final long cpu;
+		private final long peakRss;
+		private final long read;
+		private final long written;
+		private final long peakThreads;
+		private final long peakProcesses;
+		private final int samples;
+
+		Phase(String name, long start, long duration, long cpu, long peakRss,
+				long read, long written, long peakThreads, long peakProcesses,
+				int samples) {
+			this.name = name;
+			this.start = start;
+			this.duration = duration;
+			this.cpu = cpu;
+			this.peakRss = peakRss;
+			this.read = read;
+			this.written = written;
+			this.peakThreads = peakThreads;
+			this.peakProcesses = peakProcesses;
+			this.samples = samples;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getDurationString() {
+			return Util.getTimeSpanString(duration);
+		}
+
+		/**
+		 * @return CPU time of every process, in milliseconds
+		 */
+		public long getCpu() {
+			return cpu;
+		}
+
+		public String getCpuString() {
+			return Util.getTimeSpanString(cpu);
+		}
+
+		/**
+		 * @return CPU time over wall time, the number of cores kept busy
+		 */
+		public String getAverageCores() {
+			return String.format("%.2f", duration == 0 ? 0.0
+					: (double) cpu / duration);
+		}
+
+		/**
+		 * @return most memory resident at once, in bytes
+		 */
+		public long getPeakRss() {
+			return peakRss;
+		}
+
+		public String getPeakRssString() {
+			return size(peakRss);
+		}
+
+		public long getRead() {
+			return read;
+		}
+
+		public String getReadString() {
+			return size(read);
+		}
+
+		public long getWritten() {
+			return written;
+		}
+
+		public String getWrittenString() {
+			return size(written);
+		}
+
+		public long getPeakThreads() {
+			return peakThreads;
+		}
+
+		public long getPeakProcesses() {
+			return peakProcesses;
+		}
+
+		public int getSamples() {
+			return samples;
+		}
+	}
+}
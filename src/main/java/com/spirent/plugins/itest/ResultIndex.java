@@ -0,0 +1,278 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.model.Run;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Final verdict of each test case of a build, one line per test case in a
+ * tab separated file of the build directory. The file is written from the
+ * execution states of the build the first time its results are asked for
+ * once it finished, so that they are served without reading the execution
+ * states, logs or reports again. The results of a running build are read
+ * from its execution states until then.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class ResultIndex {
+
+	private static final Logger LOGGER =
+			Logger.getLogger(ResultIndex.class.getName());
+
+	static final String FILE_NAME = "itest-results.tsv";
+
+	/**
+	 * Indexes read in this JVM, by build directory.
+	 */
+	private static final Map<String, SoftReference<ResultIndex>> LOADED =
+			new HashMap<String, SoftReference<ResultIndex>>();
+
+	private final List<Row> rows;
+	private final long stamp;
+	/**
+	 * False while read from the execution states of a running build.
+	 */
+	private final boolean complete;
+
+	private ResultIndex(List<Row> rows, long stamp, boolean complete) {
+		this.rows = Collections.unmodifiableList(rows);
+		this.stamp = stamp;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return results of a build, empty if it did not run iTestRT
+	 */
+	public static ResultIndex of(Run<?, ?> run) {
+		File dir = run.getRootDir();
+		File file = new File(dir, FILE_NAME);
+		long stamp = file.isFile() ? file.lastModified() : executionStamp(dir);
+		synchronized (LOADED) {
+			SoftReference<ResultIndex> ref = LOADED.get(dir.getPath());
+			ResultIndex index = ref == null ? null : ref.get();
+			if (index != null && index.stamp == stamp
+					&& (index.complete || run.isBuilding())) {
+				return index;
+			}
+		}
+
+		ResultIndex index = null;
+		if (file.isFile()) {
+			try {
+				index = new ResultIndex(read(file, run.getNumber()), stamp,
+						true);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Rebuilding " + file, e);
+			}
+		}
+		if (index == null) {
+			List<Row> rows = fromExecutions(run);
+			boolean complete = !run.isBuilding();
+			if (complete && stamp != 0) {
+				try {
+					write(file, rows);
+					stamp = file.lastModified();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Cannot save " + file, e);
+				}
+			}
+			index = new ResultIndex(rows, stamp, complete);
+		}
+		synchronized (LOADED) {
+			LOADED.put(dir.getPath(), new SoftReference<ResultIndex>(index));
+		}
+		return index;
+	}
+
+	/**
+	 * @return last modification of the execution states of a build, 0 if
+	 * it has none
+	 */
+	private static long executionStamp(File dir) {
+		long stamp = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith("itest-execution")
+						&& f.getName().endsWith(".xml")) {
+					stamp = Math.max(stamp, f.lastModified());
+				}
+			}
+		}
+		return stamp;
+	}
+
+	private static List<Row> fromExecutions(Run<?, ?> run) {
+		List<ExecutionState> states = ExecutionState.loadAll(run);
+		//axes in name order, whatever the order of the files
+		Collections.sort(states, new Comparator<ExecutionState>() {
+			public int compare(ExecutionState a, ExecutionState b) {
+				return String.valueOf(a.getAxis()).compareTo(
+						String.valueOf(b.getAxis()));
+			}
+		});
+		List<Row> rows = new ArrayList<Row>();
+		for (ExecutionState state : states) {
+			for (TestCaseResult result : state.getVerdicts()) {
+				rows.add(new Row(run.getNumber(), state.getAxis(), result));
+			}
+		}
+		return rows;
+	}
+
+	private static List<Row> read(File file, int build) throws IOException {
+		List<Row> rows = new ArrayList<Row>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] f = line.split("\t", -1);
+				if (f.length < 6) {
+					continue;
+				}
+				rows.add(new Row(build, f[0].isEmpty() ? null : f[0],
+						new TestCaseResult(f[1],
+								TestCaseResult.Verdict.parse(f[2]),
+								Long.parseLong(f[3]), Long.parseLong(f[4]),
+								f[5].isEmpty() ? null : f[5])));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt " + file, e);
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	private static void write(File file, List<Row> rows) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp),
+				"UTF-8");
+		try {
+			for (Row row : rows) {
+				out.write(clean(row.axis) + "\t" + clean(row.testCase) + "\t"
+						+ row.verdict.name() + "\t" + row.start + "\t"
+						+ row.duration + "\t" + clean(row.message) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot rename " + temp);
+			}
+		}
+	}
+
+	private static String clean(String s) {
+		return s == null ? "" : s.replaceAll("[\t\r\n]+", " ");
+	}
+
+	public List<Row> getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return changes whenever the results do
+	 */
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Final result of one test case on one axis.
+	 */
+	public static final class Row {
+		private final int build;
+		private final String axis;
+		private final String testCase;
+		private final TestCaseResult.Verdict verdict;
+		private final long start;
+		private final long duration;
+		private final String message;
+
+		Row(int build, String axis, TestCaseResult result) {
+			this.build = build;
+			this.axis = axis;
+			this.testCase = result.getUri();
+			this.verdict = result.getVerdict();
+			this.start = result.getStartTime();
+			this.duration = result.getDuration();
+			this.message = result.getMessage();
+		}
+
+		public int getBuild() {
+			return build;
+		}
+
+		/**
+		 * @return axis name, or null if the build has no axes
+		 */
+		public String getAxis() {
+			return axis;
+		}
+
+		public String getTestCase() {
+			return testCase;
+		}
+
+		public TestCaseResult.Verdict getVerdict() {
+			return verdict;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind ingestion of test case results into the test report
+ * database. Builds queue their results and return immediately; a few
+ * writer threads insert them in batches over a shared connection pool.
+ * When the queue is full, builds wait for room instead of growing the
+ * queue without bound.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ResultIngestor {
+
+	private static final Logger LOGGER =
+			Logger.getLogger(ResultIngestor.class.getName());
+
+	static final int QUEUE_CAPACITY = 10000;
+	static final int BATCH_SIZE = 200;
+	static final int WRITERS = 2;
+	static final int MAX_RETRIES = 5;
+	static final long RETRY_DELAY = 1000;
+	static final long OFFER_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+	static final long BORROW_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+	static final int MAX_TEXT = 1024;
+
+	static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS "
+			+ "itest_results (job_name VARCHAR(255), build_number INT, "
+			+ "test_case VARCHAR(1024), verdict VARCHAR(16), "
+			+ "start_time BIGINT, duration_ms BIGINT, "
+			+ "message VARCHAR(1024), custom_tag VARCHAR(255))";
+	static final String INSERT = "INSERT INTO itest_results (job_name, "
+			+ "build_number, test_case, verdict, start_time, duration_ms, "
+			+ "message, custom_tag) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static final Object LOCK = new Object();
+	private static ResultIngestor instance;
+	private static String instanceKey;
+
+	/**
+	 * One queued result with the build it belongs to.
+	 */
+	static class Row {
+		final String job;
+		final int build;
+		final String tag;
+		final TestCaseResult result;
+
+		Row(String job, int build, String tag, TestCaseResult result) {
+			this.job = job;
+			this.build = build;
+			this.tag = tag;
+			this.result = result;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final BlockingQueue<Row> queue;
+	private final int batchSize;
+	private final ExecutorService writers;
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile boolean stopping;
+	private volatile boolean tableReady;
+
+	/**
+	 * @param factory source of database connections
+	 * @param queueCapacity results that can wait before builds block
+	 * @param batchSize maximum rows per insert batch
+	 * @param writerCount number of writer threads and pooled connections
+	 */
+	public ResultIngestor(ConnectionPool.ConnectionFactory factory,
+			int queueCapacity, int batchSize, int writerCount) {
+		this.pool = new ConnectionPool(factory, writerCount);
+		this.queue = new ArrayBlockingQueue<Row>(queueCapacity);
+		this.batchSize = batchSize;
+		this.writers = Executors.newFixedThreadPool(writerCount,
+				new NamingThreadFactory(new DaemonThreadFactory(),
+						"iTest result ingestion"));
+		for (int i = 0; i < writerCount; i++) {
+			writers.execute(new Writer());
+		}
+	}
+
+	/**
+	 * Get the shared ingestor for a database, replacing the previous one
+	 * if the global database configuration changed. The previous one
+	 * writes what it has queued in the background, so that neither this
+	 * build nor those getting the new one wait for the old database.
+	 */
+	public static ResultIngestor getInstance(String url,
+			String username, String password) {
+		String key = url + "|" + username + "|" + password;
+		final ResultIngestor previous;
+		ResultIngestor current;
+		synchronized (LOCK) {
+			if (instance != null && key.equals(instanceKey)) {
+				return instance;
+			}
+			previous = instance;
+			instance = new ResultIngestor(
+					new ConnectionPool.DriverManagerFactory(url, username,
+							password), QUEUE_CAPACITY, BATCH_SIZE, WRITERS);
+			instanceKey = key;
+			current = instance;
+		}
+		if (previous != null) {
+			new NamingThreadFactory(new DaemonThreadFactory(),
+					"iTest result ingestion shutdown").newThread(
+							new Runnable() {
+								public void run() {
+									previous.shutdown(OFFER_TIMEOUT);
+								}
+							}).start();
+		}
+		return current;
+	}
+
+	/**
+	 * Flush queued results when Jenkins shuts down.
+	 */
+	@Terminator
+	public static void shutdownInstance() {
+		ResultIngestor previous;
+		synchronized (LOCK) {
+			previous = instance;
+			instance = null;
+			instanceKey = null;
+		}
+		if (previous != null) {
+			previous.shutdown(TimeUnit.SECONDS.toMillis(30));
+		}
+	}
+
+	/**
+	 * Queue the results of a build. Blocks while the queue is full.
+	 * @param job full name of the job
+	 * @param build build number
+	 * @param tag custom tag, may be empty
+	 * @param results results to store
+	 * @param logger build log
+	 * @return number of results queued
+	 */
+	public int submit(String job, int build, String tag,
+			List<TestCaseResult> results, PrintStream logger)
+					throws InterruptedException {
+		int queued = 0;
+		for (TestCaseResult result : results) {
+			pending.incrementAndGet();
+			if (!queue.offer(new Row(job, build, tag, result),
+					OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				pending.decrementAndGet();
+				logger.println("Test report database is not keeping up, "
+						+ (results.size() - queued) + " results not stored");
+				break;
+			}
+			queued++;
+		}
+		return queued;
+	}
+
+	/**
+	 * Wait until every queued result has been written or dropped.
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return true if the queue drained in time
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (pending.get() > 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(100);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop accepting work, write what is queued and release connections.
+	 */
+	public void shutdown(long timeout) {
+		try {
+			flush(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stopping = true;
+		writers.shutdownNow();
+		pool.close();
+	}
+
+	/**
+	 * @return number of results waiting to be written
+	 */
+	public int getBacklog() {
+		return pending.get();
+	}
+
+	private class Writer implements Runnable {
+		public void run() {
+			List<Row> batch = new ArrayList<Row>(batchSize);
+			while (!stopping) {
+				try {
+					Row first = queue.poll(1, TimeUnit.SECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+					write(batch);
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					//a bad row or driver must not stop the writer
+					LOGGER.log(Level.WARNING, "Dropping " + batch.size()
+							+ " iTest results", e);
+				} finally {
+					pending.addAndGet(-batch.size());
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Insert a batch, retrying with exponential back-off. The batch is
+	 * dropped once all attempts fail.
+	 */
+	private void write(List<Row> batch) throws InterruptedException {
+		for (int attempt = 1; ; attempt++) {
+			Connection connection = null;
+			boolean broken = false;
+			try {
+				connection = pool.borrow(BORROW_TIMEOUT);
+				createTable(connection);
+				connection.setAutoCommit(false);
+				PreparedStatement insert = connection.prepareStatement(INSERT);
+				try {
+					for (Row row : batch) {
+						bind(insert, row);
+						insert.addBatch();
+					}
+					insert.executeBatch();
+					connection.commit();
+				} finally {
+					insert.close();
+				}
+				connection.setAutoCommit(true);
+				return;
+			} catch (SQLException e) {
+				broken = true;
+				rollback(connection);
+				if (attempt >= MAX_RETRIES) {
+					LOGGER.log(Level.WARNING, "Dropping " + batch.size()
+							+ " iTest results after " + attempt
+							+ " attempts", e);
+					return;
+				}
+				LOGGER.log(Level.FINE, "Retrying iTest result batch", e);
+				Thread.sleep(RETRY_DELAY << (attempt - 1));
+			} catch (RuntimeException e) {
+				//rows of this batch must not be committed with the next one
+				broken = true;
+				rollback(connection);
+				throw e;
+			} finally {
+				if (connection != null) {
+					pool.release(connection, broken);
+				}
+			}
+		}
+	}
+
+	private void createTable(Connection connection) throws SQLException {
+		if (tableReady) {
+			return;
+		}
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(CREATE_TABLE);
+			tableReady = true;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static void bind(PreparedStatement insert, Row row)
+			throws SQLException {
+		TestCaseResult result = row.result;
+		insert.setString(1, row.job);
+		insert.setInt(2, row.build);
+		insert.setString(3, truncate(result.getUri()));
+		insert.setString(4, result.getVerdict().name());
+		insert.setLong(5, result.getStartTime());
+		insert.setLong(6, result.getDuration());
+		if (result.getMessage() == null) {
+			insert.setNull(7, Types.VARCHAR);
+		} else {
+			insert.setString(7, truncate(result.getMessage()));
+		}
+		insert.setString(8, row.tag);
+	}
+
+	private static String truncate(String text) {
+		return text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text;
+	}
+
+	private static void rollback(Connection connection) {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Rollback failed", e);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.RunAction2;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the iTest results of a build as JSON at itest-results/json, read
+ * from its {@link ResultIndex}. The same query on a job, through
+ * {@link JobAction}, covers a range of its builds.
+ * <p>
+ * Query parameters:
+ * <ul>
+ * <li>start and limit: page of the matching results, 0 and
+ * {@link #DEFAULT_LIMIT} by default</li>
+ * <li>fields: comma separated fields of each result, all by default</li>
+ * <li>verdict: comma separated verdicts to keep, e.g. FAIL,ERROR</li>
+ * <li>testCase: pattern of the test case URIs to keep, e.g.
+ * project://Regression/**&#47;*.fftc</li>
+ * <li>builds, on a job only: build number or range such as 120-140, the
+ * last {@link #DEFAULT_BUILDS} builds by default</li>
+ * </ul>
+ * Responses carry an ETag derived from the query and the results of each
+ * build covered, so that polling clients are answered 304 until a result
+ * changes.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ResultsApiAction implements RunAction2 {
+
+	static final int DEFAULT_LIMIT = 100;
+	static final int MAX_LIMIT = 1000;
+	static final int DEFAULT_BUILDS = 20;
+	/**
+	 * Most builds one query on a job covers.
+	 */
+	static final int MAX_BUILDS = 500;
+	static final List<String> FIELDS = Arrays.asList("build", "axis",
+			"testCase", "verdict", "start", "duration", "message");
+
+	private transient Run<?, ?> run;
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "iTest Results API";
+	}
+
+	public String getUrlName() {
+		return "itest-results";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	/**
+	 * Send the results of the build as JSON.
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		serve(req, rsp, Collections.<Run<?, ?>>singletonList(run));
+	}
+
+	/**
+	 * Send the results of some builds matching a query as JSON, answering
+	 * 304 if the caller already has the same page.
+	 * @param builds builds, newest first
+	 */
+	static void serve(StaplerRequest req, StaplerResponse rsp,
+			List<Run<?, ?>> builds) throws IOException {
+		int start;
+		int limit;
+		try {
+			start = Math.max(0, number(req.getParameter("start"), 0));
+			limit = Math.min(MAX_LIMIT, Math.max(1,
+					number(req.getParameter("limit"), DEFAULT_LIMIT)));
+		} catch (NumberFormatException e) {
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"start and limit must be numbers");
+			return;
+		}
+
+		Set<String> fields = new LinkedHashSet<String>(FIELDS);
+		String fieldList = Util.fixEmptyAndTrim(req.getParameter("fields"));
+		if (fieldList != null) {
+			fields.clear();
+			for (String field : fieldList.split(",")) {
+				if (!FIELDS.contains(field.trim())) {
+					rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"Unknown field " + field + ", expected one of "
+									+ FIELDS);
+					return;
+				}
+				fields.add(field.trim());
+			}
+		}
+
+		Set<TestCaseResult.Verdict> verdicts = null;
+		String verdictList = Util.fixEmptyAndTrim(req.getParameter("verdict"));
+		if (verdictList != null) {
+			verdicts = EnumSet.noneOf(TestCaseResult.Verdict.class);
+			for (String verdict : verdictList.split(",")) {
+				try {
+					verdicts.add(TestCaseResult.Verdict.valueOf(
+							verdict.trim().toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"Unknown verdict " + verdict + ", expected one of "
+									+ Arrays.toString(
+											TestCaseResult.Verdict.values()));
+					return;
+				}
+			}
+		}
+
+		Pattern testCase = null;
+		String glob = Util.fixEmptyAndTrim(req.getParameter("testCase"));
+		if (glob != null) {
+			if (!glob.startsWith(TestCaseIndex.PROJECT_SCHEME)) {
+				glob = TestCaseIndex.PROJECT_SCHEME + glob;
+			}
+			testCase = Pattern.compile(TestCaseIndex.globToRegex(glob));
+		}
+
+		//the results only change when the index of a build does
+		List<ResultIndex> indexes = new ArrayList<ResultIndex>();
+		StringBuilder version = new StringBuilder(
+				String.valueOf(req.getQueryString()));
+		for (Run<?, ?> build : builds) {
+			ResultIndex index = ResultIndex.of(build);
+			indexes.add(index);
+			version.append(' ').append(build.getNumber()).append(':')
+					.append(index.getStamp());
+		}
+		String etag = "\"" + Util.getDigestOf(version.toString()) + "\"";
+		rsp.setHeader("ETag", etag);
+		rsp.setHeader("Cache-Control", "no-cache");
+		if (etag.equals(req.getHeader("If-None-Match"))) {
+			rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		JSONArray results = new JSONArray();
+		int total = 0;
+		for (ResultIndex index : indexes) {
+			for (ResultIndex.Row row : index.getRows()) {
+				if ((verdicts != null && !verdicts.contains(row.getVerdict()))
+						|| (testCase != null && !testCase.matcher(
+								row.getTestCase()).matches())) {
+					continue;
+				}
+				if (total >= start && total - start < limit) {
+					results.add(toJson(row, fields));
+				}
+				total++;
+			}
+		}
+
+		JSONObject o = new JSONObject();
+		o.put("total", total);
+		o.put("start", start);
+		o.put("limit", limit);
+		if (start + limit < total) {
+			o.put("next", start + limit);
+		}
+		o.put("results", results);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(o);
+	}
+
+	private static JSONObject toJson(ResultIndex.Row row, Set<String> fields) {
+		JSONObject o = new JSONObject();
+		for (String field : fields) {
+			if (field.equals("build")) {
+				o.put(field, row.getBuild());
+			} else if (field.equals("axis")) {
+				o.put(field, row.getAxis() == null ? "" : row.getAxis());
+			} else if (field.equals("testCase")) {
+				o.put(field, row.getTestCase());
+			} else if (field.equals("verdict")) {
+				o.put(field, row.getVerdict().name());
+			} else if (field.equals("start")) {
+				o.put(field, row.getStart());
+			} else if (field.equals("duration")) {
+				o.put(field, row.getDuration());
+			} else if (field.equals("message")) {
+				o.put(field, row.getMessage() == null ? "" : row.getMessage());
+			}
+		}
+		return o;
+	}
+
+	private static int number(String value, int fallback) {
+		value = Util.fixEmptyAndTrim(value);
+		return value == null ? fallback : Integer.parseInt(value);
+	}
+
+	/**
+	 * Serves the iTest results of the builds of a job.
+	 */
+	public static class JobAction implements Action {
+		private final Job<?, ?> job;
+
+		public JobAction(Job<?, ?> job) {
+			this.job = job;
+		}
+
+		public String getIconFileName() {
+			return null;
+		}
+
+		public String getDisplayName() {
+			return "iTest Results API";
+		}
+
+		public String getUrlName() {
+			return "itest-results";
+		}
+
+		public Job<?, ?> getJob() {
+			return job;
+		}
+
+		/**
+		 * Send the results of a range of builds as JSON, newest first.
+		 */
+		public void doJson(StaplerRequest req, StaplerResponse rsp)
+				throws IOException {
+			int from = 0;
+			int to = Integer.MAX_VALUE;
+			int most = DEFAULT_BUILDS;
+			String range = Util.fixEmptyAndTrim(req.getParameter("builds"));
+			if (range != null) {
+				try {
+					int dash = range.indexOf('-', 1);
+					from = Integer.parseInt(dash < 0
+							? range : range.substring(0, dash).trim());
+					to = dash < 0 ? from
+							: Integer.parseInt(range.substring(dash + 1).trim());
+				} catch (NumberFormatException e) {
+					rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"builds must be a build number or a range such "
+									+ "as 120-140");
+					return;
+				}
+				if (to < from || to - from >= MAX_BUILDS) {
+					rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"builds must be a range of at most " + MAX_BUILDS
+									+ " builds");
+					return;
+				}
+				most = MAX_BUILDS;
+			}
+
+			List<Run<?, ?>> builds = new ArrayList<Run<?, ?>>();
+			for (Run<?, ?> build = range == null ? job.getLastBuild()
+					: job.getNearestOldBuild(to);
+					build != null && build.getNumber() >= from
+							&& builds.size() < most;
+					build = build.getPreviousBuild()) {
+				builds.add(build);
+			}
+			serve(req, rsp, builds);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.triggers.SCMTrigger;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Warms up the agent the next build of a job is likely to run on as soon
+ * as an SCM change puts the build in the queue: while the build waits out
+ * its quiet period, the copy of the iTest workspace on the agent is
+ * brought up to date and the projects missing from the iTAR cache of the
+ * agent are exported into it.
+ * <p>
+ * This is a warm-up, not an export of the change: it works from the iTest
+ * workspace on the controller as it is when the change is detected, which
+ * the SCM change itself does not update. It saves the build the transfer
+ * and export of whatever the change did not touch; the build takes iTAR
+ * files from the cache only if the files of the projects it runs are the
+ * same, and exports them itself otherwise. Only jobs copying their iTest
+ * workspace from the controller can be warmed up, since the workspace of
+ * the build itself is only checked out once the build starts.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class SpeculativeExport {
+
+	/**
+	 * Log of the last warm-up, in the directory of the job.
+	 */
+	static final String LOG = "itest-pre-export.log";
+
+	/**
+	 * Warm-ups running, by job name.
+	 */
+	private static final Map<String, Running> running =
+			new HashMap<String, Running>();
+
+	private SpeculativeExport() {
+	}
+
+	/**
+	 * Wait for a warm-up of a job running on the node of its
+	 * build to finish, rather than exporting the same projects twice.
+	 * @param job full name of the job
+	 * @param node name of the node the build runs on
+	 * @param logger build log
+	 */
+	static void await(String job, String node, PrintStream logger)
+			throws InterruptedException {
+		Running export;
+		synchronized (running) {
+			export = running.get(job);
+		}
+		if (export == null || !export.node.equals(node)
+				|| export.future.isDone()) {
+			return;
+		}
+		logger.println("Waiting for the warm-up of this agent started "
+				+ Util.getTimeSpanString(System.currentTimeMillis()
+						- export.started) + " ago");
+		try {
+			export.future.get();
+		} catch (ExecutionException e) {
+			logger.println("Warm-up of this agent failed: " + e.getCause());
+		}
+	}
+
+	/**
+	 * Start a warm-up if the job asks for one and the agent of
+	 * its last build can run it.
+	 */
+	static void start(final Project<?, ?> job, final ITest step) {
+		final String source = step.getWorkspaceSource().trim();
+		//build variables are only known once the build starts
+		if (source.isEmpty() || source.contains("$")
+				|| !new File(source).isDirectory()) {
+			return;
+		}
+		final Node node = job.getLastBuiltOn();
+		Computer computer = node == null ? null : node.toComputer();
+		Label label = job.getAssignedLabel();
+		if (computer == null || computer.isOffline()
+				|| (label != null && !label.contains(node))) {
+			return;
+		}
+
+		final String name = job.getFullName();
+		synchronized (running) {
+			Running export = running.get(name);
+			if (export != null && !export.future.isDone()) {
+				return;
+			}
+			export = new Running(node.getNodeName());
+			running.put(name, export);
+			export.future = Computer.threadPoolForRemoting.submit(
+					new Runnable() {
+						public void run() {
+							try {
+								export(job, step, node, source);
+							} finally {
+								synchronized (running) {
+									running.remove(name);
+								}
+							}
+						}
+					});
+		}
+	}
+
+	private static void export(Project<?, ?> job, ITest step, Node node,
+			String source) {
+		StreamTaskListener listener;
+		try {
+			listener = new StreamTaskListener(new File(job.getRootDir(), LOG));
+		} catch (IOException e) {
+			return;
+		}
+		PrintStream logger = listener.getLogger();
+		try {
+			Jenkins jenkins = Jenkins.getInstance();
+			ITest.Descriptor global = jenkins == null ? null
+					: jenkins.getDescriptorByType(ITest.Descriptor.class);
+			FilePath copy = WorkspaceSync.cacheFor(node, new File(source));
+			FilePath cache = ITarCache.cacheFor(node);
+			if (global == null || copy == null || cache == null) {
+				logger.println("Nothing to warm up ahead of the build on "
+						+ node.getDisplayName());
+				return;
+			}
+			String itestcli = ITestCommand.itestcli(global);
+			List<String> projects = new ArrayList<String>();
+			for (String project : step.projects.replaceAll("\\s+", "")
+					.split(",")) {
+				if (!project.isEmpty()) {
+					projects.add(project);
+				}
+			}
+			if (step.testReportRequired) {
+				projects.add("resources");
+			}
+			logger.println("Warming up " + node.getDisplayName()
+					+ " for " + projects + " from " + source
+					+ " as it is now, ahead of the build");
+
+			WorkspaceSync.Lease lease = WorkspaceSync.sync(new File(source),
+					copy, logger);
+			try {
+				AffinityLoadBalancer.recordWorkspace(job.getFullName(),
+						node.getNodeName(), source, lease);
+				FilePath checkout = lease.getDir();
+				ITarCache.Lookup lookup = ITarCache.restore(checkout, cache,
+						itestcli, projects, logger);
+				if (lookup.getMisses().isEmpty()) {
+					logger.println("Every iTAR file is already cached");
+					return;
+				}
+
+				Launcher launcher = node.createLauncher(listener);
+				String command = ITestCommand.export(itestcli,
+						checkout.getRemote(),
+						Util.join(lookup.getMisses(), ","));
+				int exit = launcher.launch().cmds(launcher.isUnix()
+						? new String[] { "sh", "-c", command }
+						: new String[] { "cmd.exe", "/C", command })
+						.stdout(listener).pwd(checkout).join();
+				if (exit != 0) {
+					logger.println("iTestCLI returned exit code " + exit
+							+ ", the build exports the projects itself");
+					return;
+				}
+				ITarCache.Stored stored =
+						ITarCache.store(checkout, cache, lookup, logger);
+				AffinityLoadBalancer.recordITars(job.getFullName(),
+						node.getNodeName(), lookup.getKeys(),
+						stored.getKeys(), 0, 0);
+				AffinityLoadBalancer.forgetITars(node.getNodeName(),
+						stored.getEvicted());
+			} finally {
+				lease.release();
+			}
+		} catch (IOException e) {
+			e.printStackTrace(listener.error("Warm-up failed"));
+		} catch (InterruptedException e) {
+			listener.error("Warm-up interrupted");
+		} finally {
+			listener.closeQuietly();
+		}
+	}
+
+	/**
+	 * Warm-up in progress.
+	 */
+	private static final class Running {
+		private final String node;
+		private final long started = System.currentTimeMillis();
+		private Future<?> future;
+
+		Running(String node) {
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Starts a warm-up when an SCM change puts a build of a
+	 * job in the queue.
+	 */
+	@Extension
+	public static class Trigger extends QueueListener {
+		@Override
+		public void onEnterWaiting(Queue.WaitingItem item) {
+			if (!(item.task instanceof Project)) {
+				return;
+			}
+			Project<?, ?> job = (Project<?, ?>) item.task;
+			ITest step = job.getBuildersList().get(ITest.class);
+			if (step == null || !step.isPreExport()) {
+				return;
+			}
+			for (Cause cause : item.getCauses()) {
+				if (cause instanceof SCMTrigger.SCMTriggerCause) {
+					start(job, step);
+					return;
+				}
+			}
+		}
+	}
+}
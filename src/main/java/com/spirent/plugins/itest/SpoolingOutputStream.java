@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the output of each test case to a compressed file of its own and
+ * only a summary of the test case to the build log. Output outside of any
+ * test case, and error messages the build is failed on, still go to the
+ * build log.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class SpoolingOutputStream extends LineTransformationOutputStream {
+
+	private final PrintStream console;
+	private final OutputParser parser;
+	private final TestCaseLogsAction logs;
+	private final String axis;
+	private final Charset charset;
+
+	private String spooling;
+	private OutputStream spool;
+
+	/**
+	 * @param console build log
+	 * @param parser parser following the execution
+	 * @param logs action holding the compressed logs of the build
+	 */
+	public SpoolingOutputStream(PrintStream console, OutputParser parser,
+			TestCaseLogsAction logs) {
+		this(console, parser, logs, null);
+	}
+
+	/**
+	 * @param console build log
+	 * @param parser parser following the execution
+	 * @param logs action holding the compressed logs of the build
+	 * @param axis axis the output belongs to, or null if the build has none
+	 */
+	public SpoolingOutputStream(PrintStream console, OutputParser parser,
+			TestCaseLogsAction logs, String axis) {
+		this.console = console;
+		this.parser = parser;
+		this.logs = logs;
+		this.axis = axis;
+		this.charset = logs.getCharset();
+	}
+
+	@Override
+	protected void eol(byte[] b, int len) throws IOException {
+		String line = trimEOL(new String(b, 0, len, charset));
+		TestCaseResult result = parser.parseLine(line,
+				System.currentTimeMillis());
+		String testCase = result != null ? result.getUri()
+				: parser.getCurrent();
+
+		if (testCase == null) {
+			console.write(b, 0, len);
+			return;
+		}
+		if (!testCase.equals(spooling)) {
+			closeSpool();
+			spooling = testCase;
+			File file = logs.fileFor(ExecutionAxis.qualify(axis, testCase));
+			//a retry or a resumed execution adds a new gzip member
+			spool = new GZIPOutputStream(new FileOutputStream(file, true));
+			console.println("Started " + testCase);
+		}
+		spool.write(b, 0, len);
+		if (ITest.reportsError(line)) {
+			//the build is judged by its log
+			console.write(b, 0, len);
+		}
+
+		if (result != null) {
+			closeSpool();
+			console.println("Finished " + testCase + " after "
+					+ Util.getTimeSpanString(result.getDuration()) + ", "
+					+ line.trim());
+		}
+	}
+
+	private void closeSpool() throws IOException {
+		if (spool != null) {
+			spool.close();
+			spool = null;
+		}
+		spooling = null;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (spool != null) {
+			spool.flush();
+		}
+		console.flush();
+	}
+
+	/**
+	 * The build log belongs to the caller and is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		forceEol();
+		closeSpool();
+		console.flush();
+	}
+}
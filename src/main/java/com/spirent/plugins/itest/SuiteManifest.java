@@ -0,0 +1,310 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Suite manifest listing test cases with tags, parameters, expected
+ * duration and priority:
+ * <pre>
+ * &lt;suite version="1"&gt;
+ *   &lt;testcase uri="project://Regression/ospf.fftc" tags="smoke,routing"
+ *       duration="600" priority="10"&gt;
+ *     &lt;param name="rate" value="1000"/&gt;
+ *   &lt;/testcase&gt;
+ * &lt;/suite&gt;
+ * </pre>
+ * The manifest is read with a streaming parser on the node holding it, and
+ * only the test cases matching the tag filter are kept. Selections are
+ * cached on that node by the content hash of the manifest.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class SuiteManifest {
+
+	static final int VERSION = 1;
+	private static final int CACHE_SIZE = 32;
+
+	/**
+	 * Selections by manifest hash and filter, in access order.
+	 */
+	private static final Map<String, List<Entry>> CACHE =
+			new LinkedHashMap<String, List<Entry>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, List<Entry>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private SuiteManifest() {
+	}
+
+	/**
+	 * Select test cases from a manifest.
+	 * @param manifest manifest file
+	 * @param filter tag filter, empty to select every test case
+	 * @return selected test cases, higher priority first and, for equal
+	 * priority, longer expected duration first
+	 */
+	public static List<Entry> select(FilePath manifest, String filter)
+			throws IOException, InterruptedException {
+		if (!manifest.exists()) {
+			throw new IOException("Suite manifest " + manifest
+					+ " does not exist");
+		}
+		return manifest.act(new Select(filter));
+	}
+
+	private static final class Select
+			extends MasterToSlaveFileCallable<List<Entry>> {
+		private static final long serialVersionUID = 1L;
+		private final String filter;
+
+		Select(String filter) {
+			this.filter = filter == null ? "" : filter.replaceAll("\\s+", "");
+		}
+
+		public List<Entry> invoke(File file, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			String key = hash(file) + "\n" + filter;
+			synchronized (CACHE) {
+				List<Entry> cached = CACHE.get(key);
+				if (cached != null) {
+					return cached;
+				}
+			}
+			List<Entry> selected = parse(file, filter);
+			synchronized (CACHE) {
+				CACHE.put(key, selected);
+			}
+			return selected;
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new DigestInputStream(new BufferedInputStream(
+				new FileInputStream(file)), digest);
+		try {
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) >= 0) {
+				//digest is updated while reading
+			}
+		} finally {
+			in.close();
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	static List<Entry> parse(File file, String filter) throws IOException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		List<Entry> selected = new ArrayList<Entry>();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(in);
+			Entry entry = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("suite".equals(name)) {
+						checkVersion(reader.getAttributeValue(null, "version"));
+					} else if ("testcase".equals(name)) {
+						entry = readEntry(reader);
+						if (!filter.isEmpty() && !TestCaseIndex.matchesTags(
+								entry.tags, filter)) {
+							entry = null;
+						}
+					} else if ("param".equals(name) && entry != null) {
+						entry.params.add(reader.getAttributeValue(null, "name")
+								+ "=" + reader.getAttributeValue(null, "value"));
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT
+						&& "testcase".equals(reader.getLocalName())) {
+					if (entry != null) {
+						selected.add(entry);
+					}
+					entry = null;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Invalid suite manifest " + file + ": "
+					+ e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					//the stream is closed below
+				}
+			}
+			in.close();
+		}
+
+		Collections.sort(selected, BY_PRIORITY);
+		return selected;
+	}
+
+	private static void checkVersion(String version) throws IOException {
+		if (version == null) {
+			return;
+		}
+		try {
+			if (Integer.parseInt(version.trim()) <= VERSION) {
+				return;
+			}
+		} catch (NumberFormatException e) {
+			//reported below
+		}
+		throw new IOException("Unsupported suite manifest version " + version);
+	}
+
+	private static Entry readEntry(XMLStreamReader reader) throws IOException {
+		String uri = reader.getAttributeValue(null, "uri");
+		if (uri == null || uri.trim().isEmpty()) {
+			throw new IOException("Test case without uri at line "
+					+ reader.getLocation().getLineNumber());
+		}
+		Entry entry = new Entry(uri.trim());
+		String tags = reader.getAttributeValue(null, "tags");
+		if (tags != null) {
+			for (String tag : tags.toLowerCase().split("[,\\s]+")) {
+				if (!tag.isEmpty()) {
+					entry.tags.add(tag);
+				}
+			}
+		}
+		entry.duration = parseLong(reader.getAttributeValue(null, "duration"));
+		entry.priority = (int) parseLong(
+				reader.getAttributeValue(null, "priority"));
+		return entry;
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static final Comparator<Entry> BY_PRIORITY =
+			new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return a.duration > b.duration ? -1
+					: (a.duration == b.duration ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Test case listed in a manifest.
+	 */
+	public static final class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String uri;
+		private final Set<String> tags = new HashSet<String>();
+		private final List<String> params = new ArrayList<String>();
+		private long duration;
+		private int priority;
+
+		Entry(String uri) {
+			this.uri = uri;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public Set<String> getTags() {
+			return tags;
+		}
+
+		/**
+		 * @return parameter=value pairs for this test case only
+		 */
+		public List<String> getParams() {
+			return params;
+		}
+
+		/**
+		 * @return expected duration in seconds, 0 if unknown
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+}
@@ -0,0 +1,549 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Index of the test cases and suites in an iTest workspace, kept on the
+ * node that holds the workspace. The index is saved in the root directory
+ * of the node and brought up to date incrementally, only below the
+ * directories patterns select from: only directories whose modification
+ * time changed are listed again, and only files whose modification time
+ * or size changed are read again for their tags, when a tag filter needs
+ * them.
+ * <p>
+ * Test cases can then be selected with patterns such as
+ * project://Regression/**&#47;*.fftc, optionally followed by a tag filter
+ * in brackets, e.g. [smoke&amp;!slow|sanity].
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class TestCaseIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger LOGGER =
+			Logger.getLogger(TestCaseIndex.class.getName());
+
+	static final String DIR_NAME = "itest-testcase-index";
+	static final String PROJECT_SCHEME = "project://";
+	private static final String[] EXTENSIONS = { ".fftc", ".ffts" };
+	private static final Pattern TAG =
+			Pattern.compile("<tag>\\s*([^<]*?)\\s*</tag>");
+
+	/**
+	 * Indexes loaded in this JVM, by workspace path. They are read again
+	 * from the node when memory runs short.
+	 */
+	private static final Map<String, SoftReference<TestCaseIndex>> LOADED =
+			new HashMap<String, SoftReference<TestCaseIndex>>();
+
+	private final TreeMap<String, Entry> testCases =
+			new TreeMap<String, Entry>();
+	private final Map<String, Dir> directories = new HashMap<String, Dir>();
+	private transient boolean dirty;
+
+	private TestCaseIndex() {
+	}
+
+	/**
+	 * @return true if a test case entry selects test cases from the index
+	 * rather than naming a single test case
+	 */
+	public static boolean isPattern(String testCase) {
+		return testCase.indexOf('*') >= 0 || testCase.indexOf('?') >= 0
+				|| testCase.endsWith("]");
+	}
+
+	/**
+	 * @param node node holding the iTest workspace
+	 * @return directory the indexes of the node are saved in, or null if
+	 * the node is offline
+	 */
+	static FilePath indexDirFor(Node node) {
+		FilePath root = node == null ? null : node.getRootPath();
+		return root == null ? null : root.child(DIR_NAME);
+	}
+
+	/**
+	 * Replace the patterns among test case entries with the test cases
+	 * they select. Other entries are kept as they are.
+	 * @param root iTest workspace
+	 * @param indexDir directory on the same node to save the index in, or
+	 * null to only keep it in memory
+	 * @param testCases resolved test case entries
+	 * @return test case URIs in the order they were selected, without
+	 * duplicates
+	 */
+	public static List<String> expand(FilePath root, FilePath indexDir,
+			List<String> testCases) throws IOException, InterruptedException {
+		for (String testCase : testCases) {
+			if (isPattern(testCase)) {
+				return root.act(new Expand(indexDir == null
+						? null : indexDir.getRemote(), testCases));
+			}
+		}
+		return testCases;
+	}
+
+	private static final class Expand
+			extends MasterToSlaveFileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final String indexDir;
+		private final List<String> testCases;
+
+		Expand(String indexDir, List<String> testCases) {
+			this.indexDir = indexDir;
+			this.testCases = new ArrayList<String>(testCases);
+		}
+
+		public List<String> invoke(File root, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			File file = indexDir == null ? null : new File(indexDir,
+					Util.getDigestOf(root.getAbsolutePath()));
+			TestCaseIndex index = forRoot(root, file);
+			Set<String> selected = new LinkedHashSet<String>();
+			synchronized (index) {
+				for (String testCase : testCases) {
+					if (isPattern(testCase)) {
+						String[] parts = split(testCase);
+						index.update(root, directoryOf(parts[0]),
+								parts[1] != null);
+						selected.addAll(index.select(testCase));
+					} else {
+						selected.add(testCase);
+					}
+				}
+				index.saveChanges(file);
+			}
+			return new ArrayList<String>(selected);
+		}
+	}
+
+	private static TestCaseIndex forRoot(File root, File file) {
+		String key = root.getAbsolutePath();
+		synchronized (LOADED) {
+			SoftReference<TestCaseIndex> ref = LOADED.get(key);
+			TestCaseIndex index = ref == null ? null : ref.get();
+			if (index == null) {
+				index = load(file);
+				LOADED.put(key, new SoftReference<TestCaseIndex>(index));
+			}
+			return index;
+		}
+	}
+
+	private static TestCaseIndex load(File file) {
+		if (file != null && file.isFile()) {
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(
+						new FileInputStream(file)));
+				return (TestCaseIndex) in.readObject();
+			} catch (Exception e) {
+				LOGGER.log(Level.INFO, "Rebuilding test case index " + file, e);
+			} finally {
+				closeQuietly(in);
+			}
+		}
+		return new TestCaseIndex();
+	}
+
+	private void save(File file) {
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			out.writeObject(this);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot save test case index " + file, e);
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Save the index if anything changed since it was last saved.
+	 * @param file where to save it, or null to only keep it in memory
+	 */
+	void saveChanges(File file) {
+		if (!dirty || file == null) {
+			return;
+		}
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.log(Level.WARNING, "Cannot create " + dir);
+			return;
+		}
+		save(file);
+		dirty = false;
+	}
+
+	/**
+	 * Bring the part of the index below a directory up to date with the
+	 * workspace.
+	 * @param root iTest workspace
+	 * @param from directory relative to the workspace, empty for all of it
+	 * @param tags whether to check the files of unchanged directories too,
+	 * as their tags may have changed
+	 */
+	void update(File root, String from, boolean tags)
+			throws InterruptedException {
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(from);
+		while (!pending.isEmpty()) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			String path = pending.pop();
+			File dir = path.isEmpty() ? root : new File(root, path);
+			long modified = dir.lastModified();
+			Dir known = directories.get(path);
+			if (modified == 0 || !dir.isDirectory()) {
+				forget(path);
+				continue;
+			}
+			if (known == null || known.modified != modified) {
+				known = list(dir, path, modified, known);
+			} else if (tags) {
+				for (String name : known.files) {
+					refresh(new File(dir, name), child(path, name));
+				}
+			}
+			for (String name : known.subdirs) {
+				pending.push(child(path, name));
+			}
+		}
+	}
+
+	private Dir list(File dir, String path, long modified, Dir previous) {
+		String[] names = dir.list();
+		Dir listed = new Dir(modified);
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				if (name.startsWith(".")) {
+					continue;
+				}
+				File file = new File(dir, name);
+				if (file.isDirectory()) {
+					listed.subdirs.add(name);
+				} else if (isTestCase(name)) {
+					listed.files.add(name);
+					refresh(file, child(path, name));
+				}
+			}
+		}
+		if (previous != null) {
+			for (String name : previous.files) {
+				if (!listed.files.contains(name)) {
+					testCases.remove(child(path, name));
+				}
+			}
+			for (String name : previous.subdirs) {
+				if (!listed.subdirs.contains(name)) {
+					forget(child(path, name));
+				}
+			}
+		}
+		directories.put(path, listed);
+		dirty = true;
+		return listed;
+	}
+
+	private void refresh(File file, String path) {
+		long modified = file.lastModified();
+		long size = file.length();
+		Entry entry = testCases.get(path);
+		if (modified == 0) {
+			if (entry != null) {
+				testCases.remove(path);
+				dirty = true;
+			}
+			return;
+		}
+		if (entry == null || entry.modified != modified || entry.size != size) {
+			testCases.put(path, new Entry(modified, size, readTags(file)));
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Remove a directory and everything below it.
+	 */
+	private void forget(String path) {
+		Dir dir = directories.remove(path);
+		if (dir == null) {
+			return;
+		}
+		dirty = true;
+		for (String name : dir.files) {
+			testCases.remove(child(path, name));
+		}
+		for (String name : dir.subdirs) {
+			forget(child(path, name));
+		}
+	}
+
+	private static String[] readTags(File file) {
+		Set<String> tags = new HashSet<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.indexOf("<tag>") < 0) {
+					continue;
+				}
+				Matcher m = TAG.matcher(line);
+				while (m.find()) {
+					if (!m.group(1).isEmpty()) {
+						tags.add(m.group(1).toLowerCase());
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Cannot read tags of " + file, e);
+		} finally {
+			closeQuietly(reader);
+		}
+		return tags.toArray(new String[tags.size()]);
+	}
+
+	/**
+	 * Select the indexed test cases matching a pattern.
+	 * @param pattern glob relative to the iTest workspace, optionally with
+	 * the project:// prefix and a trailing tag filter
+	 * @return project URIs of the selected test cases, in path order
+	 */
+	List<String> select(String pattern) {
+		String[] parts = split(pattern);
+		String glob = parts[0];
+		String filter = parts[1];
+
+		//only look at the part of the index under the literal prefix
+		int wildcard = firstWildcard(glob);
+		String prefix = glob.substring(0,
+				glob.lastIndexOf('/', wildcard - 1) + 1);
+		Pattern regex = Pattern.compile(globToRegex(glob));
+
+		List<String> selected = new ArrayList<String>();
+		for (Map.Entry<String, Entry> e : testCases.subMap(
+				prefix, prefix + Character.MAX_VALUE).entrySet()) {
+			if (regex.matcher(e.getKey()).matches()
+					&& (filter == null || e.getValue().hasTags(filter))) {
+				selected.add(PROJECT_SCHEME + e.getKey());
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @param pattern test case pattern
+	 * @return the glob relative to the iTest workspace, and the lower case
+	 * tag filter or null
+	 */
+	private static String[] split(String pattern) {
+		String glob = pattern;
+		String filter = null;
+		if (glob.endsWith("]") && glob.lastIndexOf('[') >= 0) {
+			filter = glob.substring(glob.lastIndexOf('[') + 1,
+					glob.length() - 1).toLowerCase();
+			glob = glob.substring(0, glob.lastIndexOf('['));
+		}
+		if (glob.startsWith(PROJECT_SCHEME)) {
+			glob = glob.substring(PROJECT_SCHEME.length());
+		}
+		if (glob.isEmpty()) {
+			glob = "**";
+		}
+		return new String[] { glob, filter };
+	}
+
+	/**
+	 * @return the directory a glob selects from, relative to the iTest
+	 * workspace, empty for the workspace itself
+	 */
+	private static String directoryOf(String glob) {
+		int slash = glob.lastIndexOf('/', firstWildcard(glob) - 1);
+		return slash < 0 ? "" : glob.substring(0, slash);
+	}
+
+	private static int firstWildcard(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			if (glob.charAt(i) == '*' || glob.charAt(i) == '?') {
+				return i;
+			}
+		}
+		return glob.length();
+	}
+
+	/**
+	 * ** matches any number of directories, * and ? match within one.
+	 */
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i);
+			if (glob.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 3;
+				continue;
+			}
+			if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i += 2;
+				continue;
+			}
+			if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * Evaluate a tag filter.
+	 * @param tags lower case tags of a test case
+	 * @param filter alternatives separated by |, each a list of tags
+	 * separated by &amp; that must all be present, or absent when prefixed
+	 * with !
+	 */
+	static boolean matchesTags(Collection<String> tags, String filter) {
+		for (String alternative : filter.toLowerCase().split("\\|")) {
+			boolean all = true;
+			for (String term : alternative.split("&")) {
+				boolean negated = term.startsWith("!");
+				String tag = negated ? term.substring(1) : term;
+				if (tag.isEmpty()) {
+					continue;
+				}
+				if (tags.contains(tag) == negated) {
+					all = false;
+					break;
+				}
+			}
+			if (all) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isTestCase(String name) {
+		String lower = name.toLowerCase();
+		for (String extension : EXTENSIONS) {
+			if (lower.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String child(String path, String name) {
+		return path.isEmpty() ? name : path + "/" + name;
+	}
+
+	private static void closeQuietly(java.io.Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				//nothing left to do
+			}
+		}
+	}
+
+	private static final class Dir implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final long modified;
+		final List<String> subdirs = new ArrayList<String>();
+		final List<String> files = new ArrayList<String>();
+
+		Dir(long modified) {
+			this.modified = modified;
+		}
+	}
+
+	private static final class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final long modified;
+		final long size;
+		final String[] tags;
+
+		Entry(long modified, long size, String[] tags) {
+			this.modified = modified;
+			this.size = size;
+			this.tags = tags;
+		}
+
+		boolean hasTags(String filter) {
+			return matchesTags(Arrays.asList(tags), filter);
+		}
+	}
+}
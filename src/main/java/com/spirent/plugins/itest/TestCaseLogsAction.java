@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.RunAction2;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Compressed output of each test case of a build, with a viewer that
+ * decompresses a log while sending it.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class TestCaseLogsAction implements RunAction2 {
+
+	static final String DIR_NAME = "itest-logs";
+
+	/**
+	 * Log file names by test case URI, in execution order.
+	 */
+	private final Map<String, String> files =
+			new LinkedHashMap<String, String>();
+
+	private transient Run<?, ?> run;
+
+	public String getIconFileName() {
+		return "notepad.png";
+	}
+
+	public String getDisplayName() {
+		return "iTest Test Case Logs";
+	}
+
+	public String getUrlName() {
+		return "itest-logs";
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	/**
+	 * @return charset of the build log, which the test case logs share
+	 */
+	Charset getCharset() {
+		return run.getCharset();
+	}
+
+	/**
+	 * @return the compressed log file of a test case, created if needed
+	 */
+	synchronized File fileFor(String testCase) throws IOException {
+		String name = files.get(testCase);
+		if (name == null) {
+			name = files.size() + "-" + testCase.replaceFirst("^\\w+://", "")
+					.replaceAll("[^A-Za-z0-9._-]", "_") + ".log.gz";
+			files.put(testCase, name);
+		}
+		File dir = new File(run.getRootDir(), DIR_NAME);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		return new File(dir, name);
+	}
+
+	/**
+	 * @return test cases that have a log
+	 */
+	public synchronized List<Log> getLogs() {
+		List<Log> logs = new ArrayList<Log>();
+		for (Map.Entry<String, String> e : files.entrySet()) {
+			logs.add(new Log(e.getKey(), new File(new File(run.getRootDir(),
+					DIR_NAME), e.getValue())));
+		}
+		return logs;
+	}
+
+	/**
+	 * Send the full output of one test case as plain text.
+	 */
+	public void doLog(@QueryParameter String uri, StaplerResponse rsp)
+			throws IOException {
+		String name;
+		synchronized (this) {
+			name = uri == null ? null : files.get(uri);
+		}
+		File file = name == null ? null
+				: new File(new File(run.getRootDir(), DIR_NAME), name);
+		if (file == null || !file.isFile()) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		rsp.setContentType("text/plain;charset=" + getCharset().name());
+		InputStream in = new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			OutputStream out = rsp.getOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			try {
+				while ((n = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, n);
+				}
+			} catch (EOFException e) {
+				//the log of an execution cut short by a restart ends early
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compressed log of one test case.
+	 */
+	public static final class Log {
+		private final String uri;
+		private final File file;
+
+		Log(String uri, File file) {
+			this.uri = uri;
+			this.file = file;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return compressed size, e.g. "12 KB"
+		 */
+		public String getSize() {
+			long kb = (file.length() + 1023) / 1024;
+			return kb + " KB";
+		}
+
+		public String getEncodedUri() throws UnsupportedEncodingException {
+			return URLEncoder.encode(uri, "UTF-8");
+		}
+	}
+}
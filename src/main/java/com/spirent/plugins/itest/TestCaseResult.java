@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a single test case executed by iTestRT.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class TestCaseResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Verdicts reported by iTestRT in its "Execution status" lines, and
+	 * the timeout given by the watchdog to a test case it stopped.
+	 */
+	public enum Verdict {
+		PASS, FAIL, ABORT, ERROR, TIMEOUT, UNKNOWN;
+
+		/**
+		 * Map the status text printed by iTestRT to a verdict.
+		 * @param status e.g. "Pass" or "Fail"
+		 * @return matching verdict, UNKNOWN if not recognized
+		 */
+		public static Verdict parse(String status) {
+			if (status == null) {
+				return UNKNOWN;
+			}
+			String s = status.trim().toUpperCase();
+			if (s.startsWith("PASS")) {
+				return PASS;
+			} else if (s.startsWith("FAIL")) {
+				return FAIL;
+			} else if (s.startsWith("ABORT")) {
+				return ABORT;
+			} else if (s.startsWith("ERR")) {
+				return ERROR;
+			} else if (s.startsWith("TIMEOUT")) {
+				return TIMEOUT;
+			}
+			return UNKNOWN;
+		}
+	}
+
+	private final String uri;
+	private final Verdict verdict;
+	private final long startTime;
+	private final long duration;
+	private final String message;
+
+	public TestCaseResult(String uri, Verdict verdict, long startTime,
+			long duration, String message) {
+		this.uri = uri;
+		this.verdict = verdict;
+		this.startTime = startTime;
+		this.duration = duration;
+		this.message = message;
+	}
+
+	/**
+	 * @return the test case URI, e.g. project://system_test/smoke.fftc
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the test case file name without path and extension
+	 */
+	public String getName() {
+		int start = uri.lastIndexOf("/") + 1;
+		int end = uri.lastIndexOf(".");
+		return end > start ? uri.substring(start, end) : uri.substring(start);
+	}
+
+	public Verdict getVerdict() {
+		return verdict;
+	}
+
+	/**
+	 * @return epoch milliseconds the test case started, 0 if unknown
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return duration in milliseconds, 0 if unknown
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return first error message reported for the test case, or null
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public boolean isPassed() {
+		return verdict == Verdict.PASS;
+	}
+
+	@Override
+	public String toString() {
+		return uri + " " + verdict;
+	}
+}
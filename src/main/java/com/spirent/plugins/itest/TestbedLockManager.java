@@ -0,0 +1,443 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Grants builds access to physical testbeds, so that two builds never drive
+ * the same lab topology unless it is configured to be shared. Waiting
+ * builds are served in arrival order, or by priority and then arrival.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class TestbedLockManager {
+
+	/**
+	 * Serve waiting builds in the order they asked for the testbed.
+	 */
+	public static final String FIFO = "fifo";
+	/**
+	 * Serve waiting builds with the highest priority first.
+	 */
+	public static final String PRIORITY = "priority";
+	/**
+	 * Shown instead of a build of a job the user cannot see.
+	 */
+	static final String HIDDEN = "a build of another job";
+
+	/**
+	 * Drive letter of a Windows path, also in a file: URI.
+	 */
+	private static final Pattern DRIVE = Pattern.compile("/?[A-Za-z]:.*");
+
+	private static final TestbedLockManager INSTANCE =
+			new TestbedLockManager();
+
+	private final Map<String, Testbed> testbeds =
+			new LinkedHashMap<String, Testbed>();
+	private long sequence;
+
+	private TestbedLockManager() {
+	}
+
+	public static TestbedLockManager get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Derive the lock key for a resolved testbed path, so that different
+	 * spellings of the same file share a lock. Case is only ignored in
+	 * Windows paths, those with a drive letter or backslashes; Unix paths
+	 * that differ in case are different files.
+	 * @param testbed resolved testbed path or URI
+	 * @return normalized key
+	 */
+	public static String keyOf(String testbed) {
+		String key = testbed.trim();
+		boolean windows = key.indexOf('\\') >= 0;
+		key = key.replace('\\', '/');
+		if (key.toLowerCase(Locale.ENGLISH).startsWith("file:")) {
+			key = key.substring("file:".length());
+		}
+		key = key.replaceAll("/{2,}", "/");
+		if (DRIVE.matcher(key).matches()) {
+			//file:/C:/lab and C:\lab are the same file
+			return key.replaceFirst("^/", "").toLowerCase(Locale.ENGLISH);
+		}
+		if (windows) {
+			return key.toLowerCase(Locale.ENGLISH);
+		}
+		return key;
+	}
+
+	/**
+	 * Wait until the testbed can be used by the caller.
+	 * @param testbed resolved testbed path
+	 * @param holder display name of the build asking for the testbed
+	 * @param job full name of its job, to show it only to those who can
+	 * see the job
+	 * @param priority higher values are served first under PRIORITY
+	 * @param shares number of builds that may use the testbed at once
+	 * @param policy FIFO or PRIORITY
+	 * @param logger build log for progress messages
+	 * @return lease to release when the testbed is no longer needed
+	 * @throws InterruptedException if the build is aborted while waiting
+	 */
+	public Lease acquire(String testbed, String holder, String job,
+			int priority, int shares, String policy, PrintStream logger)
+					throws InterruptedException {
+		String key = keyOf(testbed);
+		Waiter waiter;
+		synchronized (this) {
+			Testbed bed = testbeds.get(key);
+			if (bed == null) {
+				bed = new Testbed(key);
+				testbeds.put(key, bed);
+			}
+			bed.shares = Math.max(1, shares);
+			bed.policy = PRIORITY.equals(policy) ? PRIORITY : FIFO;
+			waiter = new Waiter(holder, job, priority, sequence++);
+			bed.waiters.add(waiter);
+
+			boolean announced = false;
+			try {
+				while (!bed.canGrant(waiter)) {
+					if (!announced) {
+						logger.println("Waiting for testbed " + testbed
+								+ ", in use by " + bed.holderNames());
+						announced = true;
+					}
+					wait();
+				}
+			} finally {
+				bed.waiters.remove(waiter);
+				notifyAll();
+			}
+
+			long waited = System.currentTimeMillis() - waiter.since;
+			bed.grants++;
+			bed.totalWait += waited;
+			bed.maxWait = Math.max(bed.maxWait, waited);
+			Holder granted = new Holder(holder, job, waited);
+			bed.holders.add(granted);
+			if (announced) {
+				logger.println("Acquired testbed " + testbed + " after "
+						+ TimeUnit.MILLISECONDS.toSeconds(waited) + " s");
+			}
+			return new Lease(bed, granted);
+		}
+	}
+
+	private synchronized void release(Testbed bed, Holder holder) {
+		bed.holders.remove(holder);
+		notifyAll();
+	}
+
+	/**
+	 * @return snapshot of every testbed that has been requested
+	 */
+	public synchronized List<Testbed> getTestbeds() {
+		List<Testbed> snapshot = new ArrayList<Testbed>();
+		for (Testbed bed : testbeds.values()) {
+			snapshot.add(bed.copy());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Access granted to one build.
+	 */
+	public final class Lease {
+		private final Testbed bed;
+		private final Holder holder;
+		private boolean released;
+
+		private Lease(Testbed bed, Holder holder) {
+			this.bed = bed;
+			this.holder = holder;
+		}
+
+		public void release() {
+			if (!released) {
+				released = true;
+				TestbedLockManager.this.release(bed, holder);
+			}
+		}
+	}
+
+	/**
+	 * A build using a testbed.
+	 */
+	public static final class Holder {
+		private final String name;
+		private final String job;
+		private final long since;
+		private final long waited;
+
+		Holder(String name, String job, long waited) {
+			this(name, job, System.currentTimeMillis(), waited);
+		}
+
+		private Holder(String name, String job, long since, long waited) {
+			this.name = name;
+			this.job = job;
+			this.since = since;
+			this.waited = waited;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return full name of the job of the build
+		 */
+		public String getJob() {
+			return job;
+		}
+
+		/**
+		 * @return the same holder without the name of its build
+		 */
+		Holder hidden() {
+			return new Holder(HIDDEN, null, since, waited);
+		}
+
+		public long getSince() {
+			return since;
+		}
+
+		/**
+		 * @return time spent waiting for the testbed, in milliseconds
+		 */
+		public long getWaited() {
+			return waited;
+		}
+
+		public String getHeldFor() {
+			return Util.getTimeSpanString(System.currentTimeMillis() - since);
+		}
+
+		public String getWaitedFor() {
+			return Util.getTimeSpanString(waited);
+		}
+	}
+
+	/**
+	 * A build waiting for a testbed.
+	 */
+	public static final class Waiter {
+		private final String name;
+		private final String job;
+		private final int priority;
+		private final long order;
+		private final long since;
+
+		Waiter(String name, String job, int priority, long order) {
+			this(name, job, priority, order, System.currentTimeMillis());
+		}
+
+		private Waiter(String name, String job, int priority, long order,
+				long since) {
+			this.name = name;
+			this.job = job;
+			this.priority = priority;
+			this.order = order;
+			this.since = since;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return full name of the job of the build
+		 */
+		public String getJob() {
+			return job;
+		}
+
+		/**
+		 * @return the same waiter without the name of its build
+		 */
+		Waiter hidden() {
+			return new Waiter(HIDDEN, null, priority, order, since);
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public long getSince() {
+			return since;
+		}
+
+		public String getWaitingFor() {
+			return Util.getTimeSpanString(System.currentTimeMillis() - since);
+		}
+	}
+
+	private static final Comparator<Waiter> BY_PRIORITY =
+			new Comparator<Waiter>() {
+		public int compare(Waiter a, Waiter b) {
+			if (a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Holders, waiters and usage statistics of one testbed.
+	 */
+	public static final class Testbed {
+		private final String key;
+		private int shares = 1;
+		private String policy = FIFO;
+		private final List<Holder> holders = new ArrayList<Holder>();
+		private final List<Waiter> waiters = new ArrayList<Waiter>();
+		private long grants;
+		private long totalWait;
+		private long maxWait;
+
+		Testbed(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * A waiter is granted access when there is a free share and no
+		 * waiter ahead of it in the configured order.
+		 */
+		boolean canGrant(Waiter waiter) {
+			if (holders.size() >= shares) {
+				return false;
+			}
+			int free = shares - holders.size();
+			List<Waiter> ordered = new ArrayList<Waiter>(waiters);
+			if (PRIORITY.equals(policy)) {
+				Collections.sort(ordered, BY_PRIORITY);
+			}
+			return ordered.indexOf(waiter) < free;
+		}
+
+		String holderNames() {
+			List<String> names = new ArrayList<String>();
+			for (Holder holder : holders) {
+				names.add(holder.name);
+			}
+			return names.toString();
+		}
+
+		/**
+		 * Replace the builds of jobs the current user cannot see, so that
+		 * only their number and waits are shown.
+		 */
+		void hideUnreadable() {
+			for (int i = 0; i < holders.size(); i++) {
+				if (!canRead(holders.get(i).job)) {
+					holders.set(i, holders.get(i).hidden());
+				}
+			}
+			for (int i = 0; i < waiters.size(); i++) {
+				if (!canRead(waiters.get(i).job)) {
+					waiters.set(i, waiters.get(i).hidden());
+				}
+			}
+		}
+
+		private static boolean canRead(String job) {
+			Jenkins jenkins = Jenkins.getInstance();
+			//null unless the user has Item.READ on the job
+			return jenkins != null && job != null
+					&& jenkins.getItemByFullName(job) != null;
+		}
+
+		Testbed copy() {
+			Testbed copy = new Testbed(key);
+			copy.shares = shares;
+			copy.policy = policy;
+			copy.holders.addAll(holders);
+			copy.waiters.addAll(waiters);
+			copy.grants = grants;
+			copy.totalWait = totalWait;
+			copy.maxWait = maxWait;
+			return copy;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public int getShares() {
+			return shares;
+		}
+
+		public String getPolicy() {
+			return policy;
+		}
+
+		public List<Holder> getHolders() {
+			return holders;
+		}
+
+		public List<Waiter> getWaiters() {
+			return waiters;
+		}
+
+		public long getGrants() {
+			return grants;
+		}
+
+		/**
+		 * @return average time builds waited for the testbed, in seconds
+		 */
+		public long getAverageWaitSeconds() {
+			return grants == 0 ? 0
+					: TimeUnit.MILLISECONDS.toSeconds(totalWait / grants);
+		}
+
+		/**
+		 * @return longest time a build waited for the testbed, in seconds
+		 */
+		public long getMaxWaitSeconds() {
+			return TimeUnit.MILLISECONDS.toSeconds(maxWait);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves ${VAR} and $VAR references in job inputs against the build
+ * environment in a single pass over the input. Resolved values are
+ * memoized, and one resolver is kept per build.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class VariableResolver {
+
+	/**
+	 * Absolute path on a Windows or Unix node, whatever the controller runs
+	 * on: a drive letter, a UNC path or a root directory.
+	 */
+	private static final Pattern ABSOLUTE_PATH =
+			Pattern.compile("([A-Za-z]:[\\\\/]|[/\\\\]).*");
+	private static final String WORKSPACE = "WORKSPACE";
+
+	private static final Map<AbstractBuild<?, ?>, VariableResolver> BUILDS =
+			new WeakHashMap<AbstractBuild<?, ?>, VariableResolver>();
+
+	private final Map<String, String> env;
+	private final Map<String, String> resolved = new HashMap<String, String>();
+
+	public VariableResolver(Map<String, String> env) {
+		this.env = env;
+	}
+
+	/**
+	 * @return the resolver for a build, created from its environment on
+	 * first use
+	 */
+	public static VariableResolver of(AbstractBuild<?, ?> build,
+			TaskListener listener) throws IOException, InterruptedException {
+		synchronized (BUILDS) {
+			VariableResolver resolver = BUILDS.get(build);
+			if (resolver == null) {
+				resolver = new VariableResolver(build.getEnvironment(listener));
+				BUILDS.put(build, resolver);
+			}
+			return resolver;
+		}
+	}
+
+	/**
+	 * Replace variable references with their values. References to unknown
+	 * variables are kept as they are.
+	 * @param value text to resolve, may be null
+	 * @return resolved text, empty if value is null
+	 */
+	public synchronized String resolve(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf('$') < 0) {
+			return value;
+		}
+		String result = resolved.get(value);
+		if (result == null) {
+			result = expand(value);
+			resolved.put(value, result);
+		}
+		return result;
+	}
+
+	private String expand(String value) {
+		StringBuilder out = new StringBuilder(value.length());
+		int i = 0;
+		int length = value.length();
+		while (i < length) {
+			char c = value.charAt(i);
+			if (c != '$' || i + 1 == length) {
+				out.append(c);
+				i++;
+				continue;
+			}
+
+			int start;
+			int end;
+			int next;
+			if (value.charAt(i + 1) == '{') {
+				start = i + 2;
+				end = value.indexOf('}', start);
+				if (end < 0) {
+					out.append(value, i, length);
+					break;
+				}
+				next = end + 1;
+			} else {
+				start = i + 1;
+				end = start;
+				while (end < length && isNameChar(value.charAt(end),
+						end == start)) {
+					end++;
+				}
+				next = end;
+			}
+
+			String name = value.substring(start, end);
+			String replacement = name.isEmpty() ? null : env.get(name);
+			if (replacement == null) {
+				out.append(value, i, next);
+			} else {
+				out.append(replacement);
+			}
+			i = next;
+		}
+		return out.toString();
+	}
+
+	private static boolean isNameChar(char c, boolean first) {
+		return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+				|| (!first && c >= '0' && c <= '9');
+	}
+
+	/**
+	 * Resolve a path. Absolute paths are used as given, relative paths are
+	 * resolved against the build workspace.
+	 * @param path path as configured, may contain variables
+	 * @param workspace build workspace
+	 * @return absolute path, the workspace itself if path is empty
+	 */
+	public String resolvePath(String path, FilePath workspace) {
+		String expanded = resolve(path).trim();
+		if (expanded.isEmpty()) {
+			return workspace.getRemote();
+		}
+		if (ABSOLUTE_PATH.matcher(expanded).matches()) {
+			return expanded;
+		}
+		return workspace.child(expanded).getRemote();
+	}
+
+	/**
+	 * A test case inside the Jenkins workspace is addressed as a project
+	 * URI, e.g. ${WORKSPACE}/proj/test.fftc becomes project://proj/test.fftc
+	 * @param testCase test case as configured
+	 * @return resolved test case URI
+	 */
+	public String resolveTestCase(String testCase) {
+		return resolve(toTestCaseUri(testCase));
+	}
+
+	/**
+	 * Resolve each parameter=value pair.
+	 */
+	public List<String> resolveParams(List<String> params) {
+		List<String> result = new ArrayList<String>(params.size());
+		for (String param : params) {
+			result.add(resolve(param));
+		}
+		return result;
+	}
+
+	/**
+	 * Rewrite a test case given relative to the workspace variable as a
+	 * project URI, leaving any other variables unresolved.
+	 * @param testCase test case as configured
+	 * @return project URI, or testCase if it does not start with the
+	 * workspace variable
+	 */
+	static String toTestCaseUri(String testCase) {
+		String rest = null;
+		if (testCase.regionMatches(true, 0, "${" + WORKSPACE + "}", 0,
+				WORKSPACE.length() + 3)) {
+			rest = testCase.substring(WORKSPACE.length() + 3);
+		} else if (testCase.regionMatches(true, 0, "$" + WORKSPACE, 0,
+				WORKSPACE.length() + 1)
+				&& (testCase.length() == WORKSPACE.length() + 1
+						|| !isNameChar(testCase.charAt(
+								WORKSPACE.length() + 1), false))) {
+			rest = testCase.substring(WORKSPACE.length() + 1);
+		}
+		if (rest == null) {
+			//already a URI, or relative to something resolved later
+			return testCase;
+		}
+		if (rest.startsWith("/") || rest.startsWith("\\")) {
+			rest = rest.substring(1);
+		}
+		return "project://" + rest;
+	}
+}
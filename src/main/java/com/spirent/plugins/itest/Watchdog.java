@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Tells when an iTestRT process is stuck: when it wrote nothing for longer
+ * than the inactivity timeout, or a test case has run for longer than the
+ * test case timeout. A test case that ran in previous builds is given
+ * {@link #HISTORY_FACTOR} times its average duration there, if that is
+ * shorter than the test case timeout or there is none, so that a hang is
+ * noticed long before the timeout set for the slowest test case of the
+ * job.
+ * <p>
+ * One watchdog follows one execution at a time.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+final class Watchdog {
+
+	static final double HISTORY_FACTOR = 3;
+	/**
+	 * Least time a test case is given over its average duration, for test
+	 * cases too short for the factor to leave room for a slow testbed.
+	 */
+	static final long HISTORY_MARGIN = TimeUnit.MINUTES.toMillis(5);
+	/**
+	 * Longest line of a process command dumped.
+	 */
+	static final int MAX_COMMAND = 200;
+
+	private final long inactivity;
+	private final long testCase;
+	private final Map<String, Long> expected;
+	private final String tag;
+
+	private long lastOutput;
+	private String current;
+	private long currentSince;
+
+	/**
+	 * @param inactivity most time without output in milliseconds, 0 for
+	 * no limit
+	 * @param testCase most time a test case runs in milliseconds, 0 for
+	 * no limit
+	 * @param expected average durations of test cases in previous builds
+	 * @param tag BUILD_TAG of the build, to find its processes
+	 */
+	Watchdog(long inactivity, long testCase, Map<String, Long> expected,
+			String tag) {
+		this.inactivity = inactivity;
+		this.testCase = testCase;
+		this.expected = expected;
+		this.tag = tag;
+	}
+
+	/**
+	 * Start following a new execution.
+	 */
+	void start() {
+		lastOutput = System.currentTimeMillis();
+		current = null;
+		currentSince = lastOutput;
+	}
+
+	/**
+	 * @param running test case running now, or null
+	 * @param wrote true if the execution wrote output since the last check
+	 * @return why the execution is stuck, or null if it is not
+	 */
+	String check(String running, boolean wrote) {
+		long now = System.currentTimeMillis();
+		if (wrote) {
+			lastOutput = now;
+		}
+		if (running == null ? current != null : !running.equals(current)) {
+			current = running;
+			currentSince = now;
+		}
+
+		if (inactivity > 0 && now - lastOutput > inactivity) {
+			return "no output for " + Util.getTimeSpanString(now - lastOutput);
+		}
+		long limit = limit(current);
+		if (current != null && limit > 0 && now - currentSince > limit) {
+			return current + " running for "
+					+ Util.getTimeSpanString(now - currentSince) + ", limit "
+					+ Util.getTimeSpanString(limit);
+		}
+		return null;
+	}
+
+	/**
+	 * @return most time the test case may run, 0 for no limit
+	 */
+	long limit(String uri) {
+		Long average = uri == null || expected == null
+				? null : expected.get(uri);
+		if (average == null) {
+			return testCase;
+		}
+		long derived = Math.max((long) (average * HISTORY_FACTOR),
+				average + HISTORY_MARGIN);
+		return testCase == 0 ? derived : Math.min(testCase, derived);
+	}
+
+	/**
+	 * Write what each process of the build on the node is doing to the log,
+	 * before they are killed.
+	 */
+	void dump(VirtualChannel channel, PrintStream logger)
+			throws InterruptedException {
+		if (tag == null || channel == null) {
+			return;
+		}
+		try {
+			String processes = channel.call(new ProcessDump(tag));
+			if (processes == null) {
+				logger.println("Processes of the build are only listed on "
+						+ "Linux nodes");
+			} else {
+				logger.println("Processes of the build:");
+				logger.print(processes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace(logger);
+		}
+	}
+
+	/**
+	 * Lists the processes of a build from /proc on the node.
+	 */
+	private static final class ProcessDump
+			extends MasterToSlaveCallable<String, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String tag;
+
+		ProcessDump(String tag) {
+			this.tag = tag;
+		}
+
+		/**
+		 * @return pid, parent pid, state, threads, resident memory, kernel
+		 * function waited in and command of each process, one per line;
+		 * null if the node has no /proc
+		 */
+		public String call() throws IOException {
+			File proc = new File("/proc");
+			if (!new File(proc, "self/stat").isFile()) {
+				return null;
+			}
+			String variable = "\0BUILD_TAG=" + tag + "\0";
+			StringBuilder dump = new StringBuilder(String.format(
+					"%7s %7s %s %7s %10s  %-20s %s%n", "PID", "PPID", "S",
+					"THREADS", "RSS", "WCHAN", "COMMAND"));
+			String[] pids = proc.list();
+			if (pids == null) {
+				return dump.toString();
+			}
+			for (String pid : pids) {
+				if (pid.isEmpty() || !Character.isDigit(pid.charAt(0))) {
+					continue;
+				}
+				File dir = new File(proc, pid);
+				try {
+					if (!("\0" + ResourceSampler.read(new File(dir, "environ")))
+							.contains(variable)) {
+						continue;
+					}
+					String stat = ResourceSampler.read(new File(dir, "stat"));
+					String[] f = stat.substring(stat.lastIndexOf(')') + 2)
+							.split(" ");
+					String wchan;
+					try {
+						wchan = ResourceSampler.read(new File(dir, "wchan"));
+					} catch (IOException e) {
+						wchan = "?";
+					}
+					String command = ResourceSampler.read(
+							new File(dir, "cmdline")).replace('\0', ' ').trim();
+					if (command.length() > MAX_COMMAND) {
+						command = command.substring(0, MAX_COMMAND) + "...";
+					}
+					dump.append(String.format("%7s %7s %s %7s %7d kB  %-20s %s%n",
+							pid, f[1], f[0], f[17],
+							ResourceSampler.value(ResourceSampler.read(
+									new File(dir, "status")), "VmRSS:"),
+							wchan.isEmpty() || wchan.equals("0") ? "-" : wchan,
+							command));
+				} catch (IOException e) {
+					//exited, or not a process of this user
+				} catch (RuntimeException e) {
+					//exited while being read
+				}
+			}
+			return dump.toString();
+		}
+	}
+}
@@ -0,0 +1,891 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Keeps a copy of an iTest workspace held by the controller on each agent
+ * that runs it, sending only what changed. Files whose size and
+ * modification time are unchanged since the last synchronization are
+ * skipped; changed files are sent as a delta in the style of rsync: the
+ * agent describes the blocks of its copy by a rolling and a strong
+ * checksum, and the controller sends literal data only where no block of
+ * the old copy matches.
+ * <p>
+ * Builds never run in the copy itself but in a checkout of their own: a
+ * directory of hard links to the files of the copy, falling back to plain
+ * copies where the file system has no hard links. Synchronization writes
+ * a changed file next to the old one and renames it into place, so it
+ * never changes a file a checkout links to, and the iTAR files a build
+ * exports stay in its checkout. The copy is only locked while it is
+ * updated or checked out, shared for a checkout and exclusive for an
+ * update. Checkouts are numbered and reused by later builds, so they
+ * usually only need the files that changed linked again.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public final class WorkspaceSync {
+
+	static final String DIR_NAME = "itest-workspaces";
+	static final String MANIFEST = ".itest-sync-manifest";
+	static final String TEMP_SUFFIX = ".itest-sync-tmp";
+	static final int MIN_BLOCK = 2048;
+	static final int MAX_BLOCK = 128 * 1024;
+	/**
+	 * Most data sent to the agent in one call.
+	 */
+	static final int BATCH_BYTES = 8 * 1024 * 1024;
+
+	private static final Map<String, ReentrantReadWriteLock> LOCKS =
+			new HashMap<String, ReentrantReadWriteLock>();
+	/**
+	 * Checkouts of each copy held by a build.
+	 */
+	private static final Map<String, BitSet> CHECKOUTS =
+			new HashMap<String, BitSet>();
+
+	private WorkspaceSync() {
+	}
+
+	/**
+	 * @param node agent running the build
+	 * @param source iTest workspace on the controller
+	 * @return directory of the copy of the workspace on the agent, or null
+	 * if the agent is offline
+	 */
+	static FilePath cacheFor(Node node, File source) {
+		FilePath root = node.getRootPath();
+		return root == null ? null : root.child(DIR_NAME).child(
+				ExecutionAxis.baseName(source.getName()) + "-"
+				+ Util.getDigestOf(source.getAbsolutePath()).substring(0, 8));
+	}
+
+	/**
+	 * Bring the copy of a workspace up to date and check it out for a
+	 * build.
+	 * @param source iTest workspace on the controller
+	 * @param cache copy on the agent
+	 * @param logger build log
+	 * @return lease on the checkout, to release when the build no longer
+	 * uses it
+	 */
+	static Lease sync(File source, FilePath cache, PrintStream logger)
+			throws IOException, InterruptedException {
+		TreeMap<String, Stat> wanted = new TreeMap<String, Stat>();
+		list(source, "", wanted);
+
+		ReentrantReadWriteLock lock = lockFor(cache);
+		lock.readLock().lockInterruptibly();
+		try {
+			if (wanted.equals(cache.act(new ReadManifest()))) {
+				logger.println("iTest workspace on " + cache.getRemote()
+						+ " is up to date (" + wanted.size() + " files)");
+				return checkout(cache, wanted, true);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lockInterruptibly();
+		try {
+			//another build may have updated the copy meanwhile
+			TreeMap<String, Stat> synced = cache.act(new ReadManifest());
+			if (!wanted.equals(synced)) {
+				update(source, cache, wanted, synced, logger);
+			}
+			//downgrade, so that no update slips in before the checkout
+			lock.readLock().lock();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			return checkout(cache, wanted, false);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Link the files of an up to date copy into a checkout no other build
+	 * holds.
+	 */
+	private static Lease checkout(FilePath cache, TreeMap<String, Stat> files,
+			boolean current) throws IOException, InterruptedException {
+		String key = keyOf(cache);
+		int number = acquire(key);
+		boolean linked = false;
+		try {
+			FilePath dir = cache.sibling(cache.getName() + "." + number);
+			dir.act(new Checkout(cache.getRemote(), files));
+			linked = true;
+			return new Lease(dir, key, number, revision(files), current);
+		} finally {
+			if (!linked) {
+				release(key, number);
+			}
+		}
+	}
+
+	/**
+	 * @return digest of the path, size and modification time of every file
+	 */
+	static String revision(TreeMap<String, Stat> files) {
+		StringBuilder listing = new StringBuilder();
+		for (Map.Entry<String, Stat> e : files.entrySet()) {
+			listing.append(e.getKey()).append('\0')
+					.append(e.getValue().length).append(':')
+					.append(e.getValue().modified).append('\n');
+		}
+		return Util.getDigestOf(listing.toString());
+	}
+
+	private static String keyOf(FilePath cache) {
+		return cache.getChannel() + "|" + cache.getRemote();
+	}
+
+	private static synchronized ReentrantReadWriteLock lockFor(
+			FilePath cache) {
+		String key = keyOf(cache);
+		ReentrantReadWriteLock lock = LOCKS.get(key);
+		if (lock == null) {
+			lock = new ReentrantReadWriteLock(true);
+			LOCKS.put(key, lock);
+		}
+		return lock;
+	}
+
+	/**
+	 * @return lowest number of a checkout of the copy no build holds
+	 */
+	private static synchronized int acquire(String key) {
+		BitSet held = CHECKOUTS.get(key);
+		if (held == null) {
+			held = new BitSet();
+			CHECKOUTS.put(key, held);
+		}
+		int number = held.nextClearBit(1);
+		held.set(number);
+		return number;
+	}
+
+	private static synchronized void release(String key, int number) {
+		BitSet held = CHECKOUTS.get(key);
+		if (held != null) {
+			held.clear(number);
+		}
+	}
+
+	private static void update(File source, FilePath cache,
+			TreeMap<String, Stat> wanted, Map<String, Stat> synced,
+			PrintStream logger) throws IOException, InterruptedException {
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, Stat> e : wanted.entrySet()) {
+			if (!e.getValue().equals(synced.get(e.getKey()))) {
+				changed.add(e.getKey());
+			}
+		}
+		//only files synchronized before are removed, not iTAR exports
+		List<String> deleted = new ArrayList<String>();
+		for (String path : synced.keySet()) {
+			if (!wanted.containsKey(path)) {
+				deleted.add(path);
+			}
+		}
+		logger.println("Synchronizing iTest workspace " + source + " to "
+				+ cache.getRemote() + ": " + changed.size() + " changed, "
+				+ deleted.size() + " deleted of " + wanted.size() + " files");
+
+		long start = System.currentTimeMillis();
+		Sender sender = new Sender(cache);
+		Map<String, Signature> signatures =
+				cache.act(new Signatures(changed));
+		for (String path : changed) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			sender.send(path, new File(source, path), signatures.get(path));
+		}
+		sender.flush();
+		if (!deleted.isEmpty()) {
+			cache.act(new Delete(deleted));
+		}
+		cache.act(new WriteManifest(wanted));
+		logger.println("Synchronized iTest workspace in "
+				+ Util.getTimeSpanString(System.currentTimeMillis() - start)
+				+ ": sent " + sender.literal / 1024 + " KB, reused "
+				+ sender.reused / 1024 + " KB already on the agent");
+	}
+
+	private static void list(File dir, String prefix,
+			Map<String, Stat> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String path = prefix + child.getName();
+			if (child.isDirectory()) {
+				list(child, path + "/", files);
+			} else if (!child.getName().startsWith(".itest-")
+					&& !child.getName().endsWith(TEMP_SUFFIX)) {
+				files.put(path, new Stat(child.length(), child.lastModified()));
+			}
+		}
+	}
+
+	static int blockSize(long length) {
+		int size = (int) Math.sqrt(length);
+		return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size - size % 1024));
+	}
+
+	/**
+	 * Rolling checksum of rsync: a is the sum of the bytes of a block and
+	 * b the sum of the running values of a, both kept modulo 2^16.
+	 */
+	static int weak(int a, int b) {
+		return (a & 0xffff) | (b << 16);
+	}
+
+	static byte[] strong(byte[] block, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(block, 0, length);
+			return md5.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Size and modification time of a file of the workspace on the
+	 * controller, as of its last synchronization.
+	 */
+	static final class Stat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final long length;
+		private final long modified;
+
+		Stat(long length, long modified) {
+			this.length = length;
+			this.modified = modified;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Stat && ((Stat) o).length == length
+					&& ((Stat) o).modified == modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (length ^ modified);
+		}
+	}
+
+	/**
+	 * Checksums of the blocks of a file on the agent.
+	 */
+	static final class Signature implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final int blockSize;
+		private final int[] weak;
+		private final byte[][] strong;
+
+		Signature(int blockSize, int[] weak, byte[][] strong) {
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+		}
+	}
+
+	/**
+	 * Computes the delta of each changed file and sends it in batches,
+	 * several small files or part of a large one per call.
+	 */
+	private static final class Sender {
+		private final FilePath cache;
+		private ArrayList<Part> parts = new ArrayList<Part>();
+		private ArrayList<Object> ops = new ArrayList<Object>();
+		private String path;
+		private int blockSize;
+		private boolean first;
+		private int batch;
+		private long literal;
+		private long reused;
+
+		Sender(FilePath cache) {
+			this.cache = cache;
+		}
+
+		void send(String path, File file, Signature basis)
+				throws IOException, InterruptedException {
+			this.path = path;
+			this.blockSize = basis == null ? MIN_BLOCK : basis.blockSize;
+			first = true;
+			InputStream in = new BufferedInputStream(new FileInputStream(file),
+					65536);
+			try {
+				if (basis == null || basis.weak.length == 0) {
+					byte[] buffer = new byte[65536];
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						literal(Arrays.copyOf(buffer, n));
+					}
+				} else {
+					delta(in, basis);
+				}
+			} finally {
+				in.close();
+			}
+			end(true);
+			if (batch >= BATCH_BYTES) {
+				flush();
+			}
+		}
+
+		/**
+		 * Send what is left of the last batch.
+		 */
+		void flush() throws IOException, InterruptedException {
+			if (!parts.isEmpty()) {
+				cache.act(new Patch(parts));
+				parts = new ArrayList<Part>();
+			}
+			batch = 0;
+		}
+
+		/**
+		 * Slide a window of one block over the new file, sending a block
+		 * reference wherever the window matches a block of the old file
+		 * and the bytes it slid over otherwise.
+		 */
+		private void delta(InputStream in, Signature basis)
+				throws IOException, InterruptedException {
+			int bs = basis.blockSize;
+			Map<Integer, List<Integer>> blocks =
+					new HashMap<Integer, List<Integer>>();
+			boolean[] seen = new boolean[65536];
+			for (int i = 0; i < basis.weak.length; i++) {
+				List<Integer> same = blocks.get(basis.weak[i]);
+				if (same == null) {
+					same = new ArrayList<Integer>(1);
+					blocks.put(basis.weak[i], same);
+				}
+				same.add(i);
+				seen[hash16(basis.weak[i])] = true;
+			}
+
+			byte[] window = new byte[bs];
+			byte[] block = new byte[bs];
+			ByteArrayOutputStream pending = new ByteArrayOutputStream();
+			int start = 0;
+			int count = fill(in, window);
+			int a = 0;
+			int b = 0;
+			for (int i = 0; i < count; i++) {
+				a += window[i] & 0xff;
+				b += (count - i) * (window[i] & 0xff);
+			}
+
+			while (count > 0) {
+				int weak = weak(a, b);
+				Integer match = null;
+				if (count == bs && seen[hash16(weak)]
+						&& blocks.containsKey(weak)) {
+					System.arraycopy(window, start, block, 0, bs - start);
+					System.arraycopy(window, 0, block, bs - start, start);
+					byte[] digest = strong(block, bs);
+					for (Integer candidate : blocks.get(weak)) {
+						if (Arrays.equals(basis.strong[candidate], digest)) {
+							match = candidate;
+							break;
+						}
+					}
+				}
+
+				if (match != null) {
+					if (pending.size() > 0) {
+						literal(pending.toByteArray());
+						pending.reset();
+					}
+					copy(match);
+					start = 0;
+					count = fill(in, window);
+					a = 0;
+					b = 0;
+					for (int i = 0; i < count; i++) {
+						a += window[i] & 0xff;
+						b += (count - i) * (window[i] & 0xff);
+					}
+					continue;
+				}
+
+				int out = window[start] & 0xff;
+				pending.write(out);
+				int next = in.read();
+				if (next < 0) {
+					//the window shrinks at the end of the file
+					a -= out;
+					b -= count * out;
+					count--;
+				} else {
+					window[start] = (byte) next;
+					a += next - out;
+					b += a - bs * out;
+				}
+				start = (start + 1) % bs;
+				if (pending.size() >= 65536) {
+					literal(pending.toByteArray());
+					pending.reset();
+				}
+			}
+			if (pending.size() > 0) {
+				literal(pending.toByteArray());
+			}
+		}
+
+		private static int hash16(int weak) {
+			return (weak ^ (weak >>> 16)) & 0xffff;
+		}
+
+		private static int fill(InputStream in, byte[] window)
+				throws IOException {
+			int count = 0;
+			int n;
+			while (count < window.length
+					&& (n = in.read(window, count, window.length - count)) > 0) {
+				count += n;
+			}
+			return count;
+		}
+
+		private void copy(int index)
+				throws IOException, InterruptedException {
+			ops.add(index);
+			reused += blockSize;
+			add(4);
+		}
+
+		private void literal(byte[] data)
+				throws IOException, InterruptedException {
+			ops.add(data);
+			literal += data.length;
+			add(data.length);
+		}
+
+		private void add(int bytes) throws IOException, InterruptedException {
+			batch += bytes;
+			if (batch >= BATCH_BYTES) {
+				end(false);
+				flush();
+			}
+		}
+
+		/**
+		 * Queue what was computed of the current file since its last part.
+		 */
+		private void end(boolean last) {
+			parts.add(new Part(path, blockSize, ops, first, last));
+			ops = new ArrayList<Object>();
+			first = false;
+			batch += path.length();
+		}
+	}
+
+	/**
+	 * Checkout of a workspace held by a build.
+	 */
+	public static final class Lease {
+		private final FilePath dir;
+		private final String key;
+		private final int number;
+		private final String revision;
+		private final boolean current;
+		private boolean released;
+
+		Lease(FilePath dir, String key, int number, String revision,
+				boolean current) {
+			this.dir = dir;
+			this.key = key;
+			this.number = number;
+			this.revision = revision;
+			this.current = current;
+		}
+
+		/**
+		 * @return checkout on the agent
+		 */
+		public FilePath getDir() {
+			return dir;
+		}
+
+		/**
+		 * @return path of the checkout on the agent
+		 */
+		public String getRemote() {
+			return dir.getRemote();
+		}
+
+		/**
+		 * @return digest of the files of the copy, see {@link #revision}
+		 */
+		public String getRevision() {
+			return revision;
+		}
+
+		/**
+		 * @return true if the copy was up to date, and nothing was sent
+		 */
+		public boolean isCurrent() {
+			return current;
+		}
+
+		/**
+		 * Let a later build reuse the checkout.
+		 */
+		public void release() {
+			if (!released) {
+				released = true;
+				WorkspaceSync.release(key, number);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static TreeMap<String, Stat> readManifest(File dir)
+			throws IOException {
+		File file = new File(dir, MANIFEST);
+		if (!file.isFile()) {
+			return new TreeMap<String, Stat>();
+		}
+		ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (TreeMap<String, Stat>) in.readObject();
+		} catch (ClassNotFoundException e) {
+			//synchronize everything again
+			return new TreeMap<String, Stat>();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeManifest(File dir, TreeMap<String, Stat> files)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File temp = new File(dir, MANIFEST + TEMP_SUFFIX);
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeObject(files);
+		} finally {
+			out.close();
+		}
+		replace(temp, new File(dir, MANIFEST));
+	}
+
+	private static final class ReadManifest
+			extends MasterToSlaveFileCallable<TreeMap<String, Stat>> {
+		private static final long serialVersionUID = 1L;
+
+		public TreeMap<String, Stat> invoke(File dir, VirtualChannel channel)
+				throws IOException {
+			return readManifest(dir);
+		}
+	}
+
+	private static final class WriteManifest
+			extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final TreeMap<String, Stat> files;
+
+		WriteManifest(TreeMap<String, Stat> files) {
+			this.files = files;
+		}
+
+		public Void invoke(File dir, VirtualChannel channel)
+				throws IOException {
+			writeManifest(dir, files);
+			return null;
+		}
+	}
+
+	/**
+	 * Links the files of the copy into a checkout, replacing the files that
+	 * changed since the checkout was last used and removing those deleted
+	 * meanwhile. Files the builds wrote are left alone.
+	 */
+	private static final class Checkout
+			extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final String copy;
+		private final TreeMap<String, Stat> files;
+
+		Checkout(String copy, TreeMap<String, Stat> files) {
+			this.copy = copy;
+			this.files = files;
+		}
+
+		public Void invoke(File dir, VirtualChannel channel)
+				throws IOException {
+			TreeMap<String, Stat> linked = readManifest(dir);
+			for (String path : files.keySet()) {
+				File source = new File(copy, path);
+				File target = new File(dir, path);
+				if (target.isFile() && (Files.isSameFile(source.toPath(),
+						target.toPath())
+						|| (target.length() == source.length()
+						&& target.lastModified() == source.lastModified()))) {
+					continue;
+				}
+				File temp = new File(dir, path + TEMP_SUFFIX);
+				File parent = temp.getParentFile();
+				if (!parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Cannot create " + parent);
+				}
+				Files.deleteIfExists(temp.toPath());
+				link(source, temp);
+				replace(temp, target);
+			}
+			for (String path : linked.keySet()) {
+				if (!files.containsKey(path)) {
+					File file = new File(dir, path);
+					if (file.exists() && !file.delete()) {
+						throw new IOException("Cannot delete " + file);
+					}
+				}
+			}
+			writeManifest(dir, files);
+			return null;
+		}
+
+		private static void link(File source, File link) throws IOException {
+			try {
+				Files.createLink(link.toPath(), source.toPath());
+				return;
+			} catch (UnsupportedOperationException e) {
+				//copied below
+			} catch (IOException e) {
+				//no hard links on this file system, or across devices
+			}
+			Files.copy(source.toPath(), link.toPath(),
+					StandardCopyOption.COPY_ATTRIBUTES);
+		}
+	}
+
+	private static final class Signatures
+			extends MasterToSlaveFileCallable<HashMap<String, Signature>> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		Signatures(List<String> paths) {
+			this.paths = new ArrayList<String>(paths);
+		}
+
+		public HashMap<String, Signature> invoke(File dir,
+				VirtualChannel channel) throws IOException {
+			HashMap<String, Signature> signatures =
+					new HashMap<String, Signature>();
+			for (String path : paths) {
+				File file = new File(dir, path);
+				if (!file.isFile()) {
+					continue;
+				}
+				int bs = blockSize(file.length());
+				int blocks = (int) (file.length() / bs);
+				int[] weak = new int[blocks];
+				byte[][] strong = new byte[blocks][];
+				byte[] block = new byte[bs];
+				InputStream in = new BufferedInputStream(
+						new FileInputStream(file), 65536);
+				try {
+					//a partial last block is always sent again
+					for (int i = 0; i < blocks; i++) {
+						int n = Sender.fill(in, block);
+						int a = 0;
+						int b = 0;
+						for (int j = 0; j < n; j++) {
+							a += block[j] & 0xff;
+							b += (n - j) * (block[j] & 0xff);
+						}
+						weak[i] = weak(a, b);
+						strong[i] = strong(block, n);
+					}
+				} finally {
+					in.close();
+				}
+				signatures.put(path, new Signature(bs, weak, strong));
+			}
+			return signatures;
+		}
+	}
+
+	/**
+	 * Writes a batch of parts of the new copies of files.
+	 */
+	private static final class Patch extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<Part> parts;
+
+		Patch(ArrayList<Part> parts) {
+			this.parts = parts;
+		}
+
+		public Void invoke(File dir, VirtualChannel channel)
+				throws IOException {
+			for (Part part : parts) {
+				part.write(dir);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Part of the new copy of a file made of literal data and blocks of the
+	 * old copy, which it replaces after the last part.
+	 */
+	private static final class Part implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String path;
+		private final int blockSize;
+		private final ArrayList<Object> ops;
+		private final boolean first;
+		private final boolean last;
+
+		Part(String path, int blockSize, ArrayList<Object> ops,
+				boolean first, boolean last) {
+			this.path = path;
+			this.blockSize = blockSize;
+			this.ops = ops;
+			this.first = first;
+			this.last = last;
+		}
+
+		void write(File dir) throws IOException {
+			File target = new File(dir, path);
+			File temp = new File(dir, path + TEMP_SUFFIX);
+			if (first) {
+				File parent = temp.getParentFile();
+				if (!parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Cannot create " + parent);
+				}
+			}
+
+			OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(temp, !first), 65536);
+			RandomAccessFile basis = null;
+			try {
+				byte[] block = new byte[blockSize];
+				for (Object op : ops) {
+					if (op instanceof byte[]) {
+						out.write((byte[]) op);
+						continue;
+					}
+					if (basis == null) {
+						basis = new RandomAccessFile(target, "r");
+					}
+					basis.seek((long) (Integer) op * blockSize);
+					basis.readFully(block);
+					out.write(block);
+				}
+			} finally {
+				out.close();
+				if (basis != null) {
+					basis.close();
+				}
+			}
+
+			if (last) {
+				replace(temp, target);
+			}
+		}
+	}
+
+	private static final class Delete extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		Delete(List<String> paths) {
+			this.paths = new ArrayList<String>(paths);
+		}
+
+		public Void invoke(File dir, VirtualChannel channel)
+				throws IOException {
+			for (String path : paths) {
+				File file = new File(dir, path);
+				if (file.exists() && !file.delete()) {
+					throw new IOException("Cannot delete " + file);
+				}
+			}
+			return null;
+		}
+	}
+
+	private static void replace(File temp, File target) throws IOException {
+		//Windows does not rename over an existing file
+		if (target.exists() && !target.delete()) {
+			throw new IOException("Cannot replace " + target);
+		}
+		if (!temp.renameTo(target)) {
+			throw new IOException("Cannot rename " + temp + " to " + target);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves archived report files whole, in byte ranges and compressed.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ArchivedReportServerTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File root;
+	private byte[] content;
+
+	@Before
+	public void archive() throws Exception {
+		root = new File(tmp.newFolder("htmlreports"), "report");
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			html.append("<p>line ").append(i).append("</p>\n");
+		}
+		content = html.toString().getBytes("UTF-8");
+		FileUtils.writeByteArrayToFile(new File(root, "a.html"), content);
+	}
+
+	@Test
+	public void servesWholeFile() throws Exception {
+		Response rsp = get("/a.html");
+		assertEquals(200, rsp.status);
+		assertEquals("bytes", rsp.headers.get("Accept-Ranges"));
+		assertEquals(String.valueOf(content.length),
+				rsp.headers.get("Content-Length"));
+		assertArrayEquals(content, rsp.body.toByteArray());
+	}
+
+	@Test
+	public void servesRanges() throws Exception {
+		Response rsp = get("/a.html", "Range", "bytes=10-19");
+		assertEquals(206, rsp.status);
+		assertEquals("bytes 10-19/" + content.length,
+				rsp.headers.get("Content-Range"));
+		assertArrayEquals(slice(10, 20), rsp.body.toByteArray());
+
+		rsp = get("/a.html", "Range", "bytes=-5");
+		assertEquals(206, rsp.status);
+		assertArrayEquals(slice(content.length - 5, content.length),
+				rsp.body.toByteArray());
+
+		rsp = get("/a.html", "Range", "bytes=100-");
+		assertEquals(206, rsp.status);
+		assertArrayEquals(slice(100, content.length), rsp.body.toByteArray());
+
+		rsp = get("/a.html", "Range", "bytes=10-" + content.length * 2);
+		assertEquals("bytes 10-" + (content.length - 1) + "/"
+				+ content.length, rsp.headers.get("Content-Range"));
+	}
+
+	@Test
+	public void rejectsUnsatisfiableRanges() throws Exception {
+		Response rsp = get("/a.html", "Range", "bytes=" + content.length + "-");
+		assertEquals(416, rsp.status);
+		assertEquals("bytes */" + content.length,
+				rsp.headers.get("Content-Range"));
+		assertEquals(0, rsp.body.size());
+	}
+
+	@Test
+	public void sendsWholeFileForOtherRanges() throws Exception {
+		assertEquals(200, get("/a.html", "Range", "bytes=0-1,5-6").status);
+		assertEquals(200, get("/a.html", "Range", "items=0-1").status);
+
+		String etag = get("/a.html").headers.get("ETag");
+		assertEquals(206, get("/a.html", "Range", "bytes=0-1",
+				"If-Range", etag).status);
+		Response rsp = get("/a.html", "Range", "bytes=0-1",
+				"If-Range", "\"stale\"");
+		assertEquals(200, rsp.status);
+		assertArrayEquals(content, rsp.body.toByteArray());
+	}
+
+	@Test
+	public void answersNotModified() throws Exception {
+		String etag = get("/a.html").headers.get("ETag");
+		Response rsp = get("/a.html", "If-None-Match", etag);
+		assertEquals(304, rsp.status);
+		assertEquals(0, rsp.body.size());
+	}
+
+	@Test
+	public void servesVariantsWrittenAtArchiveTime() throws Exception {
+		assertNull(get("/a.html", "Accept-Encoding", "gzip")
+				.headers.get("Content-Encoding"));
+
+		ArchivedReportServer.precompress(root, false);
+		assertEquals(Arrays.asList("a.html"), Arrays.asList(root.list()));
+
+		Response rsp = get("/a.html", "Accept-Encoding", "gzip, deflate");
+		assertEquals("gzip", rsp.headers.get("Content-Encoding"));
+		assertArrayEquals(content, gunzip(rsp.body.toByteArray()));
+
+		rsp = get("/a.html", "Accept-Encoding", "gzip", "Range", "bytes=0-9");
+		assertNull(rsp.headers.get("Content-Encoding"));
+		assertArrayEquals(slice(0, 10), rsp.body.toByteArray());
+	}
+
+	@Test
+	public void leavesOtherPathsToTheDirectoryBrowser() throws Exception {
+		FileUtils.writeStringToFile(new File(tmp.getRoot(), "secret.txt"), "");
+		assertFalse(serve("/", new Response()));
+		assertFalse(serve("/*zip*/report.zip", new Response()));
+		assertFalse(serve("/../../secret.txt", new Response()));
+		assertFalse(serve("/missing.html", new Response()));
+		assertTrue(serve("/a.html", new Response()));
+	}
+
+	private byte[] slice(int from, int to) {
+		return Arrays.copyOfRange(content, from, to);
+	}
+
+	private static byte[] gunzip(byte[] gz) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gz));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private Response get(String path, String... headers) throws IOException {
+		Response rsp = new Response();
+		assertTrue(serve(path, rsp, headers));
+		return rsp;
+	}
+
+	private boolean serve(String path, Response rsp, String... headers)
+			throws IOException {
+		final Map<String, String> request = new HashMap<String, String>();
+		for (int i = 0; i < headers.length; i += 2) {
+			request.put(headers[i], headers[i + 1]);
+		}
+		request.put("method", "GET");
+		request.put("path", path);
+		StaplerRequest req = (StaplerRequest) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { StaplerRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getHeader")) {
+							return request.get(args[0]);
+						} else if (method.getName().equals("getMethod")) {
+							return request.get("method");
+						} else if (method.getName().equals("getRestOfPath")) {
+							return request.get("path");
+						}
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+		return ArchivedReportServer.serve(req, rsp.proxy(), root, true);
+	}
+
+	/**
+	 * Records what is sent.
+	 */
+	private static final class Response implements InvocationHandler {
+		int status = 200;
+		final Map<String, String> headers = new HashMap<String, String>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		StaplerResponse proxy() {
+			return (StaplerResponse) Proxy.newProxyInstance(
+					getClass().getClassLoader(),
+					new Class<?>[] { StaplerResponse.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setHeader")) {
+				headers.put((String) args[0], (String) args[1]);
+			} else if (name.equals("setDateHeader")) {
+				headers.put((String) args[0], String.valueOf(args[1]));
+			} else if (name.equals("setStatus") || name.equals("sendError")) {
+				status = (Integer) args[0];
+			} else if (name.equals("setContentType")) {
+				headers.put("Content-Type", (String) args[0]);
+			} else if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+						body.write(b);
+					}
+				};
+			} else {
+				throw new UnsupportedOperationException(name);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Splits testbed and parameter file fields into the axes of a build.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ExecutionAxisTest {
+
+	@Test
+	public void splitsCommaSeparatedValues() {
+		assertEquals(Arrays.asList("a.tbml", "b.tbml"),
+				ExecutionAxis.split(" a.tbml, ,b.tbml ,"));
+		assertEquals(Collections.<String>emptyList(),
+				ExecutionAxis.split(" "));
+		assertEquals(Collections.<String>emptyList(),
+				ExecutionAxis.split(null));
+	}
+
+	@Test
+	public void runsOneUnnamedAxisWithoutChoices() {
+		List<ExecutionAxis> axes = ExecutionAxis.expand(
+				Collections.<String>emptyList(),
+				Collections.<String>emptyList());
+		assertEquals(1, axes.size());
+		assertEquals("axis", axes.get(0).getName());
+		assertEquals("", axes.get(0).getTestbed());
+		assertEquals("", axes.get(0).getParamFile());
+
+		axes = ExecutionAxis.expand(Arrays.asList("project://p/a.tbml"),
+				Arrays.asList("project://p/x.ffpt"));
+		assertEquals(1, axes.size());
+		assertEquals("project://p/a.tbml", axes.get(0).getTestbed());
+		assertEquals("project://p/x.ffpt", axes.get(0).getParamFile());
+	}
+
+	@Test
+	public void combinesTestbedsWithParameterFiles() {
+		List<ExecutionAxis> axes = ExecutionAxis.expand(
+				Arrays.asList("project://p/a.tbml", "project://p/b.tbml"),
+				Arrays.asList("C:\\params\\x.ffpt", "y.ffpt"));
+		assertEquals(Arrays.asList("a-x", "a-y", "b-x", "b-y"), names(axes));
+		assertEquals("project://p/b.tbml", axes.get(3).getTestbed());
+		assertEquals("y.ffpt", axes.get(3).getParamFile());
+
+		//only the field that varies is part of the name
+		axes = ExecutionAxis.expand(Arrays.asList("project://p/a.tbml"),
+				Arrays.asList("x.ffpt", "y.ffpt"));
+		assertEquals(Arrays.asList("x", "y"), names(axes));
+	}
+
+	@Test
+	public void namesAxesUniquely() {
+		List<ExecutionAxis> axes = ExecutionAxis.expand(
+				Arrays.asList("one/lab.tbml", "two/lab.tbml", "three/lab.tbml"),
+				Collections.<String>emptyList());
+		assertEquals(Arrays.asList("lab", "lab-2", "lab-3"), names(axes));
+		assertEquals("my_lab_1_", ExecutionAxis.baseName("dir/my lab(1).tbml"));
+		assertEquals("axis", ExecutionAxis.baseName("dir/"));
+	}
+
+	@Test
+	public void qualifiesTestCasesWithTheirAxis() {
+		String key = ExecutionAxis.qualify("lab-2", "project://p/a.fftc");
+		assertEquals("project://p/a.fftc @ lab-2", key);
+		assertEquals("lab-2", ExecutionAxis.axisOf(key));
+		assertEquals("project://p/a.fftc", ExecutionAxis.uriOf(key));
+
+		key = ExecutionAxis.qualify(null, "project://p/a.fftc");
+		assertEquals("project://p/a.fftc", key);
+		assertNull(ExecutionAxis.axisOf(key));
+		assertEquals("project://p/a.fftc", ExecutionAxis.uriOf(key));
+	}
+
+	@Test
+	public void prefixesEachLine() throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		ExecutionAxis.PrefixedOutputStream out =
+				new ExecutionAxis.PrefixedOutputStream(
+						new PrintStream(log, true), "lab");
+		out.write("Running a\nRunning".getBytes());
+		out.write(" b\n".getBytes());
+		out.write("done".getBytes());
+		out.close();
+		assertEquals("[lab] Running a\n[lab] Running b\n[lab] done",
+				log.toString());
+	}
+
+	private static List<String> names(List<ExecutionAxis> axes) {
+		List<String> names = new ArrayList<String>();
+		for (ExecutionAxis axis : axes) {
+			names.add(axis.getName());
+		}
+		return names;
+	}
+}
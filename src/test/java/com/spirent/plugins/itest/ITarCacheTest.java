@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Keys iTAR files by the content of their projects and evicts the least
+ * recently used ones.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITarCacheTest {
+
+	private static final String ITESTCLI = "/opt/itest/itestcli";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private FilePath cache;
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log, true);
+
+	@Before
+	public void cache() {
+		cache = new FilePath(tmp.newFolder("cache"));
+	}
+
+	@Test
+	public void restoresProjectsWithTheSameFiles() throws Exception {
+		File first = workspace("first", "p", "a.fftc", "content");
+		ITarCache.Lookup lookup = restore(first, "p");
+		assertEquals(Arrays.asList("p"), lookup.getMisses());
+		assertTrue(lookup.getHits().isEmpty());
+		String key = lookup.getKeys().get("p");
+
+		export(first, "p", "itar of p");
+		ITarCache.Stored stored = ITarCache.store(new FilePath(first), cache,
+				lookup, logger);
+		assertEquals(Arrays.asList(key), stored.getKeys());
+		assertTrue(stored.getEvicted().isEmpty());
+		assertTrue(log.toString(), log.toString().contains("Cached iTAR of p"));
+
+		//same files in another workspace, with other modification times
+		File second = workspace("second", "p", "a.fftc", "content");
+		new File(second, "p/a.fftc").setLastModified(1000000000000L);
+		lookup = restore(second, "p");
+		assertTrue(lookup.getMisses().isEmpty());
+		assertEquals(Arrays.asList(key),
+				Arrays.asList(lookup.getHits().toArray()));
+		assertEquals("itar of p", FileUtils.readFileToString(
+				new File(second, "p" + ITarCache.EXTENSION)));
+	}
+
+	@Test
+	public void keysOnFilesAndCommand() throws Exception {
+		File workspace = workspace("w", "p", "a.fftc", "content");
+		String key = restore(workspace, "p").getKeys().get("p");
+
+		FileUtils.writeStringToFile(new File(workspace, "p/a.fftc"),
+				"changed content");
+		String changed = restore(workspace, "p").getKeys().get("p");
+		assertFalse(key.equals(changed));
+
+		FileUtils.writeStringToFile(new File(workspace, "p/b.fftc"), "");
+		String added = restore(workspace, "p").getKeys().get("p");
+		assertFalse(changed.equals(added));
+
+		ITarCache.Lookup other = ITarCache.restore(new FilePath(workspace),
+				cache, "itestcli", Arrays.asList("p"), logger);
+		assertFalse(added.equals(other.getKeys().get("p")));
+
+		//an iTAR file in the project folder is not part of the project
+		FileUtils.writeStringToFile(new File(workspace,
+				"p/old" + ITarCache.EXTENSION), "old");
+		assertEquals(added, restore(workspace, "p").getKeys().get("p"));
+	}
+
+	@Test
+	public void onlyStoresFreshExports() throws Exception {
+		File workspace = workspace("w", "p", "a.fftc", "content");
+		File itar = new File(workspace, "p" + ITarCache.EXTENSION);
+		FileUtils.writeStringToFile(itar, "older export");
+		ITarCache.Lookup lookup = restore(workspace, "p", "missing");
+		assertEquals(Arrays.asList("p", "missing"), lookup.getMisses());
+		assertNull(lookup.getKeys().get("missing"));
+
+		//iTestCLI failed before writing the iTAR file
+		assertTrue(ITarCache.store(new FilePath(workspace), cache, lookup,
+				logger).getKeys().isEmpty());
+		assertTrue(log.toString(), log.toString().contains(
+				"iTAR of p not cached: iTestCLI did not write"));
+		assertTrue(log.toString(), log.toString().contains(
+				"iTAR of missing not cached: no project folder"));
+		assertEquals(Arrays.asList("p", "missing"),
+				restore(workspace, "p", "missing").getMisses());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		File workspace = tmp.newFolder("w");
+		for (String project : Arrays.asList("a", "b", "c")) {
+			FileUtils.writeStringToFile(new File(workspace,
+					project + "/t.fftc"), project);
+		}
+		ITarCache.Lookup lookup = restore(workspace, "a", "b");
+		export(workspace, "a", "0123456789");
+		export(workspace, "b", "0123456789");
+		ITarCache.store(new FilePath(workspace), cache, lookup, 100, logger);
+		File a = entry(lookup, "a");
+		File b = entry(lookup, "b");
+		assertTrue(a.setLastModified(1000000000000L));
+		assertTrue(b.setLastModified(1000000001000L));
+
+		//a is used again, so b is the least recently used
+		restore(workspace, "a");
+		lookup = restore(workspace, "c");
+		export(workspace, "c", "0123456789");
+		ITarCache.Stored stored = ITarCache.store(new FilePath(workspace),
+				cache, lookup, 25, logger);
+		assertEquals(Arrays.asList(b.getName()), stored.getEvicted());
+		assertTrue(a.isDirectory());
+		assertFalse(b.isDirectory());
+		assertTrue(entry(lookup, "c").isDirectory());
+		assertTrue(log.toString(), log.toString().contains("Evicted "
+				+ b.getName().substring(0, 12) + " from the iTAR cache"));
+
+		//the entry just stored is kept even past the limit
+		lookup = restore(workspace, "b");
+		export(workspace, "b", "0123456789");
+		ITarCache.store(new FilePath(workspace), cache, lookup, 0, logger);
+		assertFalse(a.isDirectory());
+		assertTrue(entry(lookup, "b").isDirectory());
+	}
+
+	private File workspace(String name, String project, String file,
+			String content) throws Exception {
+		File workspace = tmp.newFolder(name);
+		FileUtils.writeStringToFile(new File(workspace,
+				project + "/" + file), content);
+		return workspace;
+	}
+
+	private ITarCache.Lookup restore(File workspace, String... projects)
+			throws Exception {
+		List<String> names = Arrays.asList(projects);
+		return ITarCache.restore(new FilePath(workspace), cache, ITESTCLI,
+				names, logger);
+	}
+
+	/**
+	 * Write an iTAR file as iTestCLI would, later than any before it.
+	 */
+	private static void export(File workspace, String project,
+			String content) throws Exception {
+		File itar = new File(workspace, project + ITarCache.EXTENSION);
+		long before = itar.lastModified();
+		FileUtils.writeStringToFile(itar, content);
+		if (itar.lastModified() == before) {
+			itar.setLastModified(before + 1000);
+		}
+	}
+
+	private File entry(ITarCache.Lookup lookup, String project) {
+		return new File(cache.getRemote(), lookup.getKeys().get(project));
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Composes iTestRT command lines and splits long ones into batches.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITestCommandTest {
+
+	@Test
+	public void withTestsKeepsOtherOptions() {
+		String command = ITestCommand.run("itestrt", "ls", "/ws", "tb.tbml",
+				Arrays.asList("a=1"), "", Arrays.asList(
+						"project://p/a.fftc", "project://p/b.fftc"));
+		assertEquals("itestrt --licenseServer ls --itar /ws"
+				+ " --testbed file:/tb.tbml --param a=1"
+				+ " --test project://p/b.fftc",
+				ITestCommand.withTests(command,
+						Arrays.asList("project://p/b.fftc")));
+	}
+
+	@Test
+	public void shortCommandIsNotSplit() {
+		String command = run(tests(3));
+		assertEquals(command, ITestCommand.batches(command, false));
+		assertEquals(command, ITestCommand.batches(command, true));
+	}
+
+	@Test
+	public void longCommandRunsInBatches() {
+		List<String> tests = tests(1000);
+		String script = ITestCommand.batches(run(tests), false);
+
+		String[] lines = script.split("\r\n");
+		assertEquals("set ITEST_RC=0", lines[0]);
+		assertEquals("exit /b %ITEST_RC%", lines[lines.length - 1]);
+		List<String> batched = new ArrayList<String>();
+		for (int i = 1; i < lines.length - 1; i += 2) {
+			assertTrue(lines[i].length() <= ITestCommand.WINDOWS_MAX_LINE);
+			assertTrue(lines[i].startsWith("call itestrt --licenseServer ls"));
+			assertEquals("if errorlevel 1 set ITEST_RC=1", lines[i + 1]);
+			for (String option : lines[i].split(" --test ")) {
+				if (!option.startsWith("call ")) {
+					batched.add(option);
+				}
+			}
+		}
+		assertTrue(lines.length > 5);
+		assertEquals(tests, batched);
+	}
+
+	@Test
+	public void shellBatchesKeepGoing() {
+		List<String> tests = tests(ITestCommand.UNIX_MAX_LINE / 20);
+		String script = ITestCommand.batches(run(tests), true);
+
+		String[] lines = script.split("\n");
+		assertEquals("ITEST_RC=0", lines[0]);
+		assertEquals("exit $ITEST_RC", lines[lines.length - 1]);
+		for (int i = 1; i < lines.length - 1; i++) {
+			assertTrue(lines[i].endsWith(" || ITEST_RC=$?"));
+			assertTrue(lines[i].length() <= ITestCommand.UNIX_MAX_LINE);
+		}
+	}
+
+	@Test
+	public void testCasesWithOwnParametersRunApart() {
+		Map<String, List<String>> caseParams =
+				new HashMap<String, List<String>>();
+		caseParams.put("project://p/test_case_1.fftc",
+				Arrays.asList("rate=1"));
+		caseParams.put("project://p/test_case_2.fftc",
+				Arrays.asList("rate=1"));
+		String script = ITestCommand.batches(run(tests(4)), caseParams, true);
+
+		String base = "itestrt --licenseServer ls --itar /ws";
+		assertEquals("ITEST_RC=0\n"
+				+ base + " --test project://p/test_case_0.fftc"
+				+ " || ITEST_RC=$?\n"
+				+ base + " --param rate=1 --test project://p/test_case_1.fftc"
+				+ " --test project://p/test_case_2.fftc || ITEST_RC=$?\n"
+				+ base + " --test project://p/test_case_3.fftc"
+				+ " || ITEST_RC=$?\n"
+				+ "exit $ITEST_RC", script);
+	}
+
+	private static String run(List<String> tests) {
+		return ITestCommand.run("itestrt", "ls", "/ws", "",
+				Collections.<String>emptyList(), "", tests);
+	}
+
+	private static List<String> tests(int count) {
+		List<String> tests = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			tests.add("project://p/test_case_" + i + ".fftc");
+		}
+		return tests;
+	}
+}
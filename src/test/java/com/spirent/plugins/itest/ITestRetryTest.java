@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Runs the build step with a script standing in for iTestRT whose test case
+ * reports an error and fails on the first attempt only.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITestRetryTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void passesWhenRetryPasses() throws Exception {
+		Assume.assumeFalse(Functions.isWindows());
+		File attempted = new File(tmp.getRoot(), "attempted");
+		File itestrt = script("itestrt", "echo Running project://p/a.fftc\n"
+				+ "if [ -f '" + attempted + "' ]; then\n"
+				+ "  echo 'Execution status:  Pass'\n"
+				+ "else\n"
+				+ "  touch '" + attempted + "'\n"
+				+ "  echo 'Error: link to the DUT is down'\n"
+				+ "  echo 'Execution status:  Fail'\n"
+				+ "fi\n");
+		File itestcli = script("itestcli", "exit 0\n");
+		ITest.Descriptor global = j.jenkins
+				.getDescriptorByType(ITest.Descriptor.class);
+		global.setRtPath(itestrt.getPath());
+		global.setCliPath(itestcli.getPath());
+
+		FreeStyleProject p = j.createFreeStyleProject();
+		ITest step = new ITest("", "p", "project://p/a.fftc", "", "", "",
+				false, "");
+		step.setRetries(1);
+		p.getBuildersList().add(step);
+
+		FreeStyleBuild b = j.buildAndAssertSuccess(p);
+		j.assertLogContains("Error: link to the DUT is down", b);
+		j.assertLogContains("Retrying 1 failed test cases", b);
+	}
+
+	private File script(String name, String body) throws Exception {
+		File file = new File(tmp.getRoot(), name);
+		FileUtils.writeStringToFile(file, "#!/bin/sh\n" + body);
+		file.setExecutable(true);
+		return file;
+	}
+}
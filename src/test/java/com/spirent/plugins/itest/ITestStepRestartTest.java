@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import hudson.Functions;
+import hudson.model.Result;
+
+import java.io.File;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Assume;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+/**
+ * Runs the itest step across a restart of Jenkins, with a script standing in
+ * for iTestRT that only finishes its test case once told to.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ITestStepRestartTest {
+
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	@Rule
+	public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+	private static File go;
+
+	@Test
+	public void checksAfterRestart() {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				Assume.assumeFalse(Functions.isWindows());
+				go = new File(tmp.getRoot(), "go");
+				File itestrt = new File(tmp.getRoot(), "itestrt");
+				FileUtils.writeStringToFile(itestrt, "#!/bin/sh\n"
+						+ "echo Running project://p/a.fftc\n"
+						+ "while [ ! -f '" + go + "' ]; do sleep 1; done\n"
+						+ "echo 'Execution status:  Pass'\n");
+				itestrt.setExecutable(true);
+				ITest.Descriptor global = Jenkins.getInstance()
+						.getDescriptorByType(ITest.Descriptor.class);
+				global.setRtPath(itestrt.getPath());
+				global.save();
+
+				WorkflowJob p = story.j.jenkins.createProject(
+						WorkflowJob.class, "p");
+				p.setDefinition(new CpsFlowDefinition(
+						"node { itest testcases: 'project://p/a.fftc' }"));
+				WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+				story.j.waitForMessage("Running project://p/a.fftc", b);
+			}
+		});
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				WorkflowRun b = story.j.jenkins.getItemByFullName("p",
+						WorkflowJob.class).getLastBuild();
+				FileUtils.touch(go);
+				story.j.assertBuildStatus(Result.SUCCESS,
+						story.j.waitForCompletion(b));
+				story.j.assertLogContains("Execution status:  Pass", b);
+			}
+		});
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Expands parameter value lists and ranges into combinations.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ParameterSweepTest {
+
+	@Test
+	public void parsesValueListsAndRanges() {
+		assertEquals(Arrays.asList("64", "512", "1518"),
+				ParameterSweep.values("64|512||64|1518"));
+		assertNull(ParameterSweep.values("64|"));
+		assertNull(ParameterSweep.values("64"));
+		assertNull(ParameterSweep.values("1..x"));
+		assertEquals(Arrays.asList("10", "40", "70", "100"),
+				ParameterSweep.values("10..100:30"));
+		assertEquals(Arrays.asList("10", "40", "70"),
+				ParameterSweep.values("10..90:30"));
+		assertEquals(Arrays.asList("1", "0", "-1"),
+				ParameterSweep.values("1..-1"));
+		assertEquals(Arrays.asList("5"), ParameterSweep.values("5..5"));
+	}
+
+	@Test
+	public void rejectsRangesWithTooManyValues() {
+		try {
+			ParameterSweep.values("1.." + (ParameterSweep.MAX_COMBINATIONS + 1));
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void keepsSingleValuesFixed() {
+		ParameterSweep sweep = ParameterSweep.parse(Arrays.asList(
+				"host=10.0.0.1", "flag", "size=64|128", "url=a=b|c"));
+		assertEquals(Arrays.asList("host=10.0.0.1", "flag"), sweep.getFixed());
+		assertEquals(Arrays.asList(
+				Arrays.asList("size=64", "url=a=b"),
+				Arrays.asList("size=64", "url=c"),
+				Arrays.asList("size=128", "url=a=b"),
+				Arrays.asList("size=128", "url=c")),
+				sweep.combinations(ParameterSweep.CARTESIAN));
+
+		sweep = ParameterSweep.parse(Arrays.asList("host=10.0.0.1"));
+		assertTrue(sweep.isEmpty());
+		assertEquals(Collections.singletonList(Collections.<String>emptyList()),
+				sweep.combinations(ParameterSweep.PAIRWISE));
+	}
+
+	@Test
+	public void coversEveryPairWithFewerCombinations() {
+		List<String> params = Arrays.asList("a=1|2|3", "b=1|2|3",
+				"c=1|2|3", "d=1|2|3", "e=1|2");
+		List<List<String>> combinations = ParameterSweep.parse(params)
+				.combinations(ParameterSweep.PAIRWISE);
+		assertTrue(combinations.size() < 162);
+		for (List<String> combination : combinations) {
+			assertEquals(params.size(), combination.size());
+		}
+
+		Set<String> covered = new HashSet<String>();
+		for (List<String> combination : combinations) {
+			for (int i = 0; i < combination.size(); i++) {
+				for (int j = i + 1; j < combination.size(); j++) {
+					covered.add(combination.get(i) + " " + combination.get(j));
+				}
+			}
+		}
+		for (int i = 0; i < params.size(); i++) {
+			for (int j = i + 1; j < params.size(); j++) {
+				for (String v : values(params.get(i))) {
+					for (String w : values(params.get(j))) {
+						assertTrue(v + " " + w, covered.contains(v + " " + w));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void expandsTwoParametersFullyWhenPairwise() {
+		assertEquals(ParameterSweep.parse(Arrays.asList("a=1|2", "b=x|y"))
+				.combinations(ParameterSweep.CARTESIAN),
+				ParameterSweep.parse(Arrays.asList("a=1|2", "b=x|y"))
+				.combinations(ParameterSweep.PAIRWISE));
+	}
+
+	@Test
+	public void rejectsTooManyCombinations() {
+		List<String> params = new ArrayList<String>();
+		for (int i = 0; i < 9; i++) {
+			params.add("p" + i + "=1|2");
+		}
+		try {
+			ParameterSweep.parse(params).combinations(ParameterSweep.CARTESIAN);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		assertTrue(ParameterSweep.parse(params)
+				.combinations(ParameterSweep.PAIRWISE).size() < 256);
+	}
+
+	/**
+	 * @return name=value pairs of a swept parameter
+	 */
+	private static List<String> values(String param) {
+		String name = param.substring(0, param.indexOf('=') + 1);
+		List<String> pairs = new ArrayList<String>();
+		for (String value : ParameterSweep.values(
+				param.substring(name.length()))) {
+			pairs.add(name + value);
+		}
+		return pairs;
+	}
+}
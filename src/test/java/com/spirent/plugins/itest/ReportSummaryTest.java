@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Extracts summaries from test case reports.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ReportSummaryTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void readsLabelledValues() throws Exception {
+		ReportSummary.Entry entry = scan("<html><head>"
+				+ "<style>td { color: red }</style>"
+				+ "<script>var status = 'Pass';</script></head><body>"
+				+ "<!-- <td>Fail</td> --><table>"
+				+ "<tr><td>Execution status:</td><td>Fail</td></tr>"
+				+ "<tr><td>Duration</td><td>00:01:30</td></tr>"
+				+ "<tr><td>step 1</td><td>Pass</td></tr>"
+				+ "<tr><td>step 2</td><td>Failed</td>"
+				+ "<td>Expected 10 &lt; 5</td></tr>"
+				+ "<tr><td>Error: link&nbsp;down</td></tr>"
+				+ "</table></body></html>");
+
+		assertEquals("report", entry.getName());
+		assertEquals(TestCaseResult.Verdict.FAIL, entry.getVerdict());
+		assertEquals("00:01:30", entry.getDuration());
+		assertEquals(2, entry.getSteps());
+		assertEquals(1, entry.getPassedSteps());
+		assertEquals(1, entry.getFailedSteps());
+		assertEquals(Arrays.asList("Expected 10 < 5", "Error: link down"),
+				entry.getMessages());
+	}
+
+	@Test
+	public void takesInlineVerdict() throws Exception {
+		ReportSummary.Entry entry = scan("<p>Execution status: Pass</p>"
+				+ "<p>Fail</p>");
+		assertEquals(TestCaseResult.Verdict.PASS, entry.getVerdict());
+		assertEquals(1, entry.getFailedSteps());
+	}
+
+	@Test
+	public void derivesVerdictFromSteps() throws Exception {
+		assertEquals(TestCaseResult.Verdict.PASS,
+				scan("<td>Pass</td><td>passed</td>").getVerdict());
+		assertEquals(TestCaseResult.Verdict.FAIL,
+				scan("<td>Pass</td><td>Fail</td>").getVerdict());
+		assertEquals(TestCaseResult.Verdict.UNKNOWN,
+				scan("<p>nothing to see</p>").getVerdict());
+	}
+
+	@Test
+	public void keepsFewShortMessages() throws Exception {
+		StringBuilder html = new StringBuilder();
+		char[] longText = new char[1000];
+		Arrays.fill(longText, 'x');
+		for (int i = 0; i < 10; i++) {
+			html.append("<p>Error ").append(longText).append("</p>");
+		}
+		ReportSummary.Entry entry = scan(html.toString());
+		assertEquals(ReportSummary.MAX_MESSAGES, entry.getMessages().size());
+		String message = entry.getMessages().get(0);
+		assertEquals(ReportSummary.MAX_MESSAGE_LENGTH + 3, message.length());
+		assertTrue(message.endsWith("..."));
+	}
+
+	private ReportSummary.Entry scan(String html) throws IOException {
+		File file = tmp.newFile();
+		FileUtils.writeStringToFile(file, html, "UTF-8");
+		return ReportSummary.scan("report", file);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Writes results to an in-memory H2 database through the connection
+ * factory the ingestor is given.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ResultIngestorTest {
+
+	private static final long TIMEOUT = 10000;
+
+	@Test
+	public void drainsBatches() throws Exception {
+		String url = "jdbc:h2:mem:drains;DB_CLOSE_DELAY=-1";
+		ResultIngestor ingestor = new ResultIngestor(factory(url, null),
+				10, 2, 1);
+		try {
+			List<TestCaseResult> results = Arrays.asList(
+					result("project://p/a.fftc", TestCaseResult.Verdict.PASS),
+					result("project://p/b.fftc", TestCaseResult.Verdict.FAIL),
+					result("project://p/c.fftc", TestCaseResult.Verdict.PASS));
+			assertEquals(3, ingestor.submit("job", 7, "nightly", results,
+					System.out));
+			assertTrue(ingestor.flush(TIMEOUT));
+			assertEquals(0, ingestor.getBacklog());
+		} finally {
+			ingestor.shutdown(TIMEOUT);
+		}
+
+		assertEquals(Arrays.asList(
+				"job 7 project://p/a.fftc PASS nightly",
+				"job 7 project://p/b.fftc FAIL nightly",
+				"job 7 project://p/c.fftc PASS nightly"), rows(url));
+	}
+
+	@Test
+	public void keepsWritingAfterUnexpectedError() throws Exception {
+		String url = "jdbc:h2:mem:recovers;DB_CLOSE_DELAY=-1";
+		ResultIngestor ingestor = new ResultIngestor(
+				factory(url, new AtomicBoolean(true)), 10, 1, 1);
+		try {
+			ingestor.submit("job", 1, "", Arrays.asList(result(
+					"project://p/a.fftc", TestCaseResult.Verdict.PASS)),
+					System.out);
+			assertTrue(ingestor.flush(TIMEOUT));
+			ingestor.submit("job", 2, "", Arrays.asList(result(
+					"project://p/a.fftc", TestCaseResult.Verdict.FAIL)),
+					System.out);
+			assertTrue(ingestor.flush(TIMEOUT));
+		} finally {
+			ingestor.shutdown(TIMEOUT);
+		}
+
+		assertEquals(Arrays.asList("job 2 project://p/a.fftc FAIL "),
+				rows(url));
+	}
+
+	/**
+	 * @param fail if set, the first connection fails with an unchecked
+	 * exception
+	 */
+	private static ConnectionPool.ConnectionFactory factory(final String url,
+			final AtomicBoolean fail) {
+		return new ConnectionPool.ConnectionFactory() {
+			public Connection open() throws SQLException {
+				if (fail != null && fail.getAndSet(false)) {
+					throw new IllegalStateException("driver bug");
+				}
+				return DriverManager.getConnection(url);
+			}
+		};
+	}
+
+	private static TestCaseResult result(String uri,
+			TestCaseResult.Verdict verdict) {
+		return new TestCaseResult(uri, verdict, 1000, 10, null);
+	}
+
+	private static List<String> rows(String url) throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		Connection connection = DriverManager.getConnection(url);
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet rs = statement.executeQuery("SELECT job_name, "
+					+ "build_number, test_case, verdict, custom_tag "
+					+ "FROM itest_results ORDER BY build_number, test_case");
+			while (rs.next()) {
+				rows.add(rs.getString(1) + " " + rs.getInt(2) + " "
+						+ rs.getString(3) + " " + rs.getString(4) + " "
+						+ rs.getString(5));
+			}
+			statement.close();
+		} finally {
+			connection.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.gargoylesoftware.htmlunit.Page;
+
+/**
+ * Queries the results API of builds whose results are written straight to
+ * their index files.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class ResultsApiActionTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private JenkinsRule.WebClient wc;
+
+	@Before
+	public void setUp() throws Exception {
+		FreeStyleProject p = j.createFreeStyleProject("p");
+		results(j.buildAndAssertSuccess(p),
+				"\tproject://p/smoke/a.fftc\tPASS\t1000\t10\t",
+				"\tproject://p/regression/b.fftc\tFAIL\t1010\t20\tlink down");
+		results(j.buildAndAssertSuccess(p),
+				"x\tproject://p/smoke/a.fftc\tPASS\t2000\t10\t",
+				"x\tproject://p/regression/b.fftc\tERROR\t2010\t20\t",
+				"y\tproject://p/regression/c.fftc\tFAIL\t2000\t30\t");
+		results(j.buildAndAssertSuccess(p),
+				"\tproject://p/smoke/a.fftc\tFAIL\t3000\t10\t");
+		//the job action comes with the build step, added once built
+		p.getBuildersList().add(new ITest("", "p", "project://p/smoke/a.fftc",
+				"", "", "", false, ""));
+		j.jenkins.reload();
+		wc = j.createWebClient();
+	}
+
+	@Test
+	public void pagesResultsOfBuild() throws Exception {
+		JSONObject first = json("job/p/2/itest-results/json?limit=2");
+		assertEquals(3, first.getInt("total"));
+		assertEquals(2, first.getInt("next"));
+		assertEquals(Arrays.asList("project://p/smoke/a.fftc",
+				"project://p/regression/b.fftc"), testCases(first));
+
+		JSONObject last = json("job/p/2/itest-results/json?start=2&limit=2");
+		assertEquals(3, last.getInt("total"));
+		assertFalse(last.has("next"));
+		assertEquals(Arrays.asList("project://p/regression/c.fftc"),
+				testCases(last));
+
+		JSONObject past = json("job/p/2/itest-results/json?start=5");
+		assertEquals(3, past.getInt("total"));
+		assertTrue(past.getJSONArray("results").isEmpty());
+	}
+
+	@Test
+	public void selectsFields() throws Exception {
+		JSONObject o = json("job/p/1/itest-results/json?fields=testCase,"
+				+ "message&verdict=FAIL");
+		JSONArray results = o.getJSONArray("results");
+		assertEquals(1, results.size());
+		JSONObject result = results.getJSONObject(0);
+		assertEquals(2, result.size());
+		assertEquals("project://p/regression/b.fftc",
+				result.getString("testCase"));
+		assertEquals("link down", result.getString("message"));
+
+		JSONObject all = json("job/p/2/itest-results/json?limit=1");
+		JSONObject full = all.getJSONArray("results").getJSONObject(0);
+		assertEquals(ResultsApiAction.FIELDS.size(), full.size());
+		assertEquals(2, full.getInt("build"));
+		assertEquals("x", full.getString("axis"));
+		assertEquals("PASS", full.getString("verdict"));
+		assertEquals(2000, full.getLong("start"));
+		assertEquals(10, full.getLong("duration"));
+	}
+
+	@Test
+	public void filtersResultsOfJob() throws Exception {
+		JSONObject failed = json(
+				"job/p/itest-results/json?verdict=fail,error");
+		assertEquals(4, failed.getInt("total"));
+		assertEquals(Arrays.asList("3 project://p/smoke/a.fftc",
+				"2 project://p/regression/b.fftc",
+				"2 project://p/regression/c.fftc",
+				"1 project://p/regression/b.fftc"), builds(failed));
+
+		JSONObject smoke = json(
+				"job/p/itest-results/json?testCase=p/smoke/**");
+		assertEquals(Arrays.asList("3 project://p/smoke/a.fftc",
+				"2 project://p/smoke/a.fftc", "1 project://p/smoke/a.fftc"),
+				builds(smoke));
+
+		JSONObject range = json("job/p/itest-results/json?builds=1-2"
+				+ "&testCase=project://p/**/b.fftc");
+		assertEquals(Arrays.asList("2 project://p/regression/b.fftc",
+				"1 project://p/regression/b.fftc"), builds(range));
+
+		JSONObject one = json("job/p/itest-results/json?builds=3");
+		assertEquals(Arrays.asList("3 project://p/smoke/a.fftc"),
+				builds(one));
+	}
+
+	@Test
+	public void rejectsBadQueries() throws Exception {
+		wc.setThrowExceptionOnFailingStatusCode(false);
+		for (String query : Arrays.asList("limit=ten", "fields=testCase,tag",
+				"verdict=PASSED")) {
+			assertEquals(query, 400, wc.goTo("job/p/1/itest-results/json?"
+					+ query, null).getWebResponse().getStatusCode());
+		}
+		for (String builds : Arrays.asList("a-b", "3-1", "1-"
+				+ (ResultsApiAction.MAX_BUILDS + 1))) {
+			assertEquals(builds, 400, wc.goTo(
+					"job/p/itest-results/json?builds=" + builds, null)
+					.getWebResponse().getStatusCode());
+		}
+	}
+
+	@Test
+	public void answersNotModifiedUntilResultsChange() throws Exception {
+		String url = "job/p/itest-results/json?verdict=FAIL";
+		Page page = wc.goTo(url, "application/json");
+		String etag = page.getWebResponse().getResponseHeaderValue("ETag");
+		assertNotNull(etag);
+		assertEquals(etag, wc.goTo(url, "application/json").getWebResponse()
+				.getResponseHeaderValue("ETag"));
+		assertFalse(etag.equals(wc.goTo(url + "&limit=1", "application/json")
+				.getWebResponse().getResponseHeaderValue("ETag")));
+
+		wc.setThrowExceptionOnFailingStatusCode(false);
+		wc.addRequestHeader("If-None-Match", etag);
+		assertEquals(304, wc.goTo(url, null).getWebResponse()
+				.getStatusCode());
+
+		File index = results(j.jenkins.getItemByFullName("p",
+				FreeStyleProject.class).getBuildByNumber(3),
+				"\tproject://p/smoke/a.fftc\tPASS\t3000\t10\t");
+		index.setLastModified(index.lastModified() + 10000);
+		page = wc.goTo(url, "application/json");
+		assertEquals(200, page.getWebResponse().getStatusCode());
+		assertFalse(etag.equals(page.getWebResponse()
+				.getResponseHeaderValue("ETag")));
+		assertEquals(2, JSONObject.fromObject(page.getWebResponse()
+				.getContentAsString()).getInt("total"));
+	}
+
+	private JSONObject json(String url) throws Exception {
+		return JSONObject.fromObject(wc.goTo(url, "application/json")
+				.getWebResponse().getContentAsString());
+	}
+
+	/**
+	 * Give a build results API and these lines as its result index.
+	 */
+	private static File results(FreeStyleBuild build, String... lines)
+			throws Exception {
+		if (build.getAction(ResultsApiAction.class) == null) {
+			build.addAction(new ResultsApiAction());
+			build.save();
+		}
+		File index = new File(build.getRootDir(), ResultIndex.FILE_NAME);
+		FileUtils.writeLines(index, "UTF-8", Arrays.asList(lines));
+		return index;
+	}
+
+	private static List<String> testCases(JSONObject o) {
+		List<String> testCases = new ArrayList<String>();
+		JSONArray results = o.getJSONArray("results");
+		for (int i = 0; i < results.size(); i++) {
+			testCases.add(results.getJSONObject(i).getString("testCase"));
+		}
+		return testCases;
+	}
+
+	private static List<String> builds(JSONObject o) {
+		List<String> builds = new ArrayList<String>();
+		JSONArray results = o.getJSONArray("results");
+		for (int i = 0; i < results.size(); i++) {
+			JSONObject result = results.getJSONObject(i);
+			builds.add(result.getInt("build") + " "
+					+ result.getString("testCase"));
+		}
+		return builds;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads suite manifests.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class SuiteManifestTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void ordersByPriorityThenDuration() throws Exception {
+		List<SuiteManifest.Entry> entries = SuiteManifest.parse(manifest(
+				"<suite version='1'>"
+				+ "<testcase uri='project://p/short.fftc' duration='10'/>"
+				+ "<testcase uri='project://p/long.fftc' duration='600'/>"
+				+ "<testcase uri=' project://p/first.fftc ' priority='5'"
+				+ " duration='1'>"
+				+ "<param name='rate' value='1000'/>"
+				+ "<param name='size' value='64'/>"
+				+ "</testcase>"
+				+ "</suite>"), "");
+
+		assertEquals(Arrays.asList("project://p/first.fftc",
+				"project://p/long.fftc", "project://p/short.fftc"),
+				uris(entries));
+		assertEquals(Arrays.asList("rate=1000", "size=64"),
+				entries.get(0).getParams());
+		assertEquals(600, entries.get(1).getDuration());
+		assertTrue(entries.get(1).getParams().isEmpty());
+	}
+
+	@Test
+	public void keepsEntriesMatchingTheFilter() throws Exception {
+		String suite = "<suite>"
+				+ "<testcase uri='project://p/a.fftc' tags='Smoke, routing'/>"
+				+ "<testcase uri='project://p/b.fftc' tags='smoke slow'>"
+				+ "<param name='rate' value='1'/>"
+				+ "</testcase>"
+				+ "<testcase uri='project://p/c.fftc'/>"
+				+ "</suite>";
+		assertEquals(Arrays.asList("project://p/a.fftc"),
+				uris(SuiteManifest.parse(manifest(suite), "smoke&!slow")));
+		assertEquals(3, SuiteManifest.parse(manifest(suite), "").size());
+	}
+
+	@Test
+	public void rejectsNewerVersions() throws Exception {
+		assertInvalid("<suite version='2'/>", "version 2");
+	}
+
+	@Test
+	public void rejectsTestCasesWithoutUri() throws Exception {
+		assertInvalid("<suite>\n<testcase tags='smoke'/>\n</suite>", "line 2");
+	}
+
+	@Test
+	public void rejectsMalformedXml() throws Exception {
+		assertInvalid("<suite><testcase uri='x'></suite>", "Invalid");
+	}
+
+	private void assertInvalid(String content, String message)
+			throws Exception {
+		try {
+			SuiteManifest.parse(manifest(content), "");
+			fail("accepted " + content);
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private File manifest(String content) throws IOException {
+		File file = tmp.newFile();
+		FileUtils.writeStringToFile(file, content, "UTF-8");
+		return file;
+	}
+
+	private static List<String> uris(List<SuiteManifest.Entry> entries) {
+		List<String> uris = new ArrayList<String>();
+		for (SuiteManifest.Entry entry : entries) {
+			uris.add(entry.getUri());
+		}
+		return uris;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Selects test cases with glob patterns and tag filters.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class TestCaseIndexTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void doubleStarMatchesAnyDirectories() {
+		String glob = "Regression/**/*.fftc";
+		assertTrue(matches(glob, "Regression/a.fftc"));
+		assertTrue(matches(glob, "Regression/x/y/a.fftc"));
+		assertFalse(matches(glob, "Other/a.fftc"));
+		assertFalse(matches(glob, "Regression/a.ffts"));
+		assertTrue(matches("**", "a/b/c.fftc"));
+	}
+
+	@Test
+	public void starAndQuestionMarkStayInOneDirectory() {
+		assertTrue(matches("*.fftc", "a.fftc"));
+		assertFalse(matches("*.fftc", "a/b.fftc"));
+		assertTrue(matches("a?.fftc", "ab.fftc"));
+		assertFalse(matches("a?.fftc", "a/.fftc"));
+	}
+
+	@Test
+	public void otherCharactersAreLiteral() {
+		assertTrue(matches("p/a+b (1).fftc", "p/a+b (1).fftc"));
+		assertFalse(matches("p/a.fftc", "p/aXfftc"));
+	}
+
+	@Test
+	public void tagFilters() {
+		List<String> tags = Arrays.asList("smoke", "fast");
+		assertTrue(TestCaseIndex.matchesTags(tags, "smoke&!slow|sanity"));
+		assertFalse(TestCaseIndex.matchesTags(tags, "smoke&!fast"));
+		assertTrue(TestCaseIndex.matchesTags(tags, "sanity|FAST"));
+	}
+
+	@Test
+	public void expandsPatternsOutsideTheWorkspace() throws Exception {
+		File ws = tmp.newFolder("ws");
+		File indexDir = new File(tmp.getRoot(), "index");
+		write(ws, "p/a.fftc", "<tag>smoke</tag>");
+		write(ws, "p/sub/b.fftc", "<tag>slow</tag>");
+		write(ws, "p/notes.txt", "");
+		write(ws, "q/c.fftc", "<tag>smoke</tag>");
+
+		List<String> selected = TestCaseIndex.expand(new FilePath(ws),
+				new FilePath(indexDir), Arrays.asList(
+						"project://q/c.fftc", "project://p/**/*.fftc"));
+		assertEquals(Arrays.asList("project://q/c.fftc",
+				"project://p/a.fftc", "project://p/sub/b.fftc"), selected);
+
+		assertEquals(Arrays.asList("project://p/a.fftc", "project://q/c.fftc"),
+				TestCaseIndex.expand(new FilePath(ws), new FilePath(indexDir),
+						Arrays.asList("project://**[smoke]")));
+
+		assertEquals(1, indexDir.list().length);
+		String[] names = ws.list();
+		Arrays.sort(names);
+		assertEquals(Arrays.asList("p", "q"), Arrays.asList(names));
+	}
+
+	@Test
+	public void keepsOtherEntries() throws Exception {
+		List<String> entries = Arrays.asList("project://p/a.fftc");
+		assertEquals(entries, TestCaseIndex.expand(
+				new FilePath(tmp.getRoot()), null, entries));
+	}
+
+	private static boolean matches(String glob, String path) {
+		return Pattern.matches(TestCaseIndex.globToRegex(glob), path);
+	}
+
+	private static void write(File root, String path, String content)
+			throws Exception {
+		FileUtils.writeStringToFile(new File(root, path), content);
+	}
+}
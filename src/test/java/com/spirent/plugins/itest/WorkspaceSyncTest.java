@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Spirent Communications, Inc.
+ 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.”
+ */
+
+package com.spirent.plugins.itest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Synchronizes a workspace into a local copy and checks out every revision
+ * byte for byte.
+ *
+ * @author Spirent
+ * @since 1.1
+ */
+public class WorkspaceSyncTest {
+
+	private static final Pattern SENT =
+			Pattern.compile("sent (\\d+) KB, reused (\\d+) KB");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+	private File source;
+	private FilePath cache;
+	private long modified = 1400000000000L;
+
+	@Before
+	public void workspace() {
+		source = tmp.newFolder("workspace");
+		cache = new FilePath(new File(tmp.newFolder("agent"), "copy"));
+	}
+
+	@Test
+	public void sendsWholeFilesFirst() throws Exception {
+		byte[] large = bytes(300 * 1024);
+		write("p/large.bin", large);
+		write("p/a.fftc", "<testCase/>".getBytes("UTF-8"));
+		write("p/empty.txt", new byte[0]);
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		WorkspaceSync.Lease lease = sync(log);
+		try {
+			assertFalse(lease.isCurrent());
+			assertSame(lease);
+			assertEquals(0, reused(log));
+		} finally {
+			lease.release();
+		}
+
+		lease = sync(new ByteArrayOutputStream());
+		try {
+			assertTrue(lease.isCurrent());
+			assertSame(lease);
+		} finally {
+			lease.release();
+		}
+	}
+
+	@Test
+	public void reusesBlocksAroundChanges() throws Exception {
+		byte[] large = bytes(512 * 1024);
+		write("large.bin", large);
+		sync(new ByteArrayOutputStream()).release();
+
+		//insert, delete and overwrite bytes, shifting the rest of the file
+		ByteArrayOutputStream changed = new ByteArrayOutputStream();
+		changed.write(bytes(100));
+		changed.write(large, 0, 100000);
+		changed.write(bytes(3333));
+		changed.write(large, 100000, 150000);
+		changed.write(large, 260000, 100000);
+		changed.write(bytes(10));
+		changed.write(large, 360010, large.length - 360010);
+		write("large.bin", changed.toByteArray());
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		WorkspaceSync.Lease lease = sync(log);
+		try {
+			assertSame(lease);
+			assertTrue(log.toString(), reused(log) > 400);
+			assertTrue(log.toString(), sent(log) < 100);
+		} finally {
+			lease.release();
+		}
+
+		//a file that shrinks to less than a block
+		write("large.bin", Arrays.copyOfRange(large, 5, 1000));
+		lease = sync(new ByteArrayOutputStream());
+		try {
+			assertSame(lease);
+		} finally {
+			lease.release();
+		}
+	}
+
+	@Test
+	public void keepsCheckoutsOfBuildsInProgress() throws Exception {
+		write("p/a.fftc", "first".getBytes("UTF-8"));
+		write("p/b.fftc", "gone".getBytes("UTF-8"));
+		WorkspaceSync.Lease first = sync(new ByteArrayOutputStream());
+		FileUtils.writeStringToFile(new File(first.getRemote(), "p.itar"),
+				"export");
+
+		write("p/a.fftc", "second".getBytes("UTF-8"));
+		new File(source, "p/b.fftc").delete();
+		write("q/c.fftc", "new".getBytes("UTF-8"));
+		WorkspaceSync.Lease second = sync(new ByteArrayOutputStream());
+		try {
+			assertFalse(first.getRemote().equals(second.getRemote()));
+			assertFalse(first.getRevision().equals(
+					second.getRevision()));
+			assertSame(second);
+			assertFalse(new File(second.getRemote(), "p.itar").exists());
+
+			assertEquals("first", read(first, "p/a.fftc"));
+			assertEquals("gone", read(first, "p/b.fftc"));
+			assertFalse(new File(first.getRemote(), "q/c.fftc").exists());
+		} finally {
+			second.release();
+		}
+
+		//the next build reuses the first checkout that was released
+		first.release();
+		WorkspaceSync.Lease third = sync(new ByteArrayOutputStream());
+		try {
+			assertEquals(first.getRemote(), third.getRemote());
+			assertSame(third);
+			assertEquals("export", read(third, "p.itar"));
+		} finally {
+			third.release();
+		}
+	}
+
+	@Test
+	public void sendsSmallFilesTogether() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			write("p/" + i + ".fftc", bytes(i * 10));
+		}
+		WorkspaceSync.Lease lease = sync(new ByteArrayOutputStream());
+		try {
+			assertSame(lease);
+		} finally {
+			lease.release();
+		}
+	}
+
+	private WorkspaceSync.Lease sync(ByteArrayOutputStream log)
+			throws Exception {
+		return WorkspaceSync.sync(source, cache, new PrintStream(log, true));
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Write a file of the workspace with a new modification time, as
+	 * changes within the same millisecond would go unnoticed.
+	 */
+	private void write(String path, byte[] content) throws Exception {
+		File file = new File(source, path);
+		FileUtils.writeByteArrayToFile(file, content);
+		modified += 1000;
+		assertTrue(file.setLastModified(modified));
+	}
+
+	private static String read(WorkspaceSync.Lease lease, String path)
+			throws Exception {
+		return FileUtils.readFileToString(new File(lease.getRemote(), path));
+	}
+
+	/**
+	 * Check that the checkout has the files of the workspace, and only
+	 * those besides what builds wrote.
+	 */
+	private void assertSame(WorkspaceSync.Lease lease) throws Exception {
+		assertSame(source, new File(lease.getRemote()));
+	}
+
+	private static void assertSame(File expected, File actual)
+			throws Exception {
+		for (File file : expected.listFiles()) {
+			File copy = new File(actual, file.getName());
+			if (file.isDirectory()) {
+				assertSame(file, copy);
+			} else {
+				assertArrayEquals(file.getPath(),
+						FileUtils.readFileToByteArray(file),
+						FileUtils.readFileToByteArray(copy));
+			}
+		}
+		for (String name : actual.list()) {
+			assertTrue(name, name.startsWith(".itest-")
+					|| name.endsWith(".itar")
+					|| new File(expected, name).exists());
+		}
+	}
+
+	private static long sent(ByteArrayOutputStream log) {
+		Matcher m = SENT.matcher(log.toString());
+		assertTrue(log.toString(), m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	private static long reused(ByteArrayOutputStream log) {
+		Matcher m = SENT.matcher(log.toString());
+		assertTrue(log.toString(), m.find());
+		return Long.parseLong(m.group(2));
+	}
+}